@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Counts what a benchmark moved. JMH reports the counters per second next to
+ * the ops/s of the benchmark, i.e. as MB/s and keys/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    public double megabytes;
+    public long keys;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        keys = 0;
+    }
+
+    void addBytes(long bytes) {
+        megabytes += bytes / MEGABYTE;
+    }
+
+    void addKeys(int count) {
+        keys += count;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copies a document the way Util.copyContentUriToFile stages it: from a file
+ * descriptor, which the kernel copies, and from a plain stream, such as a
+ * pipe handed out by a content provider.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CopyBenchmark {
+
+    @Param({
+            "1048576", "67108864"
+    })
+    public int objectSize;
+
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] data = new byte[objectSize];
+        new Random(objectSize).nextBytes(data);
+        source = File.createTempFile("source", ".bin");
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        target = File.createTempFile("copy", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long copyFromFile(ByteCounter counter) throws IOException {
+        long copied = FileCopy.copy(new FileInputStream(source), target);
+        counter.addBytes(copied);
+        return copied;
+    }
+
+    @Benchmark
+    public long copyFromStream(ByteCounter counter) throws IOException {
+        long copied = FileCopy.copy(new BufferedInputStream(new FileInputStream(source)),
+                target);
+        counter.addBytes(copied);
+        return copied;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Builds a KeyIndex and runs the folder listings and type-ahead searches of
+ * the download picker on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyIndexBenchmark {
+
+    @Param({
+            "10000", "100000"
+    })
+    public int keyCount;
+
+    private BucketIndex index;
+    private KeyIndex keyIndex;
+    private KeyIndex.Listing typed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<BucketIndexEntry> page = new ArrayList<BucketIndexEntry>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            page.add(new BucketIndexEntry(
+                    String.format("photos/%04d/IMG_%07d.jpg", i / 1000, i), 0, "", 0));
+        }
+        index = new BucketIndex();
+        index.applyPage(0, page, true);
+        keyIndex = new KeyIndex(index);
+        typed = keyIndex.search("", "img_00", null);
+    }
+
+    @Benchmark
+    public KeyIndex build() {
+        return new KeyIndex(index);
+    }
+
+    @Benchmark
+    public KeyIndex.Listing listRoot() {
+        return keyIndex.list("", '/');
+    }
+
+    @Benchmark
+    public KeyIndex.Listing listFolder() {
+        return keyIndex.list("photos/0042/", '/');
+    }
+
+    @Benchmark
+    public KeyIndex.Listing search() {
+        return keyIndex.search("", "img_00", null);
+    }
+
+    @Benchmark
+    public KeyIndex.Listing searchRare() {
+        return keyIndex.search("", "0004242", null);
+    }
+
+    @Benchmark
+    public KeyIndex.Listing narrowSearch() {
+        return keyIndex.search("", "img_004", typed);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lists a whole bucket page by page and reconciles the pages with a
+ * BucketIndex, as GetFileListTask does for the download picker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ListingBenchmark {
+
+    private static final String BUCKET = "benchmark";
+
+    @Param({
+            "1000", "10000", "100000"
+    })
+    public int keyCount;
+
+    @Param({
+            "200", "1000"
+    })
+    public int pageSize;
+
+    @Param({
+            "0", "20"
+    })
+    public long latencyMillis;
+
+    private LocalS3Server server;
+    private AmazonS3Client s3;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalS3Server(latencyMillis);
+        s3 = server.newClient(new ConnectionSettings().toClientConfiguration());
+        byte[] empty = new byte[0];
+        for (int i = 0; i < keyCount; i++) {
+            server.putObject(BUCKET, String.format("photos/%04d/IMG_%07d.jpg", i / 1000, i),
+                    empty);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public BucketIndex listAll(ByteCounter counter) {
+        ObjectListingPager pager = new ObjectListingPager(s3, BUCKET, null, pageSize);
+        BucketIndex index = new BucketIndex();
+        int reconciled = 0;
+        while (pager.hasNextPage()) {
+            List<S3ObjectSummary> summaries = pager.nextPage();
+            List<BucketIndexEntry> page = new ArrayList<BucketIndexEntry>(summaries.size());
+            for (S3ObjectSummary summary : summaries) {
+                page.add(BucketIndexEntry.fromSummary(summary));
+            }
+            index.applyPage(reconciled, page, !pager.hasNextPage());
+            reconciled += page.size();
+        }
+        counter.addKeys(reconciled);
+        return index;
+    }
+}
@@ -0,0 +1,810 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * An in-process stand-in for S3 that keeps objects in memory and speaks just
+ * enough of the REST API for the app's transfers and listings: objects with
+ * metadata and ranges, multipart uploads and paged listings without a
+ * delimiter. Every request can be delayed to act like a distant endpoint,
+ * and objects can be stored as if the bucket had default encryption.
+ * Signatures are not checked. It serves HTTP/1.1 itself, as the SDK matches
+ * header names such as ETag by case and the JDK's server rewrites them.
+ */
+public class LocalS3Server {
+
+    private static final String XML_HEADER =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String NAMESPACE = " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"";
+    private static final String META_PREFIX = "x-amz-meta-";
+    private static final String SSE_HEADER = "x-amz-server-side-encryption";
+    private static final String KMS = "aws:kms";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return BucketIndexEntry.compareKeys(a, b);
+        }
+    };
+
+    private final ServerSocket server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final Set<Socket> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    // Objects by bucket, each in listing order
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>> buckets =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>>();
+    private final ConcurrentHashMap<String, PendingUpload> uploads =
+            new ConcurrentHashMap<String, PendingUpload>();
+    private final AtomicLong lastUploadId = new AtomicLong();
+    private final Random random = new Random();
+    private volatile String defaultEncryption;
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @param latencyMillis how long every request is held before it is
+     *            answered.
+     * @throws IOException if the server cannot be started.
+     */
+    public LocalS3Server(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.server = new ServerSocket(0, 50, InetAddress.getByName(null));
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "local-s3");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * @return a client that talks to this server with path-style requests.
+     */
+    public AmazonS3Client newClient(ClientConfiguration configuration) {
+        AmazonS3Client s3 = new AmazonS3Client(new BasicAWSCredentials("local", "local"),
+                configuration);
+        s3.setEndpoint(getEndpoint());
+        s3.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        return s3;
+    }
+
+    /**
+     * Stores an object directly, without a request.
+     */
+    public void putObject(String bucket, String key, byte[] data) {
+        objectsOf(bucket).put(key, new StoredObject(data, eTagOf(data), null, null,
+                new HashMap<String, String>(), defaultEncryption));
+    }
+
+    /**
+     * Encrypts objects stored from now on as S3 does for a bucket with
+     * default encryption. Under aws:kms, ETags are no longer MD5s of the
+     * content.
+     *
+     * @param algorithm AES256, aws:kms, or null for none.
+     */
+    public void setDefaultEncryption(String algorithm) {
+        defaultEncryption = algorithm;
+    }
+
+    public int getObjectCount(String bucket) {
+        return objectsOf(bucket).size();
+    }
+
+    public void stop() {
+        closeQuietly(server);
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = server.accept();
+                connections.add(socket);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Stopped
+        }
+    }
+
+    /*
+     * Answers the requests of one keep-alive connection in turn.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Exchange exchange;
+            while ((exchange = Exchange.read(in, out)) != null) {
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                try {
+                    route(exchange);
+                } catch (RuntimeException e) {
+                    sendError(exchange, 500, "InternalError", String.valueOf(e));
+                }
+                out.flush();
+                if (exchange.closes) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private ConcurrentSkipListMap<String, StoredObject> objectsOf(String bucket) {
+        ConcurrentSkipListMap<String, StoredObject> objects = buckets.get(bucket);
+        if (objects == null) {
+            ConcurrentSkipListMap<String, StoredObject> created =
+                    new ConcurrentSkipListMap<String, StoredObject>(KEY_ORDER);
+            objects = buckets.putIfAbsent(bucket, created);
+            if (objects == null) {
+                objects = created;
+            }
+        }
+        return objects;
+    }
+
+    private void route(Exchange exchange) throws IOException {
+        String path = exchange.path.substring(1);
+        int slash = path.indexOf('/');
+        String bucket = slash < 0 ? path : path.substring(0, slash);
+        String key = slash < 0 ? "" : path.substring(slash + 1);
+        Map<String, String> query = parseQuery(exchange.rawQuery);
+        String method = exchange.method;
+
+        if (key.length() == 0) {
+            if ("GET".equals(method)) {
+                list(exchange, bucket, query);
+            } else {
+                objectsOf(bucket);
+                send(exchange, 200, null);
+            }
+        } else if ("PUT".equals(method)) {
+            if (query.containsKey("uploadId")) {
+                uploadPart(exchange, query);
+            } else {
+                put(exchange, bucket, key);
+            }
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+            initiate(exchange, bucket, key);
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            complete(exchange, bucket, key, query.get("uploadId"));
+        } else if ("DELETE".equals(method)) {
+            if (query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+            } else {
+                objectsOf(bucket).remove(key);
+            }
+            send(exchange, 204, null);
+        } else if ("GET".equals(method) || "HEAD".equals(method)) {
+            get(exchange, bucket, key, query);
+        } else {
+            sendError(exchange, 501, "NotImplemented", method + " " + path);
+        }
+    }
+
+    private void put(Exchange exchange, String bucket, String key) throws IOException {
+        byte[] data = readBody(exchange);
+        StoredObject object = new StoredObject(data, eTagOf(data),
+                exchange.getRequestHeader("Content-Type"), contentEncodingOf(exchange),
+                userMetadataOf(exchange), defaultEncryption);
+        objectsOf(bucket).put(key, object);
+        exchange.setHeader("ETag", "\"" + object.eTag + "\"");
+        setEncryptionHeader(exchange, object.sseAlgorithm);
+        send(exchange, 200, null);
+    }
+
+    private void get(Exchange exchange, String bucket, String key, Map<String, String> query)
+            throws IOException {
+        StoredObject object = objectsOf(bucket).get(key);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", key);
+            return;
+        }
+        String ifMatch = exchange.getRequestHeader("If-Match");
+        if (ifMatch != null && !ifMatch.replace("\"", "").equals(object.eTag)) {
+            sendError(exchange, 412, "PreconditionFailed", key);
+            return;
+        }
+
+        Map<String, String> headers = exchange.responseHeaders;
+        headers.put("ETag", "\"" + object.eTag + "\"");
+        headers.put("Last-Modified", httpDate(object.lastModified));
+        // If-Modified-Since is ignored once If-None-Match is given
+        String ifNoneMatch = exchange.getRequestHeader("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.replace("\"", "").equals(object.eTag)) {
+            exchange.send(304, object.data, 0, 0);
+            return;
+        }
+        headers.put("Accept-Ranges", "bytes");
+        headers.put("Content-Type", object.contentType != null ? object.contentType
+                : "binary/octet-stream");
+        if (query.containsKey("response-content-encoding")) {
+            // A response header override, as S3 supports for signed requests
+            headers.put("Content-Encoding", query.get("response-content-encoding"));
+        } else if (object.contentEncoding != null) {
+            headers.put("Content-Encoding", object.contentEncoding);
+        }
+        for (Map.Entry<String, String> entry : object.userMetadata.entrySet()) {
+            headers.put(META_PREFIX + entry.getKey(), entry.getValue());
+        }
+        setEncryptionHeader(exchange, object.sseAlgorithm);
+
+        int start = 0;
+        int end = object.data.length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeader("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.matches()) {
+            start = Integer.parseInt(matcher.group(1));
+            if (matcher.group(2).length() > 0) {
+                end = Math.min(Integer.parseInt(matcher.group(2)), end);
+            }
+            if (start > end) {
+                sendError(exchange, 416, "InvalidRange", range);
+                return;
+            }
+            status = 206;
+            headers.put("Content-Range",
+                    "bytes " + start + "-" + end + "/" + object.data.length);
+        }
+        exchange.send(status, object.data, start, end - start + 1);
+    }
+
+    private void list(Exchange exchange, String bucket, Map<String, String> query)
+            throws IOException {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String marker = query.get("marker");
+        int maxKeys = query.containsKey("max-keys")
+                ? Math.min(Integer.parseInt(query.get("max-keys")), 1000) : 1000;
+
+        ConcurrentSkipListMap<String, StoredObject> objects = objectsOf(bucket);
+        Map<String, StoredObject> candidates = marker != null && marker.length() > 0
+                ? objects.tailMap(marker, false) : objects;
+        StringBuilder contents = new StringBuilder();
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                if (KEY_ORDER.compare(key, prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            StoredObject object = entry.getValue();
+            contents.append("<Contents><Key>").append(escape(key))
+                    .append("</Key><LastModified>").append(isoDate(object.lastModified))
+                    .append("</LastModified><ETag>&quot;").append(object.eTag)
+                    .append("&quot;</ETag><Size>").append(object.data.length)
+                    .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+        }
+        send(exchange, 200, XML_HEADER + "<ListBucketResult" + NAMESPACE + "><Name>"
+                + escape(bucket) + "</Name><Prefix>" + escape(prefix) + "</Prefix><Marker>"
+                + escape(marker != null ? marker : "") + "</Marker><MaxKeys>" + maxKeys
+                + "</MaxKeys><IsTruncated>" + truncated + "</IsTruncated>" + contents
+                + "</ListBucketResult>");
+    }
+
+    private void initiate(Exchange exchange, String bucket, String key)
+            throws IOException {
+        String uploadId = "upload-" + lastUploadId.incrementAndGet();
+        uploads.put(uploadId, new PendingUpload(exchange.getRequestHeader("Content-Type"),
+                contentEncodingOf(exchange), userMetadataOf(exchange), defaultEncryption));
+        setEncryptionHeader(exchange, defaultEncryption);
+        send(exchange, 200, XML_HEADER + "<InitiateMultipartUploadResult" + NAMESPACE
+                + "><Bucket>" + escape(bucket) + "</Bucket><Key>" + escape(key)
+                + "</Key><UploadId>" + uploadId + "</UploadId>"
+                + "</InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(Exchange exchange, Map<String, String> query)
+            throws IOException {
+        PendingUpload upload = uploads.get(query.get("uploadId"));
+        byte[] data = readBody(exchange);
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", query.get("uploadId"));
+            return;
+        }
+        upload.parts.put(Integer.parseInt(query.get("partNumber")), data);
+        exchange.setHeader("ETag", "\"" + (KMS.equals(upload.sseAlgorithm) ? randomHex()
+                : md5Hex(data)) + "\"");
+        setEncryptionHeader(exchange, upload.sseAlgorithm);
+        send(exchange, 200, null);
+    }
+
+    private void complete(Exchange exchange, String bucket, String key,
+            String uploadId) throws IOException {
+        String body = new String(readBody(exchange), "UTF-8");
+        PendingUpload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", uploadId);
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        Matcher matcher = PART_NUMBER.matcher(body);
+        int count = 0;
+        while (matcher.find()) {
+            byte[] part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+            if (part == null) {
+                sendError(exchange, 400, "InvalidPart", matcher.group(1));
+                return;
+            }
+            content.write(part);
+            digests.write(md5(part));
+            count++;
+        }
+        String eTag = (KMS.equals(upload.sseAlgorithm) ? randomHex()
+                : md5Hex(digests.toByteArray())) + "-" + count;
+        objectsOf(bucket).put(key, new StoredObject(content.toByteArray(), eTag,
+                upload.contentType, upload.contentEncoding, upload.userMetadata,
+                upload.sseAlgorithm));
+        setEncryptionHeader(exchange, upload.sseAlgorithm);
+        send(exchange, 200, XML_HEADER + "<CompleteMultipartUploadResult" + NAMESPACE
+                + "><Location>" + getEndpoint() + "/" + escape(bucket) + "/" + escape(key)
+                + "</Location><Bucket>" + escape(bucket) + "</Bucket><Key>" + escape(key)
+                + "</Key><ETag>&quot;" + eTag + "&quot;</ETag>"
+                + "</CompleteMultipartUploadResult>");
+    }
+
+    /*
+     * Reads a request body, undoing the aws-chunked framing of streaming
+     * signatures if it is used.
+     */
+    private static byte[] readBody(Exchange exchange) throws IOException {
+        byte[] data = exchange.body;
+        String sha256 = exchange.getRequestHeader("x-amz-content-sha256");
+        String encoding = exchange.getRequestHeader("Content-Encoding");
+        if (sha256 != null && sha256.startsWith("STREAMING-")
+                || encoding != null && encoding.contains("aws-chunked")) {
+            return decodeChunks(data);
+        }
+        return data;
+    }
+
+    private static byte[] decodeChunks(byte[] data) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(data.length);
+        int position = 0;
+        while (position < data.length) {
+            int lineEnd = position;
+            while (data[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            String header = new String(data, position, lineEnd - position, "US-ASCII");
+            int semicolon = header.indexOf(';');
+            int size = Integer.parseInt(semicolon < 0 ? header : header.substring(0, semicolon),
+                    16);
+            if (size == 0) {
+                break;
+            }
+            position = lineEnd + 2;
+            decoded.write(data, position, size);
+            position += size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static String contentEncodingOf(Exchange exchange) {
+        String encoding = exchange.getRequestHeader("Content-Encoding");
+        if (encoding == null) {
+            return null;
+        }
+        StringBuilder kept = new StringBuilder();
+        for (String part : encoding.split(",")) {
+            part = part.trim();
+            if (part.length() > 0 && !part.equals("aws-chunked")) {
+                kept.append(kept.length() > 0 ? "," : "").append(part);
+            }
+        }
+        return kept.length() > 0 ? kept.toString() : null;
+    }
+
+    private static Map<String, String> userMetadataOf(Exchange exchange) {
+        Map<String, String> metadata = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : exchange.requestHeaders.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.US);
+            if (name.startsWith(META_PREFIX)) {
+                metadata.put(name.substring(META_PREFIX.length()), entry.getValue());
+            }
+        }
+        return metadata;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery)
+            throws UnsupportedEncodingException {
+        Map<String, String> query = new TreeMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static void send(Exchange exchange, int status, String xml)
+            throws IOException {
+        if (xml == null) {
+            exchange.send(status, null, 0, 0);
+            return;
+        }
+        byte[] body = xml.getBytes("UTF-8");
+        exchange.setHeader("Content-Type", "application/xml");
+        exchange.send(status, body, 0, body.length);
+    }
+
+    private static void sendError(Exchange exchange, int status, String code,
+            String message) throws IOException {
+        if ("HEAD".equals(exchange.method)) {
+            send(exchange, status, null);
+            return;
+        }
+        send(exchange, status, XML_HEADER + "<Error><Code>" + code + "</Code><Message>"
+                + escape(message) + "</Message><RequestId>local</RequestId></Error>");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static String isoDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5Hex(byte[] data) {
+        return BinaryUtils.toHex(md5(data));
+    }
+
+    /*
+     * The ETag S3 gives a single-part object stored now.
+     */
+    private String eTagOf(byte[] data) {
+        return KMS.equals(defaultEncryption) ? randomHex() : md5Hex(data);
+    }
+
+    /*
+     * Looks like an MD5, as the ETags of SSE-KMS objects do, but is not one.
+     */
+    private String randomHex() {
+        byte[] bytes = new byte[16];
+        synchronized (random) {
+            random.nextBytes(bytes);
+        }
+        return BinaryUtils.toHex(bytes);
+    }
+
+    private static void setEncryptionHeader(Exchange exchange, String sseAlgorithm) {
+        if (sseAlgorithm != null) {
+            exchange.setHeader(SSE_HEADER, sseAlgorithm);
+        }
+    }
+
+    private static class StoredObject {
+
+        final byte[] data;
+        final String eTag;
+        final String contentType;
+        final String contentEncoding;
+        final Map<String, String> userMetadata;
+        final String sseAlgorithm;
+        final long lastModified = System.currentTimeMillis();
+
+        StoredObject(byte[] data, String eTag, String contentType, String contentEncoding,
+                Map<String, String> userMetadata, String sseAlgorithm) {
+            this.data = data;
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.userMetadata = userMetadata;
+            this.sseAlgorithm = sseAlgorithm;
+        }
+    }
+
+    private static class PendingUpload {
+
+        final String contentType;
+        final String contentEncoding;
+        final Map<String, String> userMetadata;
+        final String sseAlgorithm;
+        final ConcurrentHashMap<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        PendingUpload(String contentType, String contentEncoding,
+                Map<String, String> userMetadata, String sseAlgorithm) {
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.userMetadata = userMetadata;
+            this.sseAlgorithm = sseAlgorithm;
+        }
+    }
+
+    /*
+     * One request read off a connection and the response written back to it.
+     */
+    private static class Exchange {
+
+        final String method;
+        final String path;
+        final String rawQuery;
+        final Map<String, String> requestHeaders =
+                new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        final Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+        final OutputStream out;
+        byte[] body;
+        boolean closes;
+
+        private Exchange(String method, String target, OutputStream out) throws IOException {
+            try {
+                URI uri = new URI(target);
+                this.method = method;
+                this.path = uri.getPath();
+                this.rawQuery = uri.getRawQuery();
+                this.out = out;
+            } catch (URISyntaxException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        /**
+         * Reads the next request of a connection.
+         *
+         * @return the request, or null if the client closed the connection.
+         */
+        static Exchange read(InputStream in, OutputStream out) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Bad request line " + requestLine);
+            }
+            Exchange exchange = new Exchange(parts[0], parts[1], out);
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                exchange.requestHeaders.put(line.substring(0, colon).trim(),
+                        line.substring(colon + 1).trim());
+            }
+            exchange.closes = "close".equalsIgnoreCase(exchange.getRequestHeader("Connection"));
+
+            if ("100-continue".equalsIgnoreCase(exchange.getRequestHeader("Expect"))) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+            }
+            String length = exchange.getRequestHeader("Content-Length");
+            if ("chunked".equalsIgnoreCase(exchange.getRequestHeader("Transfer-Encoding"))) {
+                exchange.body = readChunked(in);
+            } else {
+                exchange.body = new byte[length != null ? Integer.parseInt(length) : 0];
+                readFully(in, exchange.body, exchange.body.length);
+            }
+            return exchange;
+        }
+
+        String getRequestHeader(String name) {
+            return requestHeaders.get(name);
+        }
+
+        void setHeader(String name, String value) {
+            responseHeaders.put(name, value);
+        }
+
+        /*
+         * Writes the response with the header names exactly as they were set.
+         * A HEAD response announces the length of the body it leaves out.
+         */
+        void send(int status, byte[] data, int offset, int length) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ')
+                    .append(reasonOf(status)).append("\r\n");
+            responseHeaders.put("Content-Length", String.valueOf(length));
+            if (closes) {
+                responseHeaders.put("Connection", "close");
+            }
+            for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue())
+                        .append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            if (data != null && !"HEAD".equals(method)) {
+                out.write(data, offset, length);
+            }
+        }
+
+        private static String reasonOf(int status) {
+            switch (status) {
+                case 200:
+                    return "OK";
+                case 204:
+                    return "No Content";
+                case 206:
+                    return "Partial Content";
+                case 404:
+                    return "Not Found";
+                case 412:
+                    return "Precondition Failed";
+                case 416:
+                    return "Requested Range Not Satisfiable";
+                default:
+                    return "Status";
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    return line.length() > 0 ? line.toString() : null;
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static byte[] readChunked(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String header = readLine(in);
+                if (header == null) {
+                    throw new EOFException();
+                }
+                int semicolon = header.indexOf(';');
+                int size = Integer.parseInt(
+                        (semicolon < 0 ? header : header.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                        // Trailers are not used
+                    }
+                    return body.toByteArray();
+                }
+                byte[] chunk = new byte[size];
+                readFully(in, chunk, size);
+                body.write(chunk);
+                readLine(in);
+            }
+        }
+
+        private static void readFully(InputStream in, byte[] buffer, int length)
+                throws IOException {
+            int position = 0;
+            while (position < length) {
+                int read = in.read(buffer, position, length - position);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                position += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how long a player waits for the first bytes of an object that is
+ * not on the device yet: at the start, as when playback begins, and in the
+ * middle, as when the user seeks. Each invocation gets a new StreamingServer
+ * with nothing on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamingBenchmark {
+
+    private static final String BUCKET = "benchmark";
+    private static final String KEY = "movie.mp4";
+
+    // What a player typically reads before it shows the first frame
+    private static final int FIRST_READ_BYTES = 64 * 1024;
+
+    @Param({
+            "67108864"
+    })
+    public int objectSize;
+
+    @Param({
+            "0", "20"
+    })
+    public long latencyMillis;
+
+    private LocalS3Server s3Server;
+    private AmazonS3Client s3;
+    private File dir;
+    private StreamingServer server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        s3Server = new LocalS3Server(latencyMillis);
+        s3 = s3Server.newClient(new ConnectionSettings().toClientConfiguration());
+        byte[] data = new byte[objectSize];
+        new Random(objectSize).nextBytes(data);
+        s3Server.putObject(BUCKET, KEY, data);
+        dir = File.createTempFile("streams", "");
+        dir.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void startServer() throws IOException {
+        deleteFiles();
+        server = new StreamingServer(s3, BUCKET, dir, 1);
+        server.start();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopServer() {
+        server.stop();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        s3Server.stop();
+        deleteFiles();
+        dir.delete();
+    }
+
+    @Benchmark
+    public int firstBytes() throws IOException {
+        return read(0);
+    }
+
+    @Benchmark
+    public int seek() throws IOException {
+        return read(objectSize / 2);
+    }
+
+    /*
+     * Reads the first bytes from a position the way a player does, with a
+     * Range request that is left open at the end.
+     */
+    private int read(long position) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl(KEY))
+                .openConnection();
+        connection.setRequestProperty("Range", "bytes=" + position + "-");
+        try {
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[FIRST_READ_BYTES];
+            int total = 0;
+            int read;
+            while (total < buffer.length
+                    && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+                total += read;
+            }
+            return total;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Uploads and downloads one object at a time through the TransferEngine, the
+ * path the TransferScheduler takes for large, throttled, compressed and
+ * deduplicated transfers. downloadCached downloads an unchanged object that
+ * is in the ObjectCache. uploadEncrypted and downloadEncrypted encrypt and
+ * decrypt with a ChunkCipher on the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferBenchmark {
+
+    private static final String BUCKET = "benchmark";
+    private static final String DOWNLOAD_KEY = "download";
+    private static final String ENCRYPTED_KEY = "encrypted";
+
+    @Param({
+            "1048576", "16777216", "67108864"
+    })
+    public int objectSize;
+
+    @Param({
+            "0", "20"
+    })
+    public long latencyMillis;
+
+    private LocalS3Server server;
+    private TransferEngine engine;
+    private TransferEngine cachingEngine;
+    private File cacheDir;
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalS3Server(latencyMillis);
+        AmazonS3Client s3 = server.newClient(new ConnectionSettings().toClientConfiguration());
+        engine = new TransferEngine(s3);
+        byte[] key = new byte[32];
+        new Random().nextBytes(key);
+        engine.setEncryptionKey(new SecretKeySpec(key, "AES"));
+        cacheDir = File.createTempFile("objects", "");
+        cacheDir.delete();
+        cachingEngine = new TransferEngine(s3);
+        cachingEngine.setObjectCache(new ObjectCache(cacheDir, Long.MAX_VALUE, Long.MAX_VALUE));
+
+        byte[] data = new byte[objectSize];
+        new Random(objectSize).nextBytes(data);
+        source = File.createTempFile("upload", ".bin");
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        target = File.createTempFile("download", ".bin");
+        server.putObject(BUCKET, DOWNLOAD_KEY, data);
+        run(engine, engine.uploadEncrypted(BUCKET, ENCRYPTED_KEY, new FileUploadSource(source),
+                new UploadOptions()));
+        // Fills the cache
+        run(cachingEngine, cachingEngine.download(BUCKET, DOWNLOAD_KEY, target,
+                new DownloadOptions()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        source.delete();
+        target.delete();
+        File[] cached = cacheDir.listFiles();
+        if (cached != null) {
+            for (File file : cached) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    @Benchmark
+    public void upload(ByteCounter counter) throws Exception {
+        run(engine, engine.upload(BUCKET, "upload", source, new UploadOptions()));
+        counter.addBytes(objectSize);
+    }
+
+    @Benchmark
+    public void download(ByteCounter counter) throws Exception {
+        run(engine, engine.download(BUCKET, DOWNLOAD_KEY, target, new DownloadOptions()));
+        counter.addBytes(objectSize);
+    }
+
+    @Benchmark
+    public void downloadCached(ByteCounter counter) throws Exception {
+        run(cachingEngine, cachingEngine.download(BUCKET, DOWNLOAD_KEY, target,
+                new DownloadOptions()));
+        counter.addBytes(objectSize);
+    }
+
+    @Benchmark
+    public void uploadEncrypted(ByteCounter counter) throws Exception {
+        run(engine, engine.uploadEncrypted(BUCKET, "upload", new FileUploadSource(source),
+                new UploadOptions()));
+        counter.addBytes(objectSize);
+    }
+
+    @Benchmark
+    public void downloadEncrypted(ByteCounter counter) throws Exception {
+        run(engine, engine.download(BUCKET, ENCRYPTED_KEY, target, new DownloadOptions()));
+        counter.addBytes(objectSize);
+    }
+
+    /*
+     * Waits for a transfer and drops its record, so that the engine does not
+     * collect finished transfers over the run.
+     */
+    private void run(TransferEngine engine, EngineTransfer transfer) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        transfer.addTransferListener(new TransferListener() {
+            @Override
+            public void onStateChanged(int id, TransferState state) {
+                if (state == TransferState.COMPLETED || state == TransferState.FAILED
+                        || state == TransferState.CANCELED) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            }
+
+            @Override
+            public void onError(int id, Exception ex) {
+                error[0] = ex;
+            }
+        });
+        if (transfer.getState() != TransferState.COMPLETED) {
+            done.await();
+        }
+        engine.deleteTransferRecord(transfer.getId());
+        if (transfer.getState() != TransferState.COMPLETED) {
+            throw error[0] != null ? error[0]
+                    : new IllegalStateException("Transfer " + transfer.getState());
+        }
+    }
+}
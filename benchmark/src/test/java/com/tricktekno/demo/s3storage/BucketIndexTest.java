@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BucketIndexTest {
+
+    @Test
+    public void fillsFromPages() {
+        BucketIndex index = new BucketIndex();
+        assertEquals(2, index.applyPage(0, page("a", "b"), false));
+        assertEquals(1, index.applyPage(2, page("c"), true));
+        assertKeys(index, "a", "b", "c");
+        assertTrue(index.isComplete());
+    }
+
+    @Test
+    public void keepsUnchangedListing() {
+        BucketIndex index = filled();
+        assertEquals(0, index.applyPage(0, page("a", "b"), false));
+        assertEquals(0, index.applyPage(2, page("c", "d"), true));
+        assertKeys(index, "a", "b", "c", "d");
+    }
+
+    @Test
+    public void emptyPageCoversNoKeys() {
+        BucketIndex index = filled();
+        assertEquals(0, index.applyPage(0, page("a", "b"), false));
+        assertEquals(0, index.applyPage(2, Collections.<BucketIndexEntry>emptyList(), false));
+        assertKeys(index, "a", "b", "c", "d");
+        assertEquals(0, index.applyPage(2, page("c", "d"), true));
+        assertKeys(index, "a", "b", "c", "d");
+    }
+
+    @Test
+    public void emptyLastPageDeletesTheRest() {
+        BucketIndex index = filled();
+        assertEquals(0, index.applyPage(0, page("a", "b"), false));
+        assertEquals(2, index.applyPage(2, Collections.<BucketIndexEntry>emptyList(), true));
+        assertKeys(index, "a", "b");
+    }
+
+    @Test
+    public void reportsChanges() {
+        BucketIndex index = filled();
+        List<BucketIndexEntry> page = new ArrayList<BucketIndexEntry>();
+        page.add(entry("a"));
+        page.add(new BucketIndexEntry("c", 2, "changed", 1));
+        page.add(entry("e"));
+        // b deleted, c changed, d deleted, e inserted
+        assertEquals(4, index.applyPage(0, page, true));
+        assertKeys(index, "a", "c", "e");
+    }
+
+    private static BucketIndex filled() {
+        BucketIndex index = new BucketIndex();
+        index.applyPage(0, page("a", "b", "c", "d"), true);
+        return index;
+    }
+
+    private static List<BucketIndexEntry> page(String... keys) {
+        List<BucketIndexEntry> page = new ArrayList<BucketIndexEntry>();
+        for (String key : keys) {
+            page.add(entry(key));
+        }
+        return page;
+    }
+
+    private static BucketIndexEntry entry(String key) {
+        return new BucketIndexEntry(key, 1, "etag-" + key, 1);
+    }
+
+    private static void assertKeys(BucketIndex index, String... keys) {
+        List<String> actual = new ArrayList<String>();
+        for (int i = 0; i < index.size(); i++) {
+            actual.add(index.get(i).getKey());
+        }
+        assertEquals(Arrays.asList(keys), actual);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+/*
+ * Takes objects stored by CompressedUpload through the SDK client, which
+ * decompresses gzip-encoded bodies on its own.
+ */
+public class CompressedDownloadTest {
+
+    private static final String BUCKET = "test";
+
+    private LocalS3Server server;
+    private AmazonS3Client s3;
+    private TransferEngine engine;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalS3Server(0);
+        s3 = server.newClient(new ConnectionSettings().toClientConfiguration());
+        engine = new TransferEngine(s3);
+        target = File.createTempFile("download", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        target.delete();
+    }
+
+    @Test
+    public void downloadsSinglePartObject() throws Exception {
+        roundTrip("small", text(100 * 1024));
+    }
+
+    @Test
+    public void downloadsMultipartObject() throws Exception {
+        // Random hex halves in size, so this takes several minimum-size parts
+        roundTrip("large", text(24 * 1024 * 1024));
+    }
+
+    @Test
+    public void downloadsEmptyObject() throws Exception {
+        roundTrip("empty", new byte[0]);
+    }
+
+    @Test
+    public void plainGetReturnsUncompressedBody() throws Exception {
+        byte[] data = text(100 * 1024);
+        upload("plain", data);
+        S3Object object = s3.getObject(BUCKET, "plain");
+        assertEquals(CompressedUpload.CONTENT_ENCODING,
+                object.getObjectMetadata().getContentEncoding());
+        assertArrayEquals(data, Transfers.readFully(object.getObjectContent()));
+    }
+
+    private void roundTrip(String key, byte[] data) throws Exception {
+        upload(key, data);
+        Transfers.run(engine.download(BUCKET, key, target, new DownloadOptions()));
+        assertArrayEquals(data, Transfers.readFully(target));
+    }
+
+    private void upload(String key, byte[] data) throws Exception {
+        File source = Transfers.createTempFile(data);
+        try {
+            Transfers.run(engine.uploadCompressed(BUCKET, key, new FileUploadSource(source),
+                    "text/plain", new UploadOptions()));
+        } finally {
+            source.delete();
+        }
+    }
+
+    /*
+     * Random hex digits, which gzip compresses to about half.
+     */
+    private static byte[] text(int length) {
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) Character.forDigit(random.nextInt(16), 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class EncryptedTransferTest {
+
+    private static final String BUCKET = "test";
+    private static final String KEY = "encrypted";
+
+    private LocalS3Server server;
+    private AmazonS3Client s3;
+    private TransferEngine engine;
+    private ExecutorService executor;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalS3Server(0);
+        s3 = server.newClient(new ConnectionSettings().toClientConfiguration());
+        engine = new TransferEngine(s3);
+        byte[] key = new byte[32];
+        new Random().nextBytes(key);
+        engine.setEncryptionKey(new SecretKeySpec(key, "AES"));
+        executor = Executors.newSingleThreadExecutor();
+        target = File.createTempFile("download", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        executor.shutdownNow();
+        target.delete();
+    }
+
+    @Test
+    public void uploadsAndDownloads() throws Exception {
+        byte[] data = random(1024 * 1024 + 1);
+        upload(data, new UploadOptions());
+        Transfers.run(engine.download(BUCKET, KEY, target, new DownloadOptions()));
+        assertArrayEquals(data, Transfers.readFully(target));
+    }
+
+    @Test
+    public void leavesCallerOptionsAlone() throws Exception {
+        UploadOptions options = new UploadOptions();
+        upload(random(1024), options);
+        assertEquals(1, options.getPartAlignment());
+    }
+
+    @Test
+    public void doesNotCachePlaintext() throws Exception {
+        File cacheDir = File.createTempFile("objects", "");
+        cacheDir.delete();
+        ObjectCache cache = new ObjectCache(cacheDir, Long.MAX_VALUE, Long.MAX_VALUE);
+        engine.setObjectCache(cache);
+        try {
+            byte[] data = random(1024);
+            upload(data, new UploadOptions());
+            Transfers.run(engine.download(BUCKET, KEY, target, new DownloadOptions()));
+            assertArrayEquals(data, Transfers.readFully(target));
+            assertNull(cache.get(BUCKET, KEY));
+        } finally {
+            File[] files = cacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void refusesToStream() throws Exception {
+        upload(random(1024 * 1024), new UploadOptions());
+        try {
+            ProgressiveDownload.open(s3, BUCKET, KEY, target, DownloadOptions.MIN_RANGE_SIZE,
+                    executor, 1).close();
+            fail("Streamed an encrypted object");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private void upload(byte[] data, UploadOptions options) throws Exception {
+        File source = Transfers.createTempFile(data);
+        try {
+            Transfers.run(engine.uploadEncrypted(BUCKET, KEY, new FileUploadSource(source),
+                    options));
+        } finally {
+            source.delete();
+        }
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import org.junit.Test;
+
+public class ObjectChecksumsTest {
+
+    private static final String MD5_ETAG = "\"9a0364b9e99bb480dd25e1f0284c8555\"";
+    private static final String MULTIPART_ETAG = "\"0b2e7d5a4f2f4d3e8c1a9b6f7e5d4c3b-3\"";
+
+    @Test
+    public void checksPlainObjects() {
+        assertTrue(ObjectChecksums.isMd5ETag(metadata(MD5_ETAG)));
+        assertFalse(ObjectChecksums.isMd5ETag(metadata(MULTIPART_ETAG)));
+    }
+
+    @Test
+    public void checksSseS3Objects() {
+        ObjectMetadata metadata = metadata(MD5_ETAG);
+        metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        assertTrue(ObjectChecksums.isMd5ETag(metadata));
+    }
+
+    @Test
+    public void skipsSseKmsObjects() {
+        ObjectMetadata metadata = metadata(MD5_ETAG);
+        metadata.setSSEAlgorithm(ObjectMetadata.KMS_SERVER_SIDE_ENCRYPTION);
+        assertFalse(ObjectChecksums.isMd5ETag(metadata));
+    }
+
+    @Test
+    public void skipsSseCObjects() {
+        ObjectMetadata metadata = metadata(MD5_ETAG);
+        metadata.setSSECustomerAlgorithm("AES256");
+        assertFalse(ObjectChecksums.isMd5ETag(metadata));
+
+        metadata = metadata(MD5_ETAG);
+        metadata.setSSECustomerKeyMd5("ZjMxZmRmZDg0NzU3ODkwNw==");
+        assertFalse(ObjectChecksums.isMd5ETag(metadata));
+    }
+
+    @Test
+    public void getsPartSize() {
+        assertEquals(5L * 1024 * 1024, ObjectChecksums.getPartSize(
+                multipartMetadata(12L * 1024 * 1024)));
+    }
+
+    @Test
+    public void ignoresPartSizeThatDoesNotFit() {
+        assertEquals(0, ObjectChecksums.getPartSize(multipartMetadata(20L * 1024 * 1024)));
+    }
+
+    @Test
+    public void ignoresPartSizeOfSseKmsObjects() {
+        ObjectMetadata metadata = multipartMetadata(12L * 1024 * 1024);
+        metadata.setSSEAlgorithm(ObjectMetadata.KMS_SERVER_SIDE_ENCRYPTION);
+        assertEquals(0, ObjectChecksums.getPartSize(metadata));
+    }
+
+    private static ObjectMetadata metadata(String eTag) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", eTag);
+        return metadata;
+    }
+
+    /*
+     * Three parts of 5 MB, the last one shorter.
+     */
+    private static ObjectMetadata multipartMetadata(long length) {
+        ObjectMetadata metadata = metadata(MULTIPART_ETAG);
+        metadata.setContentLength(length);
+        metadata.addUserMetadata(ObjectChecksums.PART_SIZE_METADATA_KEY,
+                String.valueOf(5L * 1024 * 1024));
+        return metadata;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+/*
+ * Transfers objects in a bucket with default SSE-KMS encryption, whose ETags
+ * look like MD5s but are not.
+ */
+public class ServerSideEncryptionTest {
+
+    private static final String BUCKET = "test";
+    private static final long PART_SIZE = UploadOptions.MIN_PART_SIZE;
+
+    private LocalS3Server server;
+    private TransferEngine engine;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalS3Server(0);
+        server.setDefaultEncryption(ObjectMetadata.KMS_SERVER_SIDE_ENCRYPTION);
+        engine = new TransferEngine(server.newClient(
+                new ConnectionSettings().toClientConfiguration()));
+        target = File.createTempFile("download", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        target.delete();
+    }
+
+    @Test
+    public void downloadsSinglePartObject() throws Exception {
+        byte[] data = random(100 * 1024);
+        server.putObject(BUCKET, "single", data);
+        Transfers.run(engine.download(BUCKET, "single", target, new DownloadOptions()));
+        assertArrayEquals(data, Transfers.readFully(target));
+    }
+
+    @Test
+    public void uploadsAndDownloadsMultipartObject() throws Exception {
+        byte[] data = random((int) (2 * PART_SIZE + 1024));
+        File source = Transfers.createTempFile(data);
+        try {
+            Transfers.run(engine.upload(BUCKET, "multipart", source,
+                    new UploadOptions().withPartSize(PART_SIZE)));
+        } finally {
+            source.delete();
+        }
+        Transfers.run(engine.download(BUCKET, "multipart", target, new DownloadOptions()));
+        assertArrayEquals(data, Transfers.readFully(target));
+    }
+
+    @Test
+    public void uploadsAndDownloadsCompressedObject() throws Exception {
+        byte[] data = random(100 * 1024);
+        File source = Transfers.createTempFile(data);
+        try {
+            Transfers.run(engine.uploadCompressed(BUCKET, "compressed",
+                    new FileUploadSource(source), null, new UploadOptions()));
+        } finally {
+            source.delete();
+        }
+        Transfers.run(engine.download(BUCKET, "compressed", target, new DownloadOptions()));
+        assertArrayEquals(data, Transfers.readFully(target));
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
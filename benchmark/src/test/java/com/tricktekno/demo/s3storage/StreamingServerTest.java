@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StreamingServerTest {
+
+    private static final String BUCKET = "test";
+    private static final String KEY = "video.mp4";
+    private static final int CHUNK = (int) Constants.STREAM_CHUNK_SIZE;
+    private static final int LENGTH = 40 * CHUNK;
+
+    private LocalS3Server s3Server;
+    private StreamingServer server;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        s3Server = new LocalS3Server(0);
+        AmazonS3Client s3 = s3Server.newClient(new ConnectionSettings().toClientConfiguration());
+        dir = File.createTempFile("streams", "");
+        dir.delete();
+        server = new StreamingServer(s3, BUCKET, dir, 2);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        s3Server.stop();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void servesRanges() throws Exception {
+        byte[] data = random(1);
+        s3Server.putObject(BUCKET, KEY, data);
+        assertArrayEquals(Arrays.copyOfRange(data, 0, CHUNK), read(0, CHUNK));
+        assertArrayEquals(Arrays.copyOfRange(data, 30 * CHUNK, 31 * CHUNK),
+                read(30 * CHUNK, CHUNK));
+    }
+
+    @Test
+    public void reopensChangedObject() throws Exception {
+        s3Server.putObject(BUCKET, KEY, random(1));
+        read(0, CHUNK);
+
+        byte[] changed = random(2);
+        s3Server.putObject(BUCKET, KEY, changed);
+        try {
+            // A chunk that was not fetched before the change
+            read(30 * CHUNK, CHUNK);
+        } catch (IOException e) {
+            // Expected, as the stream cannot serve the old version
+        }
+        assertArrayEquals(Arrays.copyOfRange(changed, 30 * CHUNK, 31 * CHUNK),
+                read(30 * CHUNK, CHUNK));
+        assertArrayEquals(Arrays.copyOfRange(changed, 0, CHUNK), read(0, CHUNK));
+    }
+
+    /*
+     * Reads a range the way a player does.
+     */
+    private byte[] read(int position, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl(KEY))
+                .openConnection();
+        connection.setRequestProperty("Range",
+                "bytes=" + position + "-" + (position + length - 1));
+        try {
+            if (connection.getResponseCode() != 206) {
+                throw new IOException("Status " + connection.getResponseCode());
+            }
+            byte[] body = Transfers.readFully(connection.getInputStream());
+            if (body.length != length) {
+                throw new IOException("Read " + body.length + " of " + length + " bytes");
+            }
+            return body;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] random(int seed) {
+        byte[] data = new byte[LENGTH];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Helpers for the tests, which run transfers through the TransferEngine
+ * against a LocalS3Server.
+ */
+final class Transfers {
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private Transfers() {
+    }
+
+    /**
+     * Waits for a transfer to finish.
+     *
+     * @return the error the transfer failed with, or null if it completed.
+     * @throws IllegalStateException if the transfer did not finish in time,
+     *             or was paused or canceled.
+     */
+    static Exception await(EngineTransfer transfer) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        transfer.addTransferListener(new TransferListener() {
+            @Override
+            public void onStateChanged(int id, TransferState state) {
+                if (state == TransferState.COMPLETED || state == TransferState.FAILED
+                        || state == TransferState.CANCELED) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            }
+
+            @Override
+            public void onError(int id, Exception ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        TransferState state = transfer.getState();
+        if (state != TransferState.COMPLETED && state != TransferState.FAILED
+                && !done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Transfer " + transfer.getId() + " timed out");
+        }
+        state = transfer.getState();
+        if (state == TransferState.COMPLETED) {
+            return null;
+        }
+        if (state != TransferState.FAILED) {
+            throw new IllegalStateException("Transfer " + state);
+        }
+        return error[0] != null ? error[0] : new IllegalStateException("Transfer failed");
+    }
+
+    /**
+     * Waits for a transfer and fails if it did not complete.
+     */
+    static void run(EngineTransfer transfer) throws Exception {
+        Exception error = await(transfer);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    static File createTempFile(byte[] data) throws IOException {
+        File file = File.createTempFile("test", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        return readFully(new FileInputStream(file));
+    }
+
+    /**
+     * Reads a stream to its end and closes it.
+     */
+    static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+
+public class UploadDeduplicatorTest {
+
+    private static final String BUCKET = "test";
+
+    private static final UploadDeduplicator.StopSignal NEVER_STOP =
+            new UploadDeduplicator.StopSignal() {
+                @Override
+                public boolean isStopRequested() {
+                    return false;
+                }
+            };
+
+    private LocalS3Server server;
+    private File indexFile;
+    private File source;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalS3Server(0);
+        indexFile = File.createTempFile("hashes", ".txt");
+        indexFile.delete();
+        source = Transfers.createTempFile("content".getBytes("UTF-8"));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        indexFile.delete();
+        source.delete();
+    }
+
+    @Test
+    public void hashesSource() throws Exception {
+        String md5 = newDeduplicator(newClient()).getContentMd5(new FileUploadSource(source),
+                NEVER_STOP);
+        assertEquals(BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(
+                "content".getBytes("UTF-8"))), md5);
+    }
+
+    @Test
+    public void stopsHashing() throws Exception {
+        try {
+            newDeduplicator(newClient()).getContentMd5(new FileUploadSource(source),
+                    new UploadDeduplicator.StopSignal() {
+                        @Override
+                        public boolean isStopRequested() {
+                            return true;
+                        }
+                    });
+            fail("Hashing did not stop");
+        } catch (InterruptedIOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void findsUploadedContent() throws Exception {
+        AmazonS3Client s3 = newClient();
+        UploadDeduplicator deduplicator = newDeduplicator(s3);
+        String md5 = deduplicator.getContentMd5(new FileUploadSource(source), NEVER_STOP);
+        assertFalse(deduplicator.isUploaded(BUCKET, "key", md5));
+        server.putObject(BUCKET, "key", Transfers.readFully(source));
+        assertTrue(deduplicator.isUploaded(BUCKET, "key", md5));
+    }
+
+    @Test
+    public void uploadsWhenMetadataIsForbidden() throws Exception {
+        AmazonS3Client s3 = new AmazonS3Client(new BasicAWSCredentials("key", "secret")) {
+            @Override
+            public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+                AmazonServiceException e = new AmazonServiceException("Access Denied");
+                e.setStatusCode(403);
+                throw e;
+            }
+        };
+        assertFalse(newDeduplicator(s3).isUploaded(BUCKET, "key",
+                "9a0364b9e99bb480dd25e1f0284c8555"));
+    }
+
+    private AmazonS3Client newClient() {
+        return server.newClient(new ConnectionSettings().toClientConfiguration());
+    }
+
+    private UploadDeduplicator newDeduplicator(AmazonS3Client s3) {
+        return new UploadDeduplicator(s3, new ContentHashIndex(indexFile, 10));
+    }
+}
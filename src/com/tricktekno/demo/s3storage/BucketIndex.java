@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A local copy of the bucket listing, sorted in S3 key order, that can be
+ * persisted to disk and brought up to date one listing page at a time.
+ */
+public class BucketIndex {
+
+    private static final int MAGIC = 0x53334958; // "S3IX"
+    private static final int VERSION = 1;
+
+    private final ArrayList<BucketIndexEntry> entries;
+
+    // Whether the last reconcile reached the end of the bucket
+    private boolean complete;
+
+    // Whether the index changed since it was loaded or saved
+    private boolean dirty;
+
+    public BucketIndex() {
+        this(new ArrayList<BucketIndexEntry>(), false);
+    }
+
+    private BucketIndex(ArrayList<BucketIndexEntry> entries, boolean complete) {
+        this.entries = entries;
+        this.complete = complete;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public BucketIndexEntry get(int position) {
+        return entries.get(position);
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Reconciles the entries covered by one listing page with the page. The
+     * page covers every key after the previous page up to its own last key,
+     * or up to the end of the bucket if it is the last page. An empty page
+     * that is not the last one covers no keys. Unchanged entries are kept as
+     * they are.
+     *
+     * @param from the position of the first entry covered by the page, i.e.
+     *            the total size of all previous pages.
+     * @param page the entries of the page, in listing order.
+     * @param lastPage whether the listing has no further pages.
+     * @return the number of entries inserted, deleted or changed.
+     */
+    public int applyPage(int from, List<BucketIndexEntry> page, boolean lastPage) {
+        int end;
+        if (lastPage) {
+            end = entries.size();
+        } else if (page.isEmpty()) {
+            end = from;
+        } else {
+            String lastKey = page.get(page.size() - 1).getKey();
+            end = from;
+            while (end < entries.size()
+                    && BucketIndexEntry.compareKeys(entries.get(end).getKey(), lastKey) <= 0) {
+                end++;
+            }
+        }
+
+        // Merge the old range with the page, reusing unchanged entries
+        List<BucketIndexEntry> merged = new ArrayList<BucketIndexEntry>(page.size());
+        int changes = 0;
+        int i = from;
+        int j = 0;
+        while (i < end || j < page.size()) {
+            if (j == page.size()) {
+                changes++; // deleted
+                i++;
+                continue;
+            }
+            BucketIndexEntry fresh = page.get(j);
+            if (i == end) {
+                changes++; // inserted
+                merged.add(fresh);
+                j++;
+                continue;
+            }
+            BucketIndexEntry cached = entries.get(i);
+            int cmp = BucketIndexEntry.compareKeys(cached.getKey(), fresh.getKey());
+            if (cmp < 0) {
+                changes++; // deleted
+                i++;
+            } else if (cmp > 0) {
+                changes++; // inserted
+                merged.add(fresh);
+                j++;
+            } else {
+                if (cached.sameContent(fresh)) {
+                    merged.add(cached);
+                } else {
+                    changes++; // changed
+                    merged.add(fresh);
+                }
+                i++;
+                j++;
+            }
+        }
+
+        if (changes > 0) {
+            List<BucketIndexEntry> range = entries.subList(from, end);
+            range.clear();
+            range.addAll(merged);
+            dirty = true;
+        }
+        if (lastPage && !complete) {
+            complete = true;
+            dirty = true;
+        }
+        return changes;
+    }
+
+    /**
+     * Loads an index from disk. A missing or unreadable file yields an empty
+     * index.
+     *
+     * @param file the file the index was saved to.
+     * @return the loaded index.
+     */
+    public static BucketIndex load(File file) {
+        if (!file.isFile()) {
+            return new BucketIndex();
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return new BucketIndex();
+            }
+            boolean complete = in.readBoolean();
+            int count = in.readInt();
+            ArrayList<BucketIndexEntry> entries = new ArrayList<BucketIndexEntry>(count);
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                String eTag = in.readUTF();
+                long lastModified = in.readLong();
+                entries.add(new BucketIndexEntry(key, size, eTag.length() == 0 ? null : eTag,
+                        lastModified));
+            }
+            return new BucketIndex(entries, complete);
+        } catch (IOException e) {
+            return new BucketIndex();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the index to disk. The file is replaced atomically so that a
+     * crash mid-write leaves the previous index intact.
+     *
+     * @param file the file to save the index to.
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(complete);
+            out.writeInt(entries.size());
+            for (BucketIndexEntry entry : entries) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getSize());
+                out.writeUTF(entry.getETag() == null ? "" : entry.getETag());
+                out.writeLong(entry.getLastModified());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Returns a copy of the index that can be saved off the main thread while
+     * the original keeps changing.
+     */
+    public BucketIndex snapshot() {
+        return new BucketIndex(new ArrayList<BucketIndexEntry>(entries), complete);
+    }
+
+    /**
+     * Marks the index as saved, e.g. after a snapshot of it was written.
+     */
+    public void markClean() {
+        dirty = false;
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
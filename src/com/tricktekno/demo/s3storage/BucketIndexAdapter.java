@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/*
+ * Binds the rows of a KeyIndex listing to bucket_item views: the subfolders,
+ * then the objects, each named relative to the folder being shown. Images
+ * get a thumbnail, which is cancelled when their row is recycled.
+ */
+public class BucketIndexAdapter extends BaseAdapter implements AbsListView.RecyclerListener {
+
+    private final LayoutInflater inflater;
+    private final ThumbnailLoader thumbnails;
+    private KeyIndex index;
+    private KeyIndex.Listing listing;
+
+    public BucketIndexAdapter(Context context, ThumbnailLoader thumbnails) {
+        this.inflater = LayoutInflater.from(context);
+        this.thumbnails = thumbnails;
+    }
+
+    public void setListing(KeyIndex index, KeyIndex.Listing listing) {
+        this.index = index;
+        this.listing = listing;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return listing == null ? 0 : listing.size();
+    }
+
+    public boolean isFolder(int position) {
+        return position < listing.getFolderCount();
+    }
+
+    /**
+     * Gets a folder row as its full prefix, or an object row as its
+     * BucketIndexEntry.
+     */
+    @Override
+    public Object getItem(int position) {
+        if (isFolder(position)) {
+            return listing.getFolder(position);
+        }
+        return index.get(listing.getObjectPosition(position - listing.getFolderCount()));
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.bucket_item, parent, false);
+            holder = new ViewHolder();
+            holder.thumbnail = (ImageView) convertView.findViewById(R.id.thumbnail);
+            holder.key = (TextView) convertView.findViewById(R.id.key);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        String name;
+        if (isFolder(position)) {
+            name = (String) getItem(position);
+            hideThumbnail(holder);
+        } else {
+            BucketIndexEntry entry = (BucketIndexEntry) getItem(position);
+            name = entry.getKey();
+            if (ThumbnailLoader.isImage(name)) {
+                int thumbnail = index.indexOf(Constants.THUMBNAIL_PREFIX + name);
+                holder.thumbnail.setVisibility(View.VISIBLE);
+                thumbnails.load(entry, thumbnail < 0 ? null : index.get(thumbnail).getKey(),
+                        holder.thumbnail);
+            } else {
+                hideThumbnail(holder);
+            }
+        }
+        holder.key.setText(name.substring(listing.getPrefix().length()));
+        return convertView;
+    }
+
+    @Override
+    public void onMovedToScrapHeap(View view) {
+        thumbnails.cancel(((ViewHolder) view.getTag()).thumbnail);
+    }
+
+    private void hideThumbnail(ViewHolder holder) {
+        thumbnails.cancel(holder.thumbnail);
+        holder.thumbnail.setImageDrawable(null);
+        holder.thumbnail.setVisibility(View.GONE);
+    }
+
+    private static class ViewHolder {
+        ImageView thumbnail;
+        TextView key;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/*
+ * An immutable summary of one object in the bucket, as kept in the local
+ * bucket index.
+ */
+public class BucketIndexEntry {
+
+    private final String key;
+    private final long size;
+    private final String eTag;
+    private final long lastModified;
+
+    public BucketIndexEntry(String key, long size, String eTag, long lastModified) {
+        this.key = key;
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public static BucketIndexEntry fromSummary(S3ObjectSummary summary) {
+        return new BucketIndexEntry(summary.getKey(), summary.getSize(), summary.getETag(),
+                summary.getLastModified() == null ? 0 : summary.getLastModified().getTime());
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Checks whether this entry describes the same content as another entry
+     * for the same key.
+     *
+     * @param other the entry to compare with.
+     * @return true if size, ETag and last-modified time all match.
+     */
+    public boolean sameContent(BucketIndexEntry other) {
+        return size == other.size
+                && lastModified == other.lastModified
+                && (eTag == null ? other.eTag == null : eTag.equals(other.eTag));
+    }
+
+    /**
+     * Compares two keys in the order S3 lists them, i.e. by UTF-8 bytes. This
+     * is the same as comparing code points, which String.compareTo does not do
+     * for characters outside the Basic Multilingual Plane.
+     */
+    public static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return ca < cb ? -1 : 1;
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/*
+ * An SSL socket factory that sets the buffer sizes of the sockets it creates,
+ * and of the plain sockets it layers TLS over, before the handshake.
+ */
+class BufferSizingSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+
+    /**
+     * @param delegate creates the sockets.
+     * @param sendBufferSize the send buffer size, or
+     *            ConnectionSettings.DEFAULT_BUFFER_SIZE.
+     * @param receiveBufferSize the receive buffer size, or
+     *            ConnectionSettings.DEFAULT_BUFFER_SIZE.
+     */
+    BufferSizingSocketFactory(SSLSocketFactory delegate, int sendBufferSize,
+            int receiveBufferSize) {
+        this.delegate = delegate;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return size(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+            throws IOException {
+        size(s);
+        return size(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return size(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return size(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return size(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+            int localPort) throws IOException {
+        return size(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket size(Socket socket) throws SocketException {
+        if (sendBufferSize != ConnectionSettings.DEFAULT_BUFFER_SIZE) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize != ConnectionSettings.DEFAULT_BUFFER_SIZE) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        return socket;
+    }
+}
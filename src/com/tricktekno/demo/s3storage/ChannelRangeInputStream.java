@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads a fixed range of a FileChannel with positional reads, so several of
+ * these streams can share one channel without moving its position.
+ */
+public class ChannelRangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+
+    private long position;
+    private long mark;
+
+    // Reused for single-byte reads
+    private final ByteBuffer single = ByteBuffer.allocate(1);
+
+    public ChannelRangeInputStream(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.start = offset;
+        this.end = offset + length;
+        this.position = offset;
+        this.mark = offset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        single.clear();
+        int read = read(single);
+        return read <= 0 ? -1 : single.get(0) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    private int read(ByteBuffer buffer) throws IOException {
+        long remaining = end - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (buffer.remaining() > remaining) {
+            buffer.limit(buffer.position() + (int) remaining);
+        }
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+            throw new IOException("Source ended " + (end - position) + " bytes early");
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    /**
+     * Leaves the channel open; it belongs to the UploadSource.
+     */
+    @Override
+    public void close() {
+    }
+}
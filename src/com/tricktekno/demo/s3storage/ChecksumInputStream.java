@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Computes the CRC-32C and, optionally, the MD5 of transfer data as it is
+ * read, so that checking it costs no extra pass over the data. Mark and
+ * reset are passed through, and reset also rewinds the checksums, so SDK
+ * retries that re-read the stream still get the checksums of the data sent.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    private final Crc32c crc = new Crc32c();
+    private MessageDigest md5;
+    private long count;
+
+    // The checksums at the mark
+    private long markCrc;
+    private MessageDigest markMd5;
+    private long markCount;
+
+    /**
+     * @param in the stream to read.
+     * @param withMd5 whether to compute the MD5 as well as the CRC-32C.
+     */
+    public ChecksumInputStream(InputStream in, boolean withMd5) {
+        super(in);
+        if (withMd5) {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        markCrc = crc.getValue();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            crc.update(b);
+            if (md5 != null) {
+                md5.update((byte) b);
+            }
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            crc.update(buffer, offset, read);
+            if (md5 != null) {
+                md5.update(buffer, offset, read);
+            }
+            count += read;
+        }
+        return read;
+    }
+
+    /**
+     * Skipped bytes would be missing from the checksums, so they are read.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8 * 1024)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        super.mark(readLimit);
+        markCrc = crc.getValue();
+        markCount = count;
+        markMd5 = null;
+        if (md5 != null) {
+            try {
+                markMd5 = (MessageDigest) md5.clone();
+            } catch (CloneNotSupportedException e) {
+                // Reset then fails, as if marks were not supported
+            }
+        }
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (md5 != null && markMd5 == null) {
+            throw new IOException("Unable to rewind the MD5");
+        }
+        super.reset();
+        crc.setValue(markCrc);
+        count = markCount;
+        if (md5 != null) {
+            try {
+                md5 = (MessageDigest) markMd5.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IOException("Unable to rewind the MD5");
+            }
+        }
+    }
+
+    /**
+     * Gets the CRC-32C of what was read.
+     */
+    public long getCrc32c() {
+        return crc.getValue();
+    }
+
+    /**
+     * Gets the MD5 of what was read, or null if it is not computed. Call once,
+     * at the end.
+     */
+    public byte[] getMd5() {
+        return md5 != null ? md5.digest() : null;
+    }
+
+    /**
+     * Gets the number of bytes read.
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.Base64;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Encrypts objects with AES-GCM in chunks that are encrypted on their own, so
+ * that the parts of an upload and the ranges of a download can be encrypted
+ * and decrypted on different cores, as they are sent and fetched. Each chunk
+ * is stored as a nonce, the ciphertext and the GCM tag, so a stored chunk is
+ * never more than 28 bytes larger than its plaintext.
+ *
+ * Each object gets its own random data key, stored in its user metadata
+ * encrypted with the key of the device. Each chunk gets a new random nonce
+ * every time it is encrypted, so a part that is sent again never reuses one.
+ * The nonce also holds the index of the chunk and whether it is the last
+ * one. The tag covers the nonce, so chunks cannot be reordered, dropped from
+ * the end or moved between objects without failing to decrypt.
+ *
+ * Instances are immutable and can be shared by threads. Each thread encrypts
+ * with its own Cipher from newCipher().
+ */
+public class ChunkCipher {
+
+    // User metadata keys, sent as x-amz-meta-encryption-key and
+    // x-amz-meta-encryption-chunk-size
+    public static final String KEY_METADATA_KEY = "encryption-key";
+    public static final String CHUNK_SIZE_METADATA_KEY = "encryption-chunk-size";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_BYTES = 32;
+    private static final int TAG_BITS = 128;
+
+    // Random bytes, then the chunk index with the top bit set on the last
+    // chunk
+    static final int NONCE_BYTES = 12;
+    private static final int RANDOM_NONCE_BYTES = 8;
+    private static final int LAST_CHUNK_FLAG = 0x80000000;
+
+    // Bytes a stored chunk has on top of its plaintext
+    public static final int OVERHEAD = NONCE_BYTES + TAG_BITS / 8;
+
+    // Chunk indexes must fit in the nonce without the flag
+    private static final long MAX_CHUNKS = 1L << 31;
+
+    // Each stream holds a chunk in memory
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey dataKey;
+    private final int chunkSize;
+
+    // The data key encrypted with the key of the device, as stored
+    private final String storedKey;
+
+    private ChunkCipher(SecretKey dataKey, int chunkSize, String storedKey) {
+        this.dataKey = dataKey;
+        this.chunkSize = chunkSize;
+        this.storedKey = storedKey;
+    }
+
+    /**
+     * Creates a cipher with a new random data key, for one object.
+     *
+     * @param masterKey the key of the device, which the data key is stored
+     *            encrypted with.
+     * @param chunkSize the plaintext bytes in each chunk.
+     */
+    public static ChunkCipher create(SecretKey masterKey, int chunkSize) {
+        byte[] key = new byte[KEY_BYTES];
+        RANDOM.nextBytes(key);
+        byte[] stored = new byte[OVERHEAD + KEY_BYTES];
+        RANDOM.nextBytes(stored);
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, parameters(stored, 0));
+            cipher.doFinal(key, 0, KEY_BYTES, stored, NONCE_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return new ChunkCipher(new SecretKeySpec(key, "AES"), chunkSize,
+                Base64.encodeAsString(stored));
+    }
+
+    /**
+     * Checks whether an object was stored encrypted by a ChunkCipher.
+     */
+    public static boolean isEncrypted(ObjectMetadata metadata) {
+        return metadata.getUserMetaDataOf(KEY_METADATA_KEY) != null;
+    }
+
+    /**
+     * Gets the cipher an object was encrypted with.
+     *
+     * @param metadata the metadata of the object.
+     * @param masterKey the key of the device that encrypted it.
+     * @return the cipher, or null if the object is not encrypted.
+     * @throws IOException if the data key cannot be decrypted with the given
+     *             key, or the metadata is damaged.
+     */
+    public static ChunkCipher fromMetadata(ObjectMetadata metadata, SecretKey masterKey)
+            throws IOException {
+        String wrapped = metadata.getUserMetaDataOf(KEY_METADATA_KEY);
+        if (wrapped == null) {
+            return null;
+        }
+        int chunkSize;
+        try {
+            chunkSize = Integer.parseInt(metadata.getUserMetaDataOf(CHUNK_SIZE_METADATA_KEY));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid encryption chunk size");
+        }
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid encryption chunk size " + chunkSize);
+        }
+        byte[] stored = Base64.decode(wrapped);
+        if (stored.length != OVERHEAD + KEY_BYTES) {
+            throw new IOException("Invalid encryption key");
+        }
+        byte[] key;
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, masterKey, parameters(stored, 0));
+            key = cipher.doFinal(stored, NONCE_BYTES, stored.length - NONCE_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt the key of the object, "
+                    + "it was encrypted on another device");
+        }
+        return new ChunkCipher(new SecretKeySpec(key, "AES"), chunkSize, wrapped);
+    }
+
+    /**
+     * Stores the encrypted data key and the chunk size in the metadata of an
+     * object.
+     */
+    public void addTo(ObjectMetadata metadata) {
+        metadata.addUserMetadata(KEY_METADATA_KEY, storedKey);
+        metadata.addUserMetadata(CHUNK_SIZE_METADATA_KEY, String.valueOf(chunkSize));
+    }
+
+    /**
+     * Reads the key of the device from a file, creating a random one the
+     * first time. The file should be private to the app.
+     *
+     * @throws IOException if the file cannot be read or written.
+     */
+    public static SecretKey loadOrCreateKey(File file) throws IOException {
+        byte[] key = new byte[KEY_BYTES];
+        if (file.isFile()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int total = 0;
+                int read;
+                while (total < key.length
+                        && (read = in.read(key, total, key.length - total)) != -1) {
+                    total += read;
+                }
+                if (total != key.length || in.read() != -1) {
+                    throw new IOException("Invalid key file " + file);
+                }
+            } finally {
+                in.close();
+            }
+            return new SecretKeySpec(key, "AES");
+        }
+
+        RANDOM.nextBytes(key);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(key);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to create " + file);
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Gets the size of a stored chunk, other than a shorter last one.
+     */
+    public long getEncryptedChunkSize() {
+        return chunkSize + OVERHEAD;
+    }
+
+    /**
+     * Gets the number of chunks of a plaintext.
+     */
+    public long getChunkCount(long plainLength) {
+        return Math.max(1, (plainLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Gets the stored size of a plaintext.
+     *
+     * @throws IllegalArgumentException if it has too many chunks.
+     */
+    public long getEncryptedLength(long plainLength) {
+        long chunks = getChunkCount(plainLength);
+        if (chunks > MAX_CHUNKS) {
+            throw new IllegalArgumentException("Too large to encrypt: " + plainLength);
+        }
+        return plainLength + chunks * OVERHEAD;
+    }
+
+    /**
+     * Gets the plaintext size of stored data that starts at the beginning of
+     * a chunk. Also maps offsets in the stored object that are on a chunk
+     * boundary to offsets in the plaintext.
+     */
+    public long getPlainLength(long encryptedLength) {
+        long chunks = (encryptedLength + getEncryptedChunkSize() - 1) / getEncryptedChunkSize();
+        return Math.max(0, encryptedLength - chunks * OVERHEAD);
+    }
+
+    /**
+     * Rounds a size up to a whole number of stored chunks, e.g. so that the
+     * parts of an upload or the ranges of a download can be encrypted on
+     * their own.
+     */
+    public long alignToChunks(long size) {
+        long chunk = getEncryptedChunkSize();
+        return Math.max(1, (size + chunk - 1) / chunk) * chunk;
+    }
+
+    /**
+     * Creates a Cipher for one thread to encrypt or decrypt with.
+     */
+    Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encrypts one chunk.
+     *
+     * @param cipher a Cipher from newCipher().
+     * @param index the index of the chunk in the object.
+     * @param last whether it is the last chunk of the object.
+     * @param in the plaintext.
+     * @param offset where the plaintext starts in in.
+     * @param length the plaintext bytes, at most the chunk size.
+     * @param out receives the stored chunk, length + OVERHEAD bytes.
+     * @return the size of the stored chunk.
+     */
+    int encrypt(Cipher cipher, long index, boolean last, byte[] in, int offset, int length,
+            byte[] out) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        int tail = (int) index | (last ? LAST_CHUNK_FLAG : 0);
+        for (int i = 0; i < 4; i++) {
+            nonce[RANDOM_NONCE_BYTES + i] = (byte) (tail >>> (24 - 8 * i));
+        }
+        System.arraycopy(nonce, 0, out, 0, NONCE_BYTES);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey, parameters(nonce, 0));
+            return NONCE_BYTES + cipher.doFinal(in, offset, length, out, NONCE_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt chunk " + index + ": " + e);
+        }
+    }
+
+    /**
+     * Decrypts and authenticates one chunk.
+     *
+     * @param cipher a Cipher from newCipher().
+     * @param index the index the chunk must have in the object.
+     * @param last whether it must be the last chunk of the object.
+     * @param in the stored chunk.
+     * @param length the size of the stored chunk.
+     * @param out receives the plaintext, length - OVERHEAD bytes.
+     * @return the plaintext bytes.
+     * @throws IOException if the chunk was damaged or is not the one
+     *             expected.
+     */
+    int decrypt(Cipher cipher, long index, boolean last, byte[] in, int length, byte[] out)
+            throws IOException {
+        if (length < OVERHEAD) {
+            throw new IOException("Chunk " + index + " is truncated");
+        }
+        int tail = 0;
+        for (int i = 0; i < 4; i++) {
+            tail = tail << 8 | in[RANDOM_NONCE_BYTES + i] & 0xff;
+        }
+        if (tail != ((int) index | (last ? LAST_CHUNK_FLAG : 0))) {
+            throw new IOException("Chunk " + index + " is out of place");
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, dataKey, parameters(in, 0));
+            return cipher.doFinal(in, NONCE_BYTES, length - NONCE_BYTES, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + index + " failed authentication");
+        }
+    }
+
+    /*
+     * GCMParameterSpec only exists from API 19. Before that, the provider
+     * takes the nonce as an IvParameterSpec and uses 128-bit tags.
+     */
+    private static AlgorithmParameterSpec parameters(byte[] nonce, int offset) {
+        try {
+            return new GCMParameterSpec(TAG_BITS, nonce, offset, NONCE_BYTES);
+        } catch (NoClassDefFoundError e) {
+            return new IvParameterSpec(nonce, offset, NONCE_BYTES);
+        }
+    }
+}
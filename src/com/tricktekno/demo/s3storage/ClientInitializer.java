@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Builds the S3 client, TransferUtility, TransferEngine and TransferScheduler
+ * on a background thread when the app starts, so that SDK class loading and
+ * setup stay off the main thread. Once they are built, the Cognito
+ * credentials are fetched and cached and the connection pool is warmed up,
+ * which the clients do not wait for. Activities render right away and are
+ * called back on the main thread once the clients can be used.
+ */
+public class ClientInitializer {
+
+    private static final String TAG = "ClientInitializer";
+
+    /*
+     * Notified on the main thread once the clients are built.
+     */
+    public interface Callback {
+        void onClientsReady();
+    }
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final FutureTask<Void> clients;
+
+    // Only touched on the main thread
+    private boolean ready;
+    private final List<Callback> pending = new ArrayList<Callback>();
+
+    public ClientInitializer(Context context) {
+        this.context = context.getApplicationContext();
+        this.clients = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                // Builds everything the scheduler depends on
+                Util.getTransferScheduler(ClientInitializer.this.context);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Starts initializing on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initialize();
+            }
+        }, "client-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets a future that completes once the clients are built, for code that
+     * runs off the main thread and may block.
+     */
+    public Future<Void> getClients() {
+        return clients;
+    }
+
+    /**
+     * Calls back once the clients are built, right away if they are. Must be
+     * called on the main thread; a callback that is already waiting is not
+     * added again.
+     */
+    public void whenReady(Callback callback) {
+        if (ready) {
+            callback.onClientsReady();
+        } else if (!pending.contains(callback)) {
+            pending.add(callback);
+        }
+    }
+
+    /**
+     * Drops a callback that is still waiting, e.g. when its activity pauses.
+     * Must be called on the main thread.
+     */
+    public void cancel(Callback callback) {
+        pending.remove(callback);
+    }
+
+    private void initialize() {
+        clients.run();
+        try {
+            clients.get();
+        } catch (ExecutionException e) {
+            // The activities build the clients themselves and fail visibly
+            Log.e(TAG, "Unable to initialize the clients", e.getCause());
+        } catch (InterruptedException e) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ready = true;
+                List<Callback> callbacks = new ArrayList<Callback>(pending);
+                pending.clear();
+                for (Callback callback : callbacks) {
+                    callback.onClientsReady();
+                }
+            }
+        });
+
+        Util.prefetchCredentials(context);
+        Util.warmUpConnections(context);
+    }
+}
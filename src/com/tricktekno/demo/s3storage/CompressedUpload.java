@@ -0,0 +1,412 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Uploads a source gzip-compressed, with Content-Encoding set, as a multipart
+ * upload. The source is compressed as it is read and the compressed bytes are
+ * cut into parts in memory, so no compressed copy is written to disk. Every
+ * part in flight and the one being filled hold a buffer of the part size.
+ *
+ * Compression is deterministic, so a resumed upload compresses the source
+ * again from the start but only sends the parts that are still missing.
+ *
+ * As with MultipartUpload, the SDK checks each part against its ETag and the
+ * completed object is checked against the parts. The CRC-32C of the source is
+ * computed as it is read for compression.
+ */
+public class CompressedUpload extends EngineTransfer {
+
+    public static final String CONTENT_ENCODING = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final Executor partExecutor;
+    private final UploadOptions options;
+    private final UploadSource source;
+    private final String contentType;
+
+    // Kept across pause and resume; only touched by the running transfer
+    private String uploadId;
+    private final Map<Integer, PartETag> partETags = new TreeMap<Integer, PartETag>();
+
+    // Skips uploads whose content is stored under the key already, or null
+    private volatile UploadDeduplicator deduplicator;
+    private String contentMd5;
+
+    // CRC-32C of the uncompressed content, or -1 if not known
+    private volatile long crc32c = -1;
+
+    // State of the current run
+    private CompletionService<PartETag> completionService;
+    private int inFlight;
+    private Exception failure;
+    // Source offset at the end of each part, and how many parts from the
+    // start are done, for progress
+    private final List<Long> partEnds = new ArrayList<Long>();
+    private final List<Boolean> partsDone = new ArrayList<Boolean>();
+    private int donePrefix;
+
+    CompressedUpload(int id, AmazonS3 s3, String bucket, String key, UploadSource source,
+            String contentType, UploadOptions options, Executor partExecutor,
+            TokenBucket sharedBandwidth, CongestionController congestion) {
+        super(id, TransferType.UPLOAD, bucket, key, fileOf(source), partExecutor,
+                sharedBandwidth, congestion);
+        this.s3 = s3;
+        this.partExecutor = partExecutor;
+        this.options = options;
+        this.source = source;
+        this.contentType = contentType;
+    }
+
+    private static File fileOf(UploadSource source) {
+        return source instanceof FileUploadSource ? ((FileUploadSource) source).getFile() : null;
+    }
+
+    void setDeduplicator(UploadDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public UploadOptions getOptions() {
+        return options;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets the CRC-32C of the uploaded content before compression.
+     *
+     * @return the CRC-32C, or -1 if the upload has not completed or was
+     *         skipped as a duplicate.
+     */
+    public long getCrc32c() {
+        return crc32c;
+    }
+
+    @Override
+    public String getAbsoluteFilePath() {
+        return source.getDisplayName();
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        try {
+            upload();
+        } finally {
+            // Reopened if the upload is resumed
+            source.close();
+        }
+    }
+
+    private void upload() throws Exception {
+        long length = source.getLength();
+        setBytesTotal(length);
+        // Progress is credited again as the parts are produced
+        addBytesTransferred(-getBytesTransferred());
+
+        if (uploadId == null && deduplicator != null) {
+            contentMd5 = deduplicator.getContentMd5(source,
+                    new UploadDeduplicator.StopSignal() {
+                        @Override
+                        public boolean isStopRequested() {
+                            return CompressedUpload.this.isStopRequested();
+                        }
+                    });
+            checkNotStopped();
+            if (deduplicator.isUploaded(getBucket(), getKey(), contentMd5)) {
+                // Nothing to send
+                addBytesTransferred(length - getBytesTransferred());
+                return;
+            }
+        }
+
+        long partSize = options.getPartSize(length);
+        if (uploadId == null) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentEncoding(CONTENT_ENCODING);
+            // Lets downloads check the compressed bytes part by part
+            metadata.addUserMetadata(ObjectChecksums.PART_SIZE_METADATA_KEY,
+                    String.valueOf(partSize));
+            if (contentMd5 != null) {
+                metadata.addUserMetadata(UploadDeduplicator.MD5_METADATA_KEY, contentMd5);
+            }
+            if (contentType != null) {
+                metadata.setContentType(contentType);
+            }
+            uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(getBucket(),
+                    getKey()).withObjectMetadata(metadata)).getUploadId();
+        }
+
+        completionService = new ExecutorCompletionService<PartETag>(partExecutor);
+        inFlight = 0;
+        failure = null;
+        partEnds.clear();
+        partsDone.clear();
+        donePrefix = 0;
+
+        PartWriter parts = new PartWriter((int) partSize);
+        ChecksumInputStream in = new ChecksumInputStream(source.openRange(0, length), false);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(parts, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long offset = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkNotStopped();
+                gzip.write(buffer, 0, read);
+                offset += read;
+                submitReady(parts, offset, false);
+                if (failure != null) {
+                    break;
+                }
+            }
+            if (failure == null) {
+                gzip.finish();
+                parts.flushLast();
+                submitReady(parts, offset, true);
+            }
+        } finally {
+            in.close();
+            // Let the parts in flight finish either way
+            while (inFlight > 0) {
+                takeCompleted();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        checkNotStopped();
+
+        List<PartETag> uploaded = new ArrayList<PartETag>(partETags.values());
+        CompleteMultipartUploadResult result = s3.completeMultipartUpload(
+                new CompleteMultipartUploadRequest(getBucket(), getKey(), uploadId, uploaded));
+        ObjectChecksums.verifyMultipartUpload(getKey(), result, uploaded);
+        crc32c = in.getCrc32c();
+    }
+
+    /*
+     * Sends the parts the compressor filled, waiting for a free slot when the
+     * configured number of parts is in flight. Parts uploaded by an earlier
+     * run are skipped.
+     */
+    private void submitReady(PartWriter parts, long offset, boolean finished)
+            throws Exception {
+        byte[] part;
+        while ((part = parts.poll()) != null) {
+            int partNumber = partEnds.size() + 1;
+            boolean last = finished && parts.isEmpty();
+            // Approximate, as the compressor holds back some input
+            partEnds.add(offset);
+            partsDone.add(Boolean.FALSE);
+            if (partETags.containsKey(partNumber)) {
+                markDone(partNumber);
+                continue;
+            }
+            while (inFlight >= options.getConcurrency() && failure == null) {
+                takeCompleted();
+            }
+            if (failure != null || isStopRequested()) {
+                return;
+            }
+            int size = last ? parts.getLastLength() : part.length;
+            completionService.submit(new PartUploader(partNumber, part, size, last));
+            inFlight++;
+        }
+    }
+
+    private void takeCompleted() throws InterruptedException {
+        Future<PartETag> future = completionService.take();
+        inFlight--;
+        try {
+            PartETag partETag = future.get();
+            partETags.put(partETag.getPartNumber(), partETag);
+            markDone(partETag.getPartNumber());
+        } catch (ExecutionException e) {
+            if (failure == null) {
+                failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    /*
+     * Credits the source bytes of the parts that are done, in order.
+     */
+    private void markDone(int partNumber) {
+        partsDone.set(partNumber - 1, Boolean.TRUE);
+        long before = donePrefix == 0 ? 0 : partEnds.get(donePrefix - 1);
+        while (donePrefix < partsDone.size() && partsDone.get(donePrefix)) {
+            donePrefix++;
+        }
+        long after = donePrefix == 0 ? 0 : partEnds.get(donePrefix - 1);
+        if (after > before) {
+            addBytesTransferred(after - before);
+        }
+    }
+
+    @Override
+    protected void onCanceled() {
+        if (uploadId == null) {
+            return;
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(getBucket(), getKey(),
+                    uploadId));
+        } catch (AmazonClientException e) {
+            // The parts are orphaned either way; a bucket lifecycle rule for
+            // incomplete multipart uploads takes care of them.
+        }
+        uploadId = null;
+        partETags.clear();
+    }
+
+    /*
+     * Collects compressed bytes into part-sized buffers.
+     */
+    private static class PartWriter extends OutputStream {
+
+        private final int partSize;
+        private final LinkedList<byte[]> ready = new LinkedList<byte[]>();
+        private byte[] current;
+        private int position;
+        private int lastLength;
+
+        PartWriter(int partSize) {
+            this.partSize = partSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {
+                    (byte) b
+            }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (current == null) {
+                    current = new byte[partSize];
+                    position = 0;
+                }
+                int n = Math.min(count, partSize - position);
+                System.arraycopy(buffer, offset, current, position, n);
+                position += n;
+                offset += n;
+                count -= n;
+                if (position == partSize) {
+                    ready.add(current);
+                    current = null;
+                }
+            }
+        }
+
+        /*
+         * Hands out the partly filled buffer as the last part. A compressed
+         * stream is never empty, so there is always one.
+         */
+        void flushLast() {
+            if (current != null) {
+                ready.add(current);
+                lastLength = position;
+                current = null;
+            } else {
+                lastLength = partSize;
+            }
+        }
+
+        byte[] poll() {
+            return ready.poll();
+        }
+
+        boolean isEmpty() {
+            return ready.isEmpty();
+        }
+
+        int getLastLength() {
+            return lastLength;
+        }
+    }
+
+    /*
+     * Uploads one part from memory, retrying it under the engine's congestion
+     * control. Progress is credited per part once it is done, so SDK progress
+     * events are not needed.
+     */
+    private class PartUploader implements Callable<PartETag> {
+
+        private final int partNumber;
+        private final byte[] data;
+        private final int size;
+        private final boolean lastPart;
+
+        PartUploader(int partNumber, byte[] data, int size, boolean lastPart) {
+            this.partNumber = partNumber;
+            this.data = data;
+            this.size = size;
+            this.lastPart = lastPart;
+        }
+
+        @Override
+        public PartETag call() throws Exception {
+            return callWithRetries(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName(getBucket())
+                            .withKey(getKey())
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withInputStream(throttle(new ByteArrayInputStream(data, 0, size)))
+                            .withPartSize(size)
+                            .withLastPart(lastPart);
+                    return s3.uploadPart(request).getPartETag();
+                }
+            }, options.getMaxPartRetries());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ * Decides which uploads are worth compressing. Only text formats are, since
+ * images, video, audio and archives are compressed already and would only
+ * cost CPU time.
+ */
+public class Compression {
+
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<String>(Arrays.asList(
+            "application/json",
+            "application/xml",
+            "application/javascript",
+            "application/x-javascript",
+            "application/x-ndjson",
+            "application/x-sh",
+            "application/sql",
+            "image/svg+xml"));
+
+    // Used when the type is not known or too generic
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "txt", "log", "json", "ndjson", "jsonl", "xml", "csv", "tsv", "html", "htm", "css",
+            "js", "md", "yaml", "yml", "sql", "svg"));
+
+    private Compression() {
+    }
+
+    /**
+     * Checks whether an upload should be gzip-compressed.
+     *
+     * @param contentType the MIME type, or null if not known.
+     * @param name the file name, used when the type does not tell.
+     * @return true for text formats.
+     */
+    public static boolean isCompressible(String contentType, String name) {
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.US);
+            int parameters = type.indexOf(';');
+            if (parameters >= 0) {
+                type = type.substring(0, parameters).trim();
+            }
+            if (type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type)
+                    || type.endsWith("+json") || type.endsWith("+xml")) {
+                return true;
+            }
+            if (!type.equals("application/octet-stream") && !type.equals("*/*")) {
+                return false;
+            }
+        }
+        int dot = name == null ? -1 : name.lastIndexOf('.');
+        return dot >= 0
+                && COMPRESSIBLE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonServiceException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Random;
+
+/*
+ * Limits how many requests all engine transfers have in flight together,
+ * adapting the limit the way TCP adapts its window: it grows by about one
+ * request for every window of requests that succeed, and halves when S3
+ * throttles or drops connections. Only one cut is made per round trip, so a
+ * burst of errors from requests that were sent together counts once. Failed
+ * requests are retried after a random share of an exponential delay, so that
+ * retries spread out instead of arriving together.
+ */
+public class CongestionController {
+
+    // The window never shrinks below a single request
+    private static final double MIN_WINDOW = 1;
+
+    // Backoff before the first retry, doubled for every further retry
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long MAX_BACKOFF_MS = 20000;
+
+    // Weight of a new sample in the smoothed request latency
+    private static final double LATENCY_GAIN = 0.125;
+
+    private final double maxWindow;
+    private final Random random = new Random();
+
+    // All guarded by this
+    private double window;
+    private int inFlight;
+    private long smoothedLatencyNanos;
+    private boolean cut;
+    private long lastCutNanos;
+    private long throttleCount;
+
+    /**
+     * @param initialWindow how many requests may be in flight at first.
+     * @param maxWindow how many requests may ever be in flight.
+     */
+    public CongestionController(int initialWindow, int maxWindow) {
+        this.maxWindow = Math.max(maxWindow, MIN_WINDOW);
+        this.window = Math.max(MIN_WINDOW, Math.min(initialWindow, this.maxWindow));
+    }
+
+    /**
+     * Checks whether a failure says that S3 or the network is overloaded:
+     * throttling responses, request timeouts and reset connections.
+     */
+    public static boolean isThrottling(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            int status = ase.getStatusCode();
+            return status == 503 || status == 429 || "SlowDown".equals(ase.getErrorCode())
+                    || "RequestTimeout".equals(ase.getErrorCode());
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a slot for one request, blocking while the window is full. Every
+     * slot must be given back with {@link #onSuccess(long)},
+     * {@link #onFailure(Exception)} or {@link #release()}.
+     *
+     * @throws InterruptedException if interrupted while blocked.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) window) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Gives back a slot after a successful request and widens the window.
+     *
+     * @param latencyNanos how long the request took.
+     */
+    public synchronized void onSuccess(long latencyNanos) {
+        smoothedLatencyNanos = smoothedLatencyNanos == 0 ? latencyNanos
+                : smoothedLatencyNanos + (long) ((latencyNanos - smoothedLatencyNanos)
+                        * LATENCY_GAIN);
+        window = Math.min(maxWindow, window + 1 / window);
+        release();
+    }
+
+    /**
+     * Gives back a slot after a failed request, and halves the window if the
+     * failure is throttling and the window was not cut within the last round
+     * trip.
+     */
+    public synchronized void onFailure(Exception e) {
+        if (isThrottling(e)) {
+            throttleCount++;
+            long now = System.nanoTime();
+            if (!cut || now - lastCutNanos >= smoothedLatencyNanos) {
+                window = Math.max(MIN_WINDOW, window / 2);
+                cut = true;
+                lastCutNanos = now;
+            }
+        }
+        release();
+    }
+
+    /**
+     * Gives back a slot without judging the request, e.g. when it was
+     * stopped.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Gets how long to wait before retrying a request.
+     *
+     * @param attempt the number of the attempt that failed, starting at 0.
+     * @return a random delay up to the exponential backoff for the attempt.
+     */
+    public long getBackoffMillis(int attempt) {
+        long ceiling = BACKOFF_BASE_MS << Math.min(attempt, 16);
+        return (long) (random.nextDouble() * Math.min(ceiling, MAX_BACKOFF_MS));
+    }
+
+    public synchronized double getWindow() {
+        return window;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets how many throttling failures have been seen so far.
+     */
+    public synchronized long getThrottleCount() {
+        return throttleCount;
+    }
+}
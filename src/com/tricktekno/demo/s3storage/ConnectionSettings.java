@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.ClientConfiguration;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/*
+ * Connection pool and socket settings for the S3 client. The SDK sends its
+ * requests through HttpURLConnection, whose keep-alive pool is shared by the
+ * whole process and configured through system properties, so the pool
+ * settings are installed once, before the first connection is made. Timeouts
+ * go through the ClientConfiguration, and socket buffer sizes through the
+ * default SSL socket factory.
+ */
+public class ConnectionSettings {
+
+    // A socket buffer size that leaves the system default in place
+    public static final int DEFAULT_BUFFER_SIZE = 0;
+
+    private int maxConnections = Constants.MAX_CONNECTIONS;
+    private boolean keepAlive = true;
+    private long keepAliveMillis = Constants.KEEP_ALIVE_MILLIS;
+    private int connectionTimeoutMillis = Constants.CONNECTION_TIMEOUT_MILLIS;
+    private int socketTimeoutMillis = Constants.SOCKET_TIMEOUT_MILLIS;
+    private int sendBufferSize = Constants.SOCKET_SEND_BUFFER_SIZE;
+    private int receiveBufferSize = Constants.SOCKET_RECEIVE_BUFFER_SIZE;
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets how many idle connections the pool keeps per host for reuse.
+     */
+    public ConnectionSettings withMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(maxConnections, 1);
+        return this;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    /**
+     * Sets whether connections are reused, and for how long an idle
+     * connection is kept.
+     */
+    public ConnectionSettings withKeepAlive(boolean keepAlive, long keepAliveMillis) {
+        this.keepAlive = keepAlive;
+        this.keepAliveMillis = Math.max(keepAliveMillis, 0);
+        return this;
+    }
+
+    public int getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    /**
+     * Sets how long opening a connection may take, or 0 to wait forever.
+     */
+    public ConnectionSettings withConnectionTimeout(int millis) {
+        this.connectionTimeoutMillis = Math.max(millis, 0);
+        return this;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a read may wait for data, or 0 to wait forever.
+     */
+    public ConnectionSettings withSocketTimeout(int millis) {
+        this.socketTimeoutMillis = Math.max(millis, 0);
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets the socket buffer sizes in bytes. Larger buffers keep more data in
+     * flight on connections with a long round trip.
+     *
+     * @param send the send buffer size, or DEFAULT_BUFFER_SIZE.
+     * @param receive the receive buffer size, or DEFAULT_BUFFER_SIZE.
+     */
+    public ConnectionSettings withSocketBufferSizes(int send, int receive) {
+        this.sendBufferSize = Math.max(send, DEFAULT_BUFFER_SIZE);
+        this.receiveBufferSize = Math.max(receive, DEFAULT_BUFFER_SIZE);
+        return this;
+    }
+
+    /**
+     * Creates the configuration for an S3 client that uses these settings.
+     */
+    public ClientConfiguration toClientConfiguration() {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(maxConnections);
+        configuration.setConnectionTimeout(connectionTimeoutMillis);
+        configuration.setSocketTimeout(socketTimeoutMillis);
+        configuration.setSocketBufferSizeHints(sendBufferSize, receiveBufferSize);
+        return configuration;
+    }
+
+    /**
+     * Configures the process-wide connection pool and socket factory. The
+     * pool reads its settings when it is first used, so call this before any
+     * connection is made.
+     */
+    public void installSystemDefaults() {
+        System.setProperty("http.keepAlive", String.valueOf(keepAlive));
+        System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+        if (sendBufferSize != DEFAULT_BUFFER_SIZE || receiveBufferSize != DEFAULT_BUFFER_SIZE) {
+            HttpsURLConnection.setDefaultSSLSocketFactory(new BufferSizingSocketFactory(
+                    HttpsURLConnection.getDefaultSSLSocketFactory(), sendBufferSize,
+                    receiveBufferSize));
+        }
+    }
+}
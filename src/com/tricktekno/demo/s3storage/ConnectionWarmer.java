@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Fills the connection pool ahead of the first transfer. A first request
+ * fetches the credentials and resolves the bucket endpoint, then one request
+ * per connection is sent at once so that the pool ends up with that many
+ * connections, which it keeps when the requests are done. The requests are HEAD requests on the
+ * bucket, which carry no body.
+ */
+public class ConnectionWarmer implements Runnable {
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final int connections;
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * @param s3 the client whose connections to open.
+     * @param bucket the bucket whose endpoint to connect to.
+     * @param connections how many connections to open.
+     */
+    public ConnectionWarmer(AmazonS3 s3, String bucket, int connections) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.connections = connections;
+    }
+
+    /**
+     * Starts warming up on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "connection-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        if (connections <= 0 || !ping()) {
+            return;
+        }
+
+        // These go out together, so only one of them finds the connection of
+        // the first request idle and the others open their own
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (ping()) {
+                            opened.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // Give up
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "connection-warm-up-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets how many of the concurrent warm-up requests succeeded so far.
+     */
+    public int getOpenedConnections() {
+        return opened.get();
+    }
+
+    private boolean ping() {
+        try {
+            s3.doesBucketExist(bucket);
+            return true;
+        } catch (AmazonClientException e) {
+            // Offline; the first transfer connects on its own
+            return false;
+        }
+    }
+}
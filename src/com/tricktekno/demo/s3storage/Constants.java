@@ -23,4 +23,137 @@ public class Constants {
     public static final String BUCKET_NAME = "CHANGE";
 
     public static final String BUCKET_REGION = "CHANGE";
+
+    // Files at least this large are uploaded in parallel parts by the
+    // TransferEngine instead of by TransferUtility
+    public static final long MULTIPART_UPLOAD_THRESHOLD = 16 * 1024 * 1024;
+
+    // Default size of each part and number of parts in flight per upload
+    public static final long UPLOAD_PART_SIZE = 8 * 1024 * 1024;
+    public static final int UPLOAD_CONCURRENCY = 4;
+
+    // Objects at least this large are downloaded in parallel ranges by the
+    // TransferEngine instead of by TransferUtility
+    public static final long RANGED_DOWNLOAD_THRESHOLD = 16 * 1024 * 1024;
+
+    // Default size of each range and number of ranges in flight per download
+    public static final long DOWNLOAD_RANGE_SIZE = 8 * 1024 * 1024;
+    public static final int DOWNLOAD_CONCURRENCY = 4;
+
+    // Number of part and range requests all engine transfers have in flight
+    // together at first, and at most. The number in between adapts to
+    // throttling by S3.
+    public static final int ENGINE_INITIAL_CONCURRENCY = 8;
+    public static final int ENGINE_MAX_CONCURRENCY = 32;
+
+    // Number of uploads and downloads the TransferScheduler runs at once on
+    // unmetered networks such as Wi-Fi, and on metered ones such as mobile
+    // data
+    public static final int MAX_UPLOADS_UNMETERED = 3;
+    public static final int MAX_UPLOADS_METERED = 1;
+    public static final int MAX_DOWNLOADS_UNMETERED = 4;
+    public static final int MAX_DOWNLOADS_METERED = 2;
+
+    // Idle connections kept per host for reuse, and how long they are kept
+    public static final int MAX_CONNECTIONS = 16;
+    public static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    // How long opening a connection and waiting for data may take
+    public static final int CONNECTION_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int SOCKET_TIMEOUT_MILLIS = 30 * 1000;
+
+    // Socket buffer sizes in bytes, or 0 for the system defaults
+    public static final int SOCKET_SEND_BUFFER_SIZE = 256 * 1024;
+    public static final int SOCKET_RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    // Connections opened to the bucket endpoint when the app starts, so the
+    // first transfers do not wait for them, or 0 to connect on demand
+    public static final int WARM_UP_CONNECTIONS = 4;
+
+    // Combined rate of all uploads and of all downloads in bytes per second,
+    // or 0 for no limit. Limited transfers always go through the engine.
+    public static final long MAX_UPLOAD_BYTES_PER_SECOND = 0;
+    public static final long MAX_DOWNLOAD_BYTES_PER_SECOND = 0;
+
+    // Whether uploads of text formats are gzip-compressed. Compressed objects
+    // are decompressed by the engine, so all downloads go through it then,
+    // without being persisted across restarts.
+    public static final boolean COMPRESS_UPLOADS = false;
+
+    // Each part of a compressed upload is held in memory, so fewer and
+    // smaller parts are in flight than for other uploads
+    public static final int COMPRESSED_UPLOAD_CONCURRENCY = 2;
+
+    // Whether uploads are encrypted on the device with a key that never
+    // leaves it. Encrypted objects are decrypted by the engine, so all
+    // transfers go through it then. Encrypted uploads are not compressed.
+    // Folder sync, thumbnails and streaming neither encrypt nor decrypt, and
+    // refuse encrypted objects.
+    public static final boolean ENCRYPT_UPLOADS = false;
+
+    // Plaintext bytes in each chunk that is encrypted on its own
+    public static final int ENCRYPTION_CHUNK_SIZE = 64 * 1024;
+
+    // Whether uploads are skipped when their content is stored under their
+    // key already. Only the engine checks, so all uploads go through it then,
+    // without being persisted across restarts, and each file is hashed
+    // before it is sent.
+    public static final boolean DEDUPLICATE_UPLOADS = false;
+
+    // Whether downloads keep a copy of each object, so that downloading it
+    // again while it is unchanged only takes a conditional GET. Only the
+    // engine caches, so all downloads go through it then, without being
+    // persisted across restarts, and each object takes up to twice its size
+    // on the device.
+    public static final boolean CACHE_DOWNLOADS = false;
+
+    // Bytes of downloaded objects kept in the cache, and the largest object
+    // that is kept
+    public static final long OBJECT_CACHE_QUOTA = 256 * 1024 * 1024;
+    public static final long OBJECT_CACHE_MAX_OBJECT_SIZE = 64 * 1024 * 1024;
+
+    // Number of content hashes remembered so unchanged files are not hashed
+    // again
+    public static final int CONTENT_HASH_INDEX_SIZE = 1000;
+
+    // Bytes of staged document copies kept for reuse once their uploads are
+    // done
+    public static final long STAGING_QUOTA = 256 * 1024 * 1024;
+
+    // The folder on external storage that is synced with the prefix of the
+    // bucket by the sync button
+    public static final String SYNC_FOLDER = "S3Sync";
+    public static final String SYNC_PREFIX = "sync/";
+
+    // Number of files a sync transfers or deletes at once, and number of
+    // listing requests it has in flight
+    public static final int SYNC_CONCURRENCY = 4;
+    public static final int SYNC_LISTING_CONCURRENCY = 8;
+
+    // Server-side thumbnails of images are looked for under this prefix
+    // followed by the key of the image
+    public static final String THUMBNAIL_PREFIX = "thumbnails/";
+
+    // Images up to this size are fetched whole for their thumbnails. Larger
+    // JPEGs get a ranged GET of their header for the EXIF thumbnail.
+    public static final long THUMBNAIL_MAX_FETCH_BYTES = 512 * 1024;
+    public static final long THUMBNAIL_HEADER_BYTES = 64 * 1024;
+
+    // Number of thumbnails fetched at once
+    public static final int THUMBNAIL_CONCURRENCY = 3;
+
+    // Decoded thumbnails may use up to this share of the heap, and their
+    // compressed copies up to this many bytes of the cache directory
+    public static final int THUMBNAIL_MEMORY_DIVISOR = 8;
+    public static final long THUMBNAIL_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    // Media is streamed to players in chunks of this size. A read fetches
+    // this many chunks ahead of it, this many at once.
+    public static final long STREAM_CHUNK_SIZE = 256 * 1024;
+    public static final int STREAM_READ_AHEAD = 8;
+    public static final int STREAM_CONCURRENCY = 3;
+
+    // Number of streamed objects kept on disk, so that playing one again or
+    // seeking back does not fetch it again
+    public static final int STREAM_SESSIONS = 2;
 }
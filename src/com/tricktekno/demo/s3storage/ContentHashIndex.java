@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Remembers the content hashes of upload sources by their fingerprint, such as
+ * path, size and modification time, so unchanged files are not hashed again.
+ * Only the most recently used entries are kept.
+ */
+public class ContentHashIndex {
+
+    private static final int MAGIC = 0x53334849; // "S3HI"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final int maxEntries;
+
+    // Hashes by fingerprint in access order, guarded by this
+    private final LinkedHashMap<String, String> hashes =
+            new LinkedHashMap<String, String>(16, 0.75f, true);
+    private boolean loaded;
+
+    /**
+     * @param file the file the index is saved to.
+     * @param maxEntries how many hashes to keep.
+     */
+    public ContentHashIndex(File file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the hash recorded for the fingerprint, or null.
+     */
+    public synchronized String get(String fingerprint) {
+        load();
+        return hashes.get(fingerprint);
+    }
+
+    public synchronized void put(String fingerprint, String hash) {
+        load();
+        if (hash.equals(hashes.put(fingerprint, hash))) {
+            return;
+        }
+        Iterator<String> it = hashes.keySet().iterator();
+        while (hashes.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        save();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                hashes.put(in.readUTF(), in.readUTF());
+            }
+        } catch (IOException e) {
+            // Keep what was read; the rest is hashed again
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /*
+     * Saves the index in access order, replacing the previous file
+     * atomically. A failed save only means hashing again.
+     */
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(hashes.size());
+                for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+}
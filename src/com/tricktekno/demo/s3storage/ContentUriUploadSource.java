@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/*
+ * Uploads a document straight from the file descriptor the ContentResolver
+ * hands out for it, so it never has to be copied into app storage first. Only
+ * works for providers that return a seekable file with a known size, which is
+ * the case for local documents and media.
+ */
+public class ContentUriUploadSource implements UploadSource {
+
+    // DocumentsContract.Document.COLUMN_LAST_MODIFIED, which needs API 19
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final String displayName;
+
+    // Opened on first use, guarded by this
+    private ParcelFileDescriptor descriptor;
+    private FileInputStream stream;
+
+    public ContentUriUploadSource(ContentResolver resolver, Uri uri, String displayName) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.displayName = displayName;
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Override
+    public synchronized long getLength() throws IOException {
+        open();
+        long length = descriptor.getStatSize();
+        if (length < 0) {
+            throw new IOException("Size of " + uri + " is not known");
+        }
+        return length;
+    }
+
+    @Override
+    public InputStream openRange(long offset, long length) throws IOException {
+        return new ChannelRangeInputStream(channel(), offset, length);
+    }
+
+    /*
+     * Only providers that report a modification time, such as document
+     * providers, can tell whether a document changed.
+     */
+    @Override
+    public String getFingerprint() {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, new String[] {
+                    OpenableColumns.SIZE, COLUMN_LAST_MODIFIED
+            }, null, null, null);
+            if (cursor == null || !cursor.moveToFirst() || cursor.isNull(1)) {
+                return null;
+            }
+            return uri + "|" + cursor.getLong(0) + "|" + cursor.getLong(1);
+        } catch (RuntimeException e) {
+            // E.g. a provider that rejects the column
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+            if (descriptor != null) {
+                descriptor.close();
+            }
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        stream = null;
+        descriptor = null;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        open();
+        return stream.getChannel();
+    }
+
+    private void open() throws IOException {
+        if (descriptor == null) {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                throw new IOException("Unable to open " + uri);
+            }
+            stream = new FileInputStream(descriptor.getFileDescriptor());
+        }
+    }
+}
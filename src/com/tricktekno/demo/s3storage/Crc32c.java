@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.util.zip.Checksum;
+
+/*
+ * CRC-32C (Castagnoli), which Android's java.util.zip lacks. Bytes are
+ * processed eight at a time with the slicing-by-8 tables. The checksums of
+ * ranges computed in parallel can be combined into the checksum of the whole
+ * with combine(), so no part of a transfer has to be read twice.
+ */
+public class Crc32c implements Checksum {
+
+    // Reversed Castagnoli polynomial
+    private static final int POLYNOMIAL = 0x82f63b78;
+
+    private static final int[] T0 = new int[256];
+    private static final int[] T1 = new int[256];
+    private static final int[] T2 = new int[256];
+    private static final int[] T3 = new int[256];
+    private static final int[] T4 = new int[256];
+    private static final int[] T5 = new int[256];
+    private static final int[] T6 = new int[256];
+    private static final int[] T7 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            }
+            T0[i] = crc;
+        }
+        int[][] tables = {
+                T0, T1, T2, T3, T4, T5, T6, T7
+        };
+        for (int t = 1; t < tables.length; t++) {
+            for (int i = 0; i < 256; i++) {
+                int previous = tables[t - 1][i];
+                tables[t][i] = (previous >>> 8) ^ T0[previous & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        while (len >= 8) {
+            int low = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            c = T7[low & 0xff] ^ T6[(low >>> 8) & 0xff] ^ T5[(low >>> 16) & 0xff]
+                    ^ T4[low >>> 24] ^ T3[b[off + 4] & 0xff] ^ T2[b[off + 5] & 0xff]
+                    ^ T1[b[off + 6] & 0xff] ^ T0[b[off + 7] & 0xff];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ T0[(c ^ b[off++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+
+    /*
+     * Restores a value from getValue(), e.g. to undo reads after a reset of
+     * the stream being checksummed.
+     */
+    void setValue(long value) {
+        crc = ~(int) value;
+    }
+
+    /**
+     * Combines the checksums of two adjacent pieces of data into the checksum
+     * of both, in time logarithmic in the length of the second piece.
+     *
+     * @param crc1 the checksum of the first piece.
+     * @param crc2 the checksum of the second piece.
+     * @param length2 the length of the second piece in bytes.
+     * @return the checksum of the first piece followed by the second.
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        // Operators that append one zero bit, then two, four and so on, as
+        // in zlib's crc32_combine()
+        int[] odd = new int[32];
+        int[] even = new int[32];
+        odd[0] = POLYNOMIAL;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+
+        int crc = (int) crc1;
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc ^ (int) crc2) & 0xffffffffL;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
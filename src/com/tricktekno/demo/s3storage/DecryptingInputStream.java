@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.Cipher;
+
+/*
+ * Decrypts stored chunks of a ChunkCipher as they are read, e.g. from the
+ * body of a ranged GET that starts on a chunk boundary. A chunk is only handed
+ * out once its tag has been checked, so damaged data never reaches the
+ * caller. A body that stops on a chunk boundary before the last chunk ends
+ * the stream early, which the caller notices from the range length.
+ */
+public class DecryptingInputStream extends InputStream {
+
+    private final InputStream in;
+    private final ChunkCipher cipher;
+    private final long lastChunk;
+    private final Cipher chunkCipher;
+    private final byte[] chunk;
+    private final byte[] plain;
+
+    // The current plaintext chunk, how much of it was read, and the index of
+    // the next chunk
+    private int plainLength;
+    private int plainPosition;
+    private long nextChunk;
+
+    /**
+     * @param in the stored chunks.
+     * @param cipher the cipher of the object.
+     * @param firstChunk the index of the first chunk in the object.
+     * @param plainLength the plaintext size of the whole object.
+     */
+    public DecryptingInputStream(InputStream in, ChunkCipher cipher, long firstChunk,
+            long plainLength) {
+        this.in = in;
+        this.cipher = cipher;
+        this.nextChunk = firstChunk;
+        this.lastChunk = cipher.getChunkCount(plainLength) - 1;
+        this.chunkCipher = cipher.newCipher();
+        this.chunk = new byte[cipher.getChunkSize() + ChunkCipher.OVERHEAD];
+        this.plain = new byte[cipher.getChunkSize()];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (plainPosition == plainLength) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(length, plainLength - plainPosition);
+        System.arraycopy(plain, plainPosition, buffer, offset, n);
+        plainPosition += n;
+        return n;
+    }
+
+    /*
+     * Reads and decrypts the next chunk.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        int total = 0;
+        int read;
+        while (total < chunk.length
+                && (read = in.read(chunk, total, chunk.length - total)) != -1) {
+            total += read;
+        }
+        if (total == 0) {
+            return false;
+        }
+        if (nextChunk > lastChunk) {
+            throw new IOException("Data after the last chunk");
+        }
+        boolean last = nextChunk == lastChunk;
+        if (total < chunk.length && !last) {
+            throw new IOException("Chunk " + nextChunk + " is truncated");
+        }
+        plainLength = cipher.decrypt(chunkCipher, nextChunk, last, chunk, total, plain);
+        plainPosition = 0;
+        nextChunk++;
+        return true;
+    }
+
+    @Override
+    public int available() {
+        return plainLength - plainPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -16,20 +16,18 @@
 package com.tricktekno.demo.s3storage;
 
 import android.app.ListActivity;
+import android.content.ActivityNotFoundException;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.webkit.MimeTypeMap;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
-import android.widget.ProgressBar;
-import android.widget.RadioButton;
-import android.widget.SimpleAdapter;
-import android.widget.SimpleAdapter.ViewBinder;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
@@ -39,18 +37,20 @@ import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 
 public class DownloadActivity extends ListActivity {
     private static final String TAG = "DownloadActivity";
 
     private static final int DOWNLOAD_SELECTION_REQUEST_CODE = 1;
+    private static final int PLAY_SELECTION_REQUEST_CODE = 2;
 
     private static final int INDEX_NOT_CHECKED = -1;
 
     private Button btnDownload;
+    private Button btnPlay;
     private Button btnPause;
     private Button btnResume;
     private Button btnCancel;
@@ -60,51 +60,110 @@ public class DownloadActivity extends ListActivity {
 
     private TransferUtility transferUtility;
 
+    // Runs the downloads that are too large for a single stream
+    private TransferEngine transferEngine;
 
-    private SimpleAdapter simpleAdapter;
+    private TransferRecordAdapter transferAdapter;
 
     private List<TransferObserver> observers;
 
-    private ArrayList<HashMap<String, Object>> transferRecordMaps;
+    // Transfers run by the TransferEngine, listed after the observers
+    private List<EngineTransfer> engineTransfers;
+
+    // One row per observer, then one per engine transfer
+    private TransferRecordStore records;
     private int checkedIndex;
 
+    // Coalesces listener callbacks into per-row updates
+    private TransferProgressDispatcher progressDispatcher;
+
+    // Decides when downloads start, ahead of background uploads
+    private TransferScheduler transferScheduler;
+
+    // Builds the clients above off the main thread
+    private ClientInitializer clientInitializer;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_download);
-        // Initializes TransferUtility, always do this before using it.
-        transferUtility = Util.getTransferUtility(this);
+        clientInitializer = Util.getClientInitializer(this);
         checkedIndex = INDEX_NOT_CHECKED;
-        transferRecordMaps = new ArrayList<HashMap<String, Object>>();
+        records = new TransferRecordStore(Util.getTransferMetrics());
         initUI();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        initData();
+        // The screen shows right away and lists the downloads once the
+        // clients are built in the background
+        clientInitializer.whenReady(showTransfers);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        clientInitializer.cancel(showTransfers);
+        if (transferScheduler != null) {
+            transferScheduler.setCallback(null);
+        }
+        getListView().removeCallbacks(refreshList);
+        progressDispatcher.cancel();
 
         if (observers != null && !observers.isEmpty()) {
             for (TransferObserver observer : observers) {
                 observer.cleanTransferListener();
             }
         }
+        if (engineTransfers != null) {
+            for (EngineTransfer transfer : engineTransfers) {
+                transfer.cleanTransferListener();
+            }
+        }
     }
 
+    private final ClientInitializer.Callback showTransfers = new ClientInitializer.Callback() {
+        @Override
+        public void onClientsReady() {
+            transferUtility = Util.getTransferUtility(DownloadActivity.this);
+            transferEngine = Util.getTransferEngine(DownloadActivity.this);
+            transferScheduler = Util.getTransferScheduler(DownloadActivity.this);
+            initData();
+            transferScheduler.setCallback(schedulerCallback);
+            progressDispatcher.startTicking();
+            updateButtonAvailability();
+        }
+    };
+
+    // Lists downloads the scheduler started since the list was last built
+    private final Runnable refreshList = new Runnable() {
+        @Override
+        public void run() {
+            initData();
+        }
+    };
+
+    private final TransferScheduler.Callback schedulerCallback =
+            new TransferScheduler.Callback() {
+                @Override
+                public void onTransferStarted(int id, TransferType type) {
+                    if (type != TransferType.DOWNLOAD) {
+                        return;
+                    }
+                    // Called on any thread; several starts are listed at once
+                    getListView().removeCallbacks(refreshList);
+                    getListView().post(refreshList);
+                }
+            };
+
     private void initData() {
-        transferRecordMaps.clear();
+        records.clear();
         // Uses TransferUtility to get all previous download records.
         observers = transferUtility.getTransfersWithType(TransferType.DOWNLOAD);
         TransferListener listener = new DownloadListener();
         for (TransferObserver observer : observers) {
-            HashMap<String, Object> map = new HashMap<String, Object>();
-            Util.fillMap(map, observer, false);
-            transferRecordMaps.add(map);
+            records.add(observer);
 
 
             if (TransferState.WAITING.equals(observer.getState())
@@ -113,70 +172,53 @@ public class DownloadActivity extends ListActivity {
                 observer.setTransferListener(listener);
             }
         }
-        simpleAdapter.notifyDataSetChanged();
+
+        engineTransfers = transferEngine.getTransfersWithType(TransferType.DOWNLOAD);
+        for (EngineTransfer transfer : engineTransfers) {
+            records.add(transfer);
+            if (TransferState.WAITING.equals(transfer.getState())
+                    || TransferState.IN_PROGRESS.equals(transfer.getState())) {
+                transfer.setTransferListener(listener);
+            }
+        }
+        progressDispatcher.setRows(records);
+        transferAdapter.notifyDataSetChanged();
     }
 
     private void initUI() {
-        simpleAdapter = new SimpleAdapter(this, transferRecordMaps,
-                R.layout.record_item, new String[] {
-                        "checked", "fileName", "progress", "bytes", "state", "percentage"
-                },
-                new int[] {
-                        R.id.radioButton1, R.id.textFileName, R.id.progressBar1, R.id.textBytes,
-                        R.id.textState, R.id.textPercentage
+        transferAdapter = new TransferRecordAdapter(this, records);
+        setListAdapter(transferAdapter);
+
+        progressDispatcher = new TransferProgressDispatcher(getListView(),
+                new TransferProgressDispatcher.RowUpdater() {
+                    @Override
+                    public void updateRow(int position) {
+                        refreshRow(position);
+                    }
                 });
-        simpleAdapter.setViewBinder(new ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Object data,
-                    String textRepresentation) {
-                switch (view.getId()) {
-                    case R.id.radioButton1:
-                        RadioButton radio = (RadioButton) view;
-                        radio.setChecked((Boolean) data);
-                        return true;
-                    case R.id.textFileName:
-                        TextView fileName = (TextView) view;
-                        fileName.setText((String) data);
-                        return true;
-                    case R.id.progressBar1:
-                        ProgressBar progress = (ProgressBar) view;
-                        progress.setProgress((Integer) data);
-                        return true;
-                    case R.id.textBytes:
-                        TextView bytes = (TextView) view;
-                        bytes.setText((String) data);
-                        return true;
-                    case R.id.textState:
-                        TextView state = (TextView) view;
-                        state.setText(((TransferState) data).toString());
-                        return true;
-                    case R.id.textPercentage:
-                        TextView percentage = (TextView) view;
-                        percentage.setText((String) data);
-                        return true;
-                }
-                return false;
-            }
-        });
-        setListAdapter(simpleAdapter);
 
 
         getListView().setOnItemClickListener(new OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int pos, long id) {
                 if (checkedIndex != pos) {
-                    transferRecordMaps.get(pos).put("checked", true);
+                    records.setChecked(pos, true);
                     if (checkedIndex >= 0) {
-                        transferRecordMaps.get(checkedIndex).put("checked", false);
+                        records.setChecked(checkedIndex, false);
                     }
+                    int previousIndex = checkedIndex;
                     checkedIndex = pos;
                     updateButtonAvailability();
-                    simpleAdapter.notifyDataSetChanged();
+                    progressDispatcher.rebind(pos);
+                    if (previousIndex >= 0) {
+                        progressDispatcher.rebind(previousIndex);
+                    }
                 }
             }
         });
 
         btnDownload = (Button) findViewById(R.id.buttonDownload);
+        btnPlay = (Button) findViewById(R.id.buttonPlay);
         btnPause = (Button) findViewById(R.id.buttonPause);
         btnResume = (Button) findViewById(R.id.buttonResume);
         btnCancel = (Button) findViewById(R.id.buttonCancel);
@@ -194,14 +236,26 @@ public class DownloadActivity extends ListActivity {
             }
         });
 
+        // Lets the user pick an audio or video object to play while it
+        // downloads
+        btnPlay.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(DownloadActivity.this, DownloadSelectionActivity.class);
+                startActivityForResult(intent, PLAY_SELECTION_REQUEST_CODE);
+            }
+        });
+
         btnPause.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
 
                 // Make sure the user has selected a transfer
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    Boolean paused = transferUtility.pause(observers.get(checkedIndex)
-                            .getId());
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    boolean paused = TransferEngine.isEngineTransfer(id)
+                            ? transferEngine.pause(id)
+                            : transferUtility.pause(id);
                     if (!paused) {
                         Toast.makeText(
                                 DownloadActivity.this,
@@ -217,14 +271,22 @@ public class DownloadActivity extends ListActivity {
             public void onClick(View v) {
 
                 // Make sure the user has selected a transfer
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    TransferObserver resumed = transferUtility.resume(observers.get(checkedIndex)
-                            .getId());
-
-                    observers.get(checkedIndex).setTransferListener(new DownloadListener());
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    boolean resumed;
+                    if (TransferEngine.isEngineTransfer(id)) {
+                        EngineTransfer transfer = transferEngine.resume(id);
+                        if (transfer != null) {
+                            transfer.setTransferListener(new DownloadListener());
+                        }
+                        resumed = transfer != null;
+                    } else {
+                        resumed = transferUtility.resume(id) != null;
+                        observers.get(checkedIndex).setTransferListener(new DownloadListener());
+                    }
 
 
-                    if (resumed == null) {
+                    if (!resumed) {
                         Toast.makeText(
                                 DownloadActivity.this,
                                 "Cannot resume transfer.  You can only resume transfers in a PAUSED state.",
@@ -238,8 +300,11 @@ public class DownloadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 // Make sure a transfer is selected
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    Boolean canceled = transferUtility.cancel(observers.get(checkedIndex).getId());
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    boolean canceled = TransferEngine.isEngineTransfer(id)
+                            ? transferEngine.cancel(id)
+                            : transferUtility.cancel(id);
                     /**
                      * If cancel returns false, it is likely because the
                      * transfer is already canceled
@@ -258,12 +323,20 @@ public class DownloadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 // Make sure a transfer is selected
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
                     // Deletes a record but the file is not deleted.
-                    transferUtility.deleteTransferRecord(observers.get(checkedIndex).getId());
-                    observers.remove(checkedIndex);
-                    transferRecordMaps.remove(checkedIndex);
+                    int id = records.getId(checkedIndex);
+                    transferScheduler.remove(id);
+                    if (TransferEngine.isEngineTransfer(id)) {
+                        transferEngine.deleteTransferRecord(id);
+                        engineTransfers.remove(checkedIndex - observers.size());
+                    } else {
+                        transferUtility.deleteTransferRecord(id);
+                        observers.remove(checkedIndex);
+                    }
+                    records.remove(checkedIndex);
                     checkedIndex = INDEX_NOT_CHECKED;
+                    progressDispatcher.setRows(records);
                     updateButtonAvailability();
                     updateList();
                 }
@@ -274,13 +347,17 @@ public class DownloadActivity extends ListActivity {
             @Override
             public void onClick(View arg0) {
                 transferUtility.pauseAllWithType(TransferType.DOWNLOAD);
+                transferEngine.pauseAllWithType(TransferType.DOWNLOAD);
             }
         });
 
         btnCancelAll.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View arg0) {
+                // Don't let the scheduler start what is left
+                transferScheduler.clear(TransferType.DOWNLOAD);
                 transferUtility.cancelAllWithType(TransferType.DOWNLOAD);
+                transferEngine.cancelAllWithType(TransferType.DOWNLOAD);
             }
         });
 
@@ -291,36 +368,96 @@ public class DownloadActivity extends ListActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == DOWNLOAD_SELECTION_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
-                String key = data.getStringExtra("key");
-                beginDownload(key);
+                final String key = data.getStringExtra("key");
+                final long size = data.getLongExtra("size", -1);
+                clientInitializer.whenReady(new ClientInitializer.Callback() {
+                    @Override
+                    public void onClientsReady() {
+                        beginDownload(key, size);
+                    }
+                });
+            }
+        } else if (requestCode == PLAY_SELECTION_REQUEST_CODE) {
+            if (resultCode == RESULT_OK) {
+                final String key = data.getStringExtra("key");
+                clientInitializer.whenReady(new ClientInitializer.Callback() {
+                    @Override
+                    public void onClientsReady() {
+                        play(key);
+                    }
+                });
             }
         }
     }
 
-    private void beginDownload(String key) {
+    /*
+     * Hands a media object to a player through the StreamingServer, so
+     * playback starts once the first chunk is in rather than after the whole
+     * download.
+     */
+    private void play(String key) {
+        String extension = MimeTypeMap.getFileExtensionFromUrl(key);
+        String mimeType = extension == null ? null : MimeTypeMap.getSingleton()
+                .getMimeTypeFromExtension(extension.toLowerCase(Locale.US));
+        if (mimeType == null
+                || !(mimeType.startsWith("audio/") || mimeType.startsWith("video/"))) {
+            Toast.makeText(this, R.string.not_media, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String url;
+        try {
+            url = Util.getStreamingServer(this).getUrl(key);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start the streaming server", e);
+            Toast.makeText(this, R.string.stream_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setDataAndType(Uri.parse(url), mimeType);
+        try {
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, R.string.no_player, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void beginDownload(String key, long size) {
 
         File file = new File(Environment.getExternalStorageDirectory().toString() + "/" + key);
 
-        TransferObserver observer = transferUtility.download(Constants.BUCKET_NAME, key, file);
-
+        // The user picked this one and is waiting for it
+        transferScheduler.add(TransferScheduler.Request.download(key, file, size)
+                .withPriority(TransferScheduler.PRIORITY_USER));
     }
 
     private void updateList() {
-        TransferObserver observer = null;
-        HashMap<String, Object> map = null;
-        for (int i = 0; i < observers.size(); i++) {
-            observer = observers.get(i);
-            map = transferRecordMaps.get(i);
-            Util.fillMap(map, observer, i == checkedIndex);
+        for (int i = 0; i < records.size(); i++) {
+            refreshRow(i);
+        }
+        transferAdapter.notifyDataSetChanged();
+    }
+
+    /*
+     * Refreshes a row from the observer or engine transfer backing it.
+     */
+    private void refreshRow(int position) {
+        if (position < observers.size()) {
+            records.update(position, observers.get(position));
+        } else if (position - observers.size() < engineTransfers.size()) {
+            records.update(position, engineTransfers.get(position - observers.size()));
         }
-        simpleAdapter.notifyDataSetChanged();
     }
 
     /*
-     * Enables or disables buttons according to checkedIndex.
+     * Enables or disables buttons according to checkedIndex, and whether the
+     * clients are built.
      */
     private void updateButtonAvailability() {
-        boolean availability = checkedIndex >= 0;
+        boolean ready = transferScheduler != null;
+        btnPauseAll.setEnabled(ready);
+        btnCancelAll.setEnabled(ready);
+        boolean availability = ready && checkedIndex >= 0;
         btnPause.setEnabled(availability);
         btnResume.setEnabled(availability);
         btnCancel.setEnabled(availability);
@@ -333,20 +470,20 @@ public class DownloadActivity extends ListActivity {
         @Override
         public void onError(int id, Exception e) {
             Log.e(TAG, "onError: " + id, e);
-            updateList();
+            progressDispatcher.post(id);
         }
 
         @Override
         public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
             Log.d(TAG, String.format("onProgressChanged: %d, total: %d, current: %d",
                     id, bytesTotal, bytesCurrent));
-            updateList();
+            progressDispatcher.post(id);
         }
 
         @Override
         public void onStateChanged(int id, TransferState state) {
             Log.d(TAG, "onStateChanged: " + id + ", " + state);
-            updateList();
+            progressDispatcher.post(id);
         }
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+/*
+ * Per-transfer tuning for downloads run by the TransferEngine.
+ */
+public class DownloadOptions {
+
+    // Smaller ranges cost more requests than they save in parallelism
+    public static final long MIN_RANGE_SIZE = 256 * 1024;
+
+    private long rangeSize = Constants.DOWNLOAD_RANGE_SIZE;
+    private int concurrency = Constants.DOWNLOAD_CONCURRENCY;
+    private int maxRangeRetries = 3;
+
+    public long getRangeSize() {
+        return rangeSize;
+    }
+
+    /**
+     * Sets the size of each range. Values below {@link #MIN_RANGE_SIZE} are
+     * raised to it.
+     */
+    public DownloadOptions withRangeSize(long rangeSize) {
+        this.rangeSize = Math.max(rangeSize, MIN_RANGE_SIZE);
+        return this;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Sets how many ranges of the download may be in flight at once.
+     */
+    public DownloadOptions withConcurrency(int concurrency) {
+        this.concurrency = Math.max(concurrency, 1);
+        return this;
+    }
+
+    public int getMaxRangeRetries() {
+        return maxRangeRetries;
+    }
+
+    /**
+     * Sets how many times a failed range is retried before the download
+     * fails.
+     */
+    public DownloadOptions withMaxRangeRetries(int maxRangeRetries) {
+        this.maxRangeRetries = Math.max(maxRangeRetries, 0);
+        return this;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Records which ranges of a download are already on disk. It is saved next to
+ * the target file so that a download that is resumed, even after the app was
+ * killed, only fetches the ranges that are still missing. The checksums of
+ * each range are kept with it, so the checksums of the whole object are
+ * known at the end without reading the ranges on disk again.
+ */
+public class DownloadRangeState {
+
+    private static final int MAGIC = 0x53335253; // "S3RS"
+    private static final int VERSION = 2;
+
+    private final String eTag;
+    private final long length;
+    private final long rangeSize;
+    private final boolean[] completed;
+
+    // Checksums of the completed ranges; null and -1 where not computed
+    private final byte[][] md5s;
+    private final long[] crc32cs;
+
+    public DownloadRangeState(String eTag, long length, long rangeSize) {
+        this.eTag = eTag;
+        this.length = length;
+        this.rangeSize = rangeSize;
+        this.completed = new boolean[(int) Math.max(1, (length + rangeSize - 1) / rangeSize)];
+        this.md5s = new byte[completed.length][];
+        this.crc32cs = new long[completed.length];
+        Arrays.fill(crc32cs, -1);
+    }
+
+    /**
+     * Gets the file the state of a download to the given file is saved to.
+     */
+    public static File stateFileFor(File target) {
+        return new File(target.getPath() + ".ranges");
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getRangeSize() {
+        return rangeSize;
+    }
+
+    public int getRangeCount() {
+        return completed.length;
+    }
+
+    public long getRangeStart(int range) {
+        return range * rangeSize;
+    }
+
+    /**
+     * Gets the offset of the last byte of a range, inclusive, as used in a
+     * Range header.
+     */
+    public long getRangeEnd(int range) {
+        return Math.min(length, (range + 1) * rangeSize) - 1;
+    }
+
+    public synchronized boolean isCompleted(int range) {
+        return completed[range];
+    }
+
+    public synchronized void setCompleted(int range) {
+        completed[range] = true;
+    }
+
+    /**
+     * Records a range as completed along with its checksums.
+     *
+     * @param range the range.
+     * @param md5 the MD5 of the range, or null if it was not computed.
+     * @param crc32c the CRC-32C of the range.
+     */
+    public synchronized void setCompleted(int range, byte[] md5, long crc32c) {
+        completed[range] = true;
+        md5s[range] = md5;
+        crc32cs[range] = crc32c;
+    }
+
+    /**
+     * Gets the MD5 of every range, in order.
+     *
+     * @return the MD5s, or null unless every range has one.
+     */
+    public synchronized byte[][] getMd5s() {
+        for (int i = 0; i < completed.length; i++) {
+            if (!completed[i] || md5s[i] == null) {
+                return null;
+            }
+        }
+        return md5s.clone();
+    }
+
+    /**
+     * Combines the CRC-32C of every range into that of the whole object.
+     *
+     * @return the CRC-32C, or -1 unless every range has one.
+     */
+    public synchronized long getCrc32c() {
+        long crc = new Crc32c().getValue();
+        for (int i = 0; i < completed.length; i++) {
+            if (!completed[i] || crc32cs[i] < 0) {
+                return -1;
+            }
+            crc = Crc32c.combine(crc, crc32cs[i], getRangeEnd(i) - getRangeStart(i) + 1);
+        }
+        return crc;
+    }
+
+    /**
+     * Gets the number of bytes in the ranges already on disk.
+     */
+    public synchronized long getCompletedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < completed.length; i++) {
+            if (completed[i]) {
+                bytes += getRangeEnd(i) - getRangeStart(i) + 1;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks whether this state describes the given version of an object, so
+     * that ranges of a stale version are never mixed with a newer one.
+     */
+    public boolean matches(String eTag, long length, long rangeSize) {
+        return this.length == length && this.rangeSize == rangeSize
+                && this.eTag != null && this.eTag.equals(eTag);
+    }
+
+    /**
+     * Loads a saved state.
+     *
+     * @param file the state file.
+     * @return the state, or null if there is none or it cannot be read.
+     */
+    public static DownloadRangeState load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            DownloadRangeState state = new DownloadRangeState(in.readUTF(), in.readLong(),
+                    in.readLong());
+            int count = in.readInt();
+            if (count != state.completed.length) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                state.completed[i] = in.readBoolean();
+                state.crc32cs[i] = in.readLong();
+                int md5Length = in.readInt();
+                if (md5Length >= 0) {
+                    state.md5s[i] = new byte[md5Length];
+                    in.readFully(state.md5s[i]);
+                }
+            }
+            return state;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the state, replacing the previous file atomically.
+     *
+     * @param file the state file.
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(eTag);
+            out.writeLong(length);
+            out.writeLong(rangeSize);
+            out.writeInt(completed.length);
+            for (int i = 0; i < completed.length; i++) {
+                out.writeBoolean(completed[i]);
+                out.writeLong(crc32cs[i]);
+                if (md5s[i] != null) {
+                    out.writeInt(md5s[i].length);
+                    out.write(md5s[i]);
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+}
@@ -16,29 +16,71 @@
 package com.tricktekno.demo.s3storage;
 
 import android.app.ListActivity;
-import android.app.ProgressDialog;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.SimpleAdapter;
-import android.widget.SimpleAdapter.ViewBinder;
+import android.widget.EditText;
 import android.widget.TextView;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 public class DownloadSelectionActivity extends ListActivity {
 
+    private static final String TAG = "DownloadSelectionActivity";
+
+    // Keys requested per listing call when nothing is cached yet, kept small
+    // so the first rows show fast
+    private static final int FIRST_PAGE_SIZE = 200;
+
+    // Separates the folders of a key
+    private static final char DELIMITER = '/';
 
     private AmazonS3Client s3;
-    private SimpleAdapter simpleAdapter;
-    private ArrayList<HashMap<String, Object>> transferRecordMaps;
+
+    // Builds the client off the main thread
+    private ClientInitializer clientInitializer;
+    private BucketIndexAdapter indexAdapter;
+    private ThumbnailLoader thumbnailLoader;
+
+    // The local copy of the bucket listing, and where it is persisted
+    private BucketIndex index;
+    private File indexFile;
+    private boolean indexLoaded;
+
+    private ObjectListingPager pager;
+
+    // Number of index entries already reconciled with the current listing
+    private int reconciledCount;
+
+    // Searchable view of the index, rebuilt in the background when the index
+    // changes; at most one build runs and further changes wait for it
+    private KeyIndex keyIndex;
+    private BuildKeyIndexTask buildTask;
+    private boolean keyIndexStale;
+
+    // What is shown: the folder being browsed, the filter typed, and the rows
+    private String folder = "";
+    private String query = "";
+    private KeyIndex.Listing listing;
+
+    private TextView emptyView;
+    private TextView pathView;
+    private EditText filterView;
+
+    // The page request in flight, if any
+    private GetFileListTask pageTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,84 +88,299 @@ public class DownloadSelectionActivity extends ListActivity {
         setContentView(R.layout.activity_download_selection);
         initData();
         initUI();
+        new LoadIndexTask().execute();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        new GetFileListTask().execute();
+        if (indexLoaded) {
+            refresh();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        saveIndex();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        clientInitializer.cancel(startListing);
+        if (pageTask != null) {
+            pageTask.cancel(false);
+        }
+        thumbnailLoader.shutdown();
     }
 
     private void initData() {
-        s3 = Util.getS3Client(DownloadSelectionActivity.this);
-        transferRecordMaps = new ArrayList<HashMap<String, Object>>();
+        clientInitializer = Util.getClientInitializer(this);
+        index = new BucketIndex();
+        indexFile = new File(getCacheDir(), "bucket-index-" + Constants.BUCKET_NAME);
     }
 
     private void initUI() {
-        simpleAdapter = new SimpleAdapter(this, transferRecordMaps,
-                R.layout.bucket_item, new String[] {
-                        "key"
-                },
-                new int[] {
-                        R.id.key
-                });
-        simpleAdapter.setViewBinder(new ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Object data,
-                    String textRepresentation) {
-                switch (view.getId()) {
-                    case R.id.key:
-                        TextView fileName = (TextView) view;
-                        fileName.setText((String) data);
-                        return true;
-                }
-                return false;
-            }
-        });
-        setListAdapter(simpleAdapter);
+        int thumbnailSize = getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        thumbnailLoader = new ThumbnailLoader(this, Util.getThumbnailCache(this),
+                Constants.BUCKET_NAME, thumbnailSize);
+        indexAdapter = new BucketIndexAdapter(this, thumbnailLoader);
+        setListAdapter(indexAdapter);
+        getListView().setRecyclerListener(indexAdapter);
+        emptyView = (TextView) findViewById(android.R.id.empty);
+        pathView = (TextView) findViewById(R.id.path);
+        filterView = (EditText) findViewById(R.id.filter);
+        pathView.setText(Constants.BUCKET_NAME + DELIMITER);
 
-        // When an item is selected, finish the activity and pass back the S3
-        // key associated with the object selected
+        // When a folder is selected, browse into it. When an object is
+        // selected, finish the activity and pass back the S3 key and size
+        // associated with the object selected
         getListView().setOnItemClickListener(new OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int pos, long id) {
+                if (indexAdapter.isFolder(pos)) {
+                    openFolder((String) indexAdapter.getItem(pos));
+                    return;
+                }
+                BucketIndexEntry entry = (BucketIndexEntry) indexAdapter.getItem(pos);
                 Intent intent = new Intent();
-                intent.putExtra("key", (String) transferRecordMaps.get(pos).get("key"));
+                intent.putExtra("key", entry.getKey());
+                intent.putExtra("size", entry.getSize());
                 setResult(RESULT_OK, intent);
                 finish();
             }
         });
+
+        // Filters the current folder as the user types
+        filterView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                query = s.toString();
+                showListing();
+            }
+        });
     }
 
-    private class GetFileListTask extends AsyncTask<Void, Void, Void> {
+    @Override
+    public void onBackPressed() {
+        if (folder.length() == 0) {
+            super.onBackPressed();
+            return;
+        }
+        // Up one level
+        openFolder(folder.substring(0, folder.lastIndexOf(DELIMITER, folder.length() - 2) + 1));
+    }
 
-        private List<S3ObjectSummary> s3ObjList;
+    private void openFolder(String prefix) {
+        folder = prefix;
+        pathView.setText(Constants.BUCKET_NAME + DELIMITER + folder);
+        if (query.length() > 0) {
+            // Shows the folder through the text watcher
+            filterView.setText("");
+        } else {
+            showListing();
+        }
+        getListView().setSelection(0);
+    }
 
-        private ProgressDialog dialog;
+    /*
+     * Lists the current folder, or searches it when a filter is typed. Typing
+     * more narrows the last search rather than starting over.
+     */
+    private void showListing() {
+        if (keyIndex == null) {
+            return;
+        }
+        if (query.length() == 0) {
+            listing = keyIndex.list(folder, DELIMITER);
+        } else {
+            listing = keyIndex.search(folder, query, listing);
+        }
+        indexAdapter.setListing(keyIndex, listing);
+        if (listing.size() == 0 && keyIndex.size() > 0) {
+            emptyView.setText(R.string.no_matches);
+        }
+    }
+
+    /*
+     * Rebuilds the KeyIndex from a snapshot of the index in the background.
+     */
+    private void rebuildKeyIndex() {
+        if (buildTask != null) {
+            keyIndexStale = true;
+            return;
+        }
+        keyIndexStale = false;
+        buildTask = new BuildKeyIndexTask(index.snapshot());
+        buildTask.execute();
+    }
+
+    /*
+     * Starts reconciling the index with the bucket from the first page. The
+     * cached entries stay on screen and only the differences are applied.
+     */
+    private void refresh() {
+        if (pageTask != null) {
+            pageTask.cancel(false);
+            pageTask = null;
+        }
+        emptyView.setText(R.string.please_wait);
+        // The cached entries show while the client is built in the background
+        clientInitializer.whenReady(startListing);
+    }
+
+    private final ClientInitializer.Callback startListing = new ClientInitializer.Callback() {
+        @Override
+        public void onClientsReady() {
+            s3 = Util.getS3Client(DownloadSelectionActivity.this);
+            // A stale page may still be in flight, so start from a fresh pager
+            // rather than resetting the one it is using.
+            pager = new ObjectListingPager(s3, Constants.BUCKET_NAME, null,
+                    index.size() == 0 ? FIRST_PAGE_SIZE
+                            : ObjectListingPager.DEFAULT_PAGE_SIZE);
+            reconciledCount = 0;
+            loadNextPage();
+        }
+    };
+
+    private void loadNextPage() {
+        if (pager == null || pageTask != null || !pager.hasNextPage()) {
+            return;
+        }
+        pageTask = new GetFileListTask();
+        pageTask.execute();
+    }
+
+    /*
+     * Writes the index to disk in the background if it changed.
+     */
+    private void saveIndex() {
+        if (!index.isDirty()) {
+            return;
+        }
+        final BucketIndex snapshot = index.snapshot();
+        index.markClean();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.save(indexFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to save the bucket index", e);
+                }
+            }
+        }).start();
+    }
+
+    /*
+     * Reads the persisted index so that the last known listing can be shown
+     * before the bucket is listed again.
+     */
+    private class LoadIndexTask extends AsyncTask<Void, Void, BucketIndex> {
 
         @Override
-        protected void onPreExecute() {
-            dialog = ProgressDialog.show(DownloadSelectionActivity.this,
-                    getString(R.string.refreshing),
-                    getString(R.string.please_wait));
+        protected BucketIndex doInBackground(Void... inputs) {
+            return BucketIndex.load(indexFile);
         }
 
         @Override
-        protected Void doInBackground(Void... inputs) {
-            s3ObjList = s3.listObjects(Constants.BUCKET_NAME).getObjectSummaries();
-            transferRecordMaps.clear();
+        protected void onPostExecute(BucketIndex loaded) {
+            index = loaded;
+            indexLoaded = true;
+            rebuildKeyIndex();
+            refresh();
+        }
+    }
+
+    /*
+     * Builds the searchable KeyIndex off the main thread, since it copies
+     * every key.
+     */
+    private class BuildKeyIndexTask extends AsyncTask<Void, Void, KeyIndex> {
+
+        private final BucketIndex snapshot;
+
+        BuildKeyIndexTask(BucketIndex snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected KeyIndex doInBackground(Void... inputs) {
+            return new KeyIndex(snapshot);
+        }
+
+        @Override
+        protected void onPostExecute(KeyIndex built) {
+            buildTask = null;
+            keyIndex = built;
+            showListing();
+            if (keyIndexStale) {
+                rebuildKeyIndex();
+            }
+        }
+    }
+
+    /*
+     * Fetches a single page of the listing and reconciles it with the index.
+     */
+    private class GetFileListTask extends AsyncTask<Void, Void, List<BucketIndexEntry>> {
+
+        private final ObjectListingPager taskPager = pager;
+        private Exception error;
+
+        @Override
+        protected List<BucketIndexEntry> doInBackground(Void... inputs) {
+            List<S3ObjectSummary> s3ObjList;
+            try {
+                s3ObjList = taskPager.nextPage();
+            } catch (Exception e) {
+                error = e;
+                return null;
+            }
+            List<BucketIndexEntry> page = new ArrayList<BucketIndexEntry>(s3ObjList.size());
             for (S3ObjectSummary summary : s3ObjList) {
-                HashMap<String, Object> map = new HashMap<String, Object>();
-                map.put("key", summary.getKey());
-                transferRecordMaps.add(map);
+                page.add(BucketIndexEntry.fromSummary(summary));
             }
-            return null;
+            return page;
         }
 
         @Override
-        protected void onPostExecute(Void result) {
-            dialog.dismiss();
-            simpleAdapter.notifyDataSetChanged();
+        protected void onPostExecute(List<BucketIndexEntry> page) {
+            if (pageTask != this) {
+                return;
+            }
+            pageTask = null;
+            if (page == null) {
+                Log.e(TAG, "Unable to list bucket " + Constants.BUCKET_NAME, error);
+                emptyView.setText(R.string.listing_failed);
+                return;
+            }
+
+            boolean lastPage = !taskPager.hasNextPage();
+            int changes = index.applyPage(reconciledCount, page, lastPage);
+            reconciledCount += page.size();
+            if (changes > 0) {
+                rebuildKeyIndex();
+            }
+
+            if (lastPage) {
+                emptyView.setText(index.size() == 0 ? R.string.bucket_empty
+                        : R.string.no_matches);
+                saveIndex();
+            } else {
+                // Folders and searches cover the whole bucket, so keep going
+                // until every key is known
+                loadNextPage();
+            }
         }
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/*
+ * Encrypts another source with a ChunkCipher as its ranges are read. Ranges
+ * are given in stored bytes and must start on a chunk boundary, so that each
+ * part of an upload encrypts its own chunks on its own thread. Nothing is
+ * written to disk.
+ */
+public class EncryptedUploadSource implements UploadSource {
+
+    private final UploadSource source;
+    private final ChunkCipher cipher;
+
+    public EncryptedUploadSource(UploadSource source, ChunkCipher cipher) {
+        this.source = source;
+        this.cipher = cipher;
+    }
+
+    public ChunkCipher getCipher() {
+        return cipher;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return source.getDisplayName();
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return cipher.getEncryptedLength(source.getLength());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the range does not start on a chunk
+     *             boundary, or ends inside a chunk other than the last one.
+     */
+    @Override
+    public InputStream openRange(long offset, long length) throws IOException {
+        long chunk = cipher.getEncryptedChunkSize();
+        long plainLength = source.getLength();
+        long end = offset + length;
+        if (offset % chunk != 0
+                || end % chunk != 0 && end != cipher.getEncryptedLength(plainLength)) {
+            throw new IllegalArgumentException("Range " + offset + "+" + length
+                    + " is not made of whole chunks of " + chunk + " bytes");
+        }
+        long plainOffset = cipher.getPlainLength(offset);
+        long plainEnd = Math.min(cipher.getPlainLength(end), plainLength);
+        return new EncryptingInputStream(source.openRange(plainOffset, plainEnd - plainOffset),
+                offset / chunk, cipher.getChunkCount(plainLength) - 1);
+    }
+
+    /**
+     * Ciphertext changes with every encryption, so there is nothing to
+     * fingerprint.
+     */
+    @Override
+    public String getFingerprint() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+
+    /*
+     * Reads the plaintext a chunk at a time and hands out the stored chunks.
+     * A mark in the middle of a chunk keeps a copy of it, since encrypting it
+     * again gives different bytes.
+     */
+    private class EncryptingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final long lastChunk;
+        private final Cipher chunkCipher = cipher.newCipher();
+        private final byte[] plain = new byte[cipher.getChunkSize()];
+
+        // The current stored chunk, how much of it was read, and the index of
+        // the next chunk
+        private final byte[] chunk = new byte[cipher.getChunkSize() + ChunkCipher.OVERHEAD];
+        private int chunkLength;
+        private int chunkPosition;
+        private long nextChunk;
+        private boolean ended;
+
+        private byte[] markChunk;
+        private int markPosition;
+        private long markNextChunk;
+        private boolean markEnded;
+
+        EncryptingInputStream(InputStream in, long firstChunk, long lastChunk) {
+            this.in = in;
+            this.nextChunk = firstChunk;
+            this.lastChunk = lastChunk;
+            this.markNextChunk = firstChunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (chunkPosition == chunkLength && !fill()) {
+                return -1;
+            }
+            int n = Math.min(length, chunkLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, buffer, offset, n);
+            chunkPosition += n;
+            return n;
+        }
+
+        /*
+         * Encrypts the next chunk.
+         *
+         * @return false at the end of the range.
+         */
+        private boolean fill() throws IOException {
+            if (ended) {
+                return false;
+            }
+            int total = 0;
+            int read;
+            while (total < plain.length
+                    && (read = in.read(plain, total, plain.length - total)) != -1) {
+                total += read;
+            }
+            boolean last = nextChunk == lastChunk;
+            if (total == 0 && !(last && nextChunk == 0)) {
+                // Only an empty object has an empty chunk
+                ended = true;
+                return false;
+            }
+            if (total < plain.length && !last) {
+                throw new IOException("Source ended early in chunk " + nextChunk);
+            }
+            chunkLength = cipher.encrypt(chunkCipher, nextChunk, last, plain, 0, total, chunk);
+            chunkPosition = 0;
+            nextChunk++;
+            ended = last;
+            return true;
+        }
+
+        @Override
+        public int available() {
+            return chunkLength - chunkPosition;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return in.markSupported();
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            in.mark(readLimit);
+            markChunk = chunkPosition < chunkLength ? Arrays.copyOf(chunk, chunkLength) : null;
+            markPosition = chunkPosition;
+            markNextChunk = nextChunk;
+            markEnded = ended;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            in.reset();
+            if (markChunk != null) {
+                // Copied back, so the copy is still there for another reset
+                System.arraycopy(markChunk, 0, chunk, 0, markChunk.length);
+                chunkLength = markChunk.length;
+                chunkPosition = markPosition;
+            } else {
+                chunkLength = 0;
+                chunkPosition = 0;
+            }
+            nextChunk = markNextChunk;
+            ended = markEnded;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A transfer run by the TransferEngine rather than by TransferUtility. It
+ * reports through the same TransferListener and TransferState as a
+ * TransferObserver so that both kinds of transfer can share one list.
+ */
+public abstract class EngineTransfer implements Runnable {
+
+    // Throttled requests are retried this many times before they count
+    // against the retries of the transfer
+    private static final int MAX_THROTTLED_RETRIES = 8;
+
+    private final int id;
+    private final TransferType type;
+    private final String bucket;
+    private final String key;
+    private final File file;
+
+    // Runs clean-up work for transfers that are canceled while not running
+    private final Executor executor;
+
+    // Limit the rate of this transfer, and of all transfers of its kind
+    private final TokenBucket bandwidth = new TokenBucket(TokenBucket.UNLIMITED);
+    private final TokenBucket sharedBandwidth;
+
+    // Shared by all engine transfers
+    private final CongestionController congestion;
+
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private volatile long bytesTotal;
+
+    // Guarded by this
+    private TransferState state = TransferState.WAITING;
+
+    // The state to move to once the running transfer stops, guarded by this
+    private TransferState stopState;
+
+    private volatile TransferListener listener;
+
+    // Notified besides the listener, e.g. a queue waiting for the transfer to
+    // finish. Unlike the listener, these are not replaced by the activities.
+    private final List<TransferListener> extraListeners =
+            new CopyOnWriteArrayList<TransferListener>();
+
+    /*
+     * Thrown from execute() when the transfer noticed a pause or cancel.
+     */
+    protected static class StoppedException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    protected EngineTransfer(int id, TransferType type, String bucket, String key, File file,
+            Executor executor, TokenBucket sharedBandwidth, CongestionController congestion) {
+        this.id = id;
+        this.type = type;
+        this.bucket = bucket;
+        this.key = key;
+        this.file = file;
+        this.executor = executor;
+        this.sharedBandwidth = sharedBandwidth;
+        this.congestion = congestion;
+    }
+
+    /**
+     * Does the actual transfer. Implementations should call
+     * {@link #checkNotStopped()} between units of work and must be able to
+     * continue where they left off when run again after a pause.
+     *
+     * @throws Exception if the transfer failed or was stopped.
+     */
+    protected abstract void execute() throws Exception;
+
+    /**
+     * Releases any remote state after the transfer was canceled. Called off the
+     * main thread.
+     */
+    protected void onCanceled() {
+    }
+
+    @Override
+    public final void run() {
+        synchronized (this) {
+            // The transfer may have been paused or canceled while queued, or
+            // queued twice by a quick pause and resume.
+            if (state != TransferState.WAITING) {
+                return;
+            }
+            state = TransferState.IN_PROGRESS;
+        }
+        notifyState(TransferState.IN_PROGRESS);
+
+        try {
+            execute();
+            finish(TransferState.COMPLETED, null);
+        } catch (StoppedException e) {
+            finishStopped();
+        } catch (Exception e) {
+            if (isStopRequested()) {
+                finishStopped();
+            } else {
+                finish(TransferState.FAILED, e);
+            }
+        }
+    }
+
+    /**
+     * Requests the transfer to pause.
+     *
+     * @return true if the transfer was waiting or in progress.
+     */
+    public boolean pause() {
+        synchronized (this) {
+            if (state == TransferState.IN_PROGRESS) {
+                stopState = TransferState.PAUSED;
+                return true;
+            }
+            if (state != TransferState.WAITING) {
+                return false;
+            }
+            state = TransferState.PAUSED;
+        }
+        notifyState(TransferState.PAUSED);
+        return true;
+    }
+
+    /**
+     * Cancels the transfer. A running transfer stops at its next check, any
+     * other unfinished transfer is canceled right away.
+     *
+     * @return false if the transfer had already finished.
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            switch (state) {
+                case IN_PROGRESS:
+                    stopState = TransferState.CANCELED;
+                    return true;
+                case WAITING:
+                case PAUSED:
+                case FAILED:
+                    state = TransferState.CANCELED;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        notifyState(TransferState.CANCELED);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onCanceled();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Moves a paused or failed transfer back to waiting so it can be run
+     * again.
+     *
+     * @return true if the transfer can be resumed.
+     */
+    boolean prepareResume() {
+        synchronized (this) {
+            if (state != TransferState.PAUSED && state != TransferState.FAILED) {
+                return false;
+            }
+            state = TransferState.WAITING;
+            stopState = null;
+        }
+        notifyState(TransferState.WAITING);
+        return true;
+    }
+
+    /**
+     * Checks whether a failed request is worth retrying: network errors,
+     * including those while reading a response body, server errors,
+     * throttling and request timeouts.
+     */
+    protected static boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 500 || status == 408 || status == 429
+                    || "RequestTimeout".equals(((AmazonServiceException) e).getErrorCode());
+        }
+        return e instanceof AmazonClientException || e instanceof IOException;
+    }
+
+    /**
+     * Sends a request within the window of the congestion controller,
+     * retrying it after a jittered exponential backoff while it fails in a
+     * retryable way. Throttling failures get extra retries, as the controller
+     * slows all transfers down until S3 accepts the load.
+     *
+     * @param request sends the request once. It must undo its own progress
+     *            when it fails.
+     * @param maxRetries how many other failures are retried.
+     * @return the result of the request.
+     * @throws Exception the last failure, or StoppedException.
+     */
+    protected <T> T callWithRetries(Callable<T> request, int maxRetries) throws Exception {
+        int retries = 0;
+        int throttledRetries = 0;
+        for (int attempt = 0;; attempt++) {
+            congestion.acquire();
+            long start = System.nanoTime();
+            try {
+                T result = request.call();
+                congestion.onSuccess(System.nanoTime() - start);
+                return result;
+            } catch (StoppedException e) {
+                congestion.release();
+                throw e;
+            } catch (Exception e) {
+                congestion.onFailure(e);
+                if (CongestionController.isThrottling(e)
+                        && throttledRetries < MAX_THROTTLED_RETRIES) {
+                    throttledRetries++;
+                } else {
+                    retries++;
+                }
+                if (retries > maxRetries || !isRetryable(e) || isStopRequested()) {
+                    throw e;
+                }
+            }
+            Thread.sleep(congestion.getBackoffMillis(attempt));
+        }
+    }
+
+    /**
+     * Wraps a stream of transfer data so that reading it respects the
+     * bandwidth limits.
+     */
+    protected InputStream throttle(InputStream in) {
+        return new ThrottledInputStream(in, bandwidth, sharedBandwidth);
+    }
+
+    protected synchronized boolean isStopRequested() {
+        return stopState != null;
+    }
+
+    protected void checkNotStopped() throws StoppedException {
+        if (isStopRequested()) {
+            throw new StoppedException();
+        }
+    }
+
+    protected void setBytesTotal(long bytesTotal) {
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * Adds to the number of bytes transferred and notifies the listener.
+     *
+     * @param delta the number of bytes, negative if bytes have to be sent
+     *            again.
+     */
+    protected void addBytesTransferred(long delta) {
+        long current = bytesTransferred.addAndGet(delta);
+        TransferListener l = listener;
+        if (l != null) {
+            l.onProgressChanged(id, current, bytesTotal);
+        }
+        for (TransferListener extra : extraListeners) {
+            extra.onProgressChanged(id, current, bytesTotal);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public TransferType getType() {
+        return type;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the local file of the transfer, or null for uploads that are not
+     * read from a file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public String getAbsoluteFilePath() {
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Limits the rate of this transfer, on top of the limit shared by all
+     * transfers of its kind. Takes effect right away, also while running.
+     *
+     * @param bytesPerSecond the rate, or TokenBucket.UNLIMITED.
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        bandwidth.setRate(bytesPerSecond);
+    }
+
+    public long getBandwidthLimit() {
+        return bandwidth.getRate();
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public synchronized TransferState getState() {
+        return state;
+    }
+
+    public void setTransferListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    public void cleanTransferListener() {
+        this.listener = null;
+    }
+
+    /**
+     * Adds a listener that is notified along with the one set by
+     * {@link #setTransferListener(TransferListener)}.
+     */
+    public void addTransferListener(TransferListener listener) {
+        extraListeners.add(listener);
+    }
+
+    public void removeTransferListener(TransferListener listener) {
+        extraListeners.remove(listener);
+    }
+
+    private void finishStopped() {
+        TransferState target;
+        synchronized (this) {
+            target = stopState;
+            stopState = null;
+            state = target;
+        }
+        if (target == TransferState.CANCELED) {
+            onCanceled();
+        }
+        notifyState(target);
+    }
+
+    private void finish(TransferState target, Exception error) {
+        synchronized (this) {
+            state = target;
+            stopState = null;
+        }
+        TransferListener l = listener;
+        if (l != null && error != null) {
+            l.onError(id, error);
+        }
+        if (error != null) {
+            for (TransferListener extra : extraListeners) {
+                extra.onError(id, error);
+            }
+        }
+        notifyState(target);
+    }
+
+    private void notifyState(TransferState newState) {
+        TransferListener l = listener;
+        if (l != null) {
+            l.onStateChanged(id, newState);
+        }
+        for (TransferListener extra : extraListeners) {
+            extra.onStateChanged(id, newState);
+        }
+    }
+}
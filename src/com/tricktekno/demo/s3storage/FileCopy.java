@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/*
+ * Copies streams into files. When the stream reads a file, the kernel moves
+ * the bytes between the two files without copying them through the heap.
+ */
+public class FileCopy {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private FileCopy() {
+    }
+
+    /**
+     * Copies a stream into a file, replacing its content. The file is deleted
+     * if the copy fails.
+     *
+     * @param is the stream to copy. It is closed either way.
+     * @param target the file to copy to.
+     * @return the number of bytes copied.
+     * @throws IOException if the stream cannot be read or the file written.
+     */
+    public static long copy(InputStream is, File target) throws IOException {
+        boolean copied = false;
+        FileOutputStream fos = null;
+        long position = 0;
+        try {
+            fos = new FileOutputStream(target);
+            if (is instanceof FileInputStream) {
+                FileChannel in = ((FileInputStream) is).getChannel();
+                FileChannel out = fos.getChannel();
+                long count;
+                while ((count = out.transferFrom(in, position, CHUNK_SIZE)) > 0) {
+                    position += count;
+                }
+            } else {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    fos.write(buf, 0, read);
+                    position += read;
+                }
+            }
+            copied = true;
+        } finally {
+            is.close();
+            if (fos != null) {
+                fos.close();
+            }
+            if (!copied) {
+                target.delete();
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/*
+ * Uploads the contents of a local file.
+ */
+public class FileUploadSource implements UploadSource {
+
+    private final File file;
+
+    // Opened on first use, guarded by this
+    private FileInputStream stream;
+
+    public FileUploadSource(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("No such file: " + file);
+        }
+        return file.length();
+    }
+
+    @Override
+    public InputStream openRange(long offset, long length) throws IOException {
+        return new ChannelRangeInputStream(channel(), offset, length);
+    }
+
+    @Override
+    public String getFingerprint() {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            stream = null;
+        }
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (stream == null) {
+            stream = new FileInputStream(file);
+        }
+        return stream.getChannel();
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.util.Log;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Keeps a local folder and a bucket prefix in sync in both directions. The
+ * state of every path after the last run is kept in a SyncManifest, so a run
+ * only has to stat the local files and list the prefix to find what changed
+ * on either side, and then transfers just that:
+ *
+ * - changed or new on one side only: copied to the other side
+ * - changed on both sides: the local file wins
+ * - deleted on one side and unchanged on the other: deleted there too
+ *
+ * The listing is split at keys known from the manifest and its parts are
+ * fetched in parallel; the transfers and deletes run in parallel as well.
+ */
+public class FolderSync {
+
+    private static final String TAG = "FolderSync";
+
+    // Keys of the manifest per listing part, about one page each
+    private static final int LISTING_PART_SIZE = ObjectListingPager.DEFAULT_PAGE_SIZE;
+
+    // S3 deletes at most this many keys per request
+    private static final int MAX_DELETE_BATCH = 1000;
+
+    // Partial downloads, which are never synced
+    private static final String DOWNLOAD_SUFFIX = ".sync-tmp";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final TransferEngine engine;
+    private final String bucket;
+    private final String prefix;
+    private final File root;
+    private final File manifestFile;
+
+    private volatile boolean canceled;
+    private volatile ExecutorService executor;
+    private volatile Thread runner;
+
+    /**
+     * @param s3 the client for listing, small transfers and deletes.
+     * @param engine runs the transfers of large files.
+     * @param bucket the bucket to sync with.
+     * @param prefix the prefix to sync with, e.g. "sync/", or "" for the
+     *            whole bucket.
+     * @param root the local folder to sync.
+     * @param manifestFile where the state of the last run is kept. It must
+     *            not be inside the folder.
+     */
+    public FolderSync(AmazonS3 s3, TransferEngine engine, String bucket, String prefix,
+            File root, File manifestFile) {
+        this.s3 = s3;
+        this.engine = engine;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.root = root;
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Runs the sync. This makes network calls and must not be called on the
+     * main thread. Paths that fail are counted and left for the next run.
+     *
+     * @return what was done.
+     * @throws IOException if the folder or one of its subfolders cannot be
+     *             listed, or the manifest cannot be saved.
+     * @throws InterruptedException if the sync is canceled.
+     */
+    public Result run() throws IOException, InterruptedException {
+        SyncManifest manifest = SyncManifest.load(manifestFile);
+        Result result = new Result();
+        runner = Thread.currentThread();
+        executor = Executors.newFixedThreadPool(Constants.SYNC_CONCURRENCY);
+        try {
+            if (canceled) {
+                throw new InterruptedException("Sync canceled");
+            }
+            Map<String, Remote> remote = listRemote(manifest.getSortedPaths());
+            // A first run has nothing to delete remotely, so it may start
+            // from a missing folder
+            if (manifest.size() == 0 && !root.exists() && !root.mkdirs()) {
+                throw new IOException("Cannot create " + root);
+            }
+            Map<String, Local> local = scanLocal();
+
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            List<String> remoteDeletes = new ArrayList<String>();
+            Set<String> paths = new HashSet<String>(local.keySet());
+            paths.addAll(remote.keySet());
+            for (String path : paths) {
+                plan(manifest, path, local.get(path), remote.get(path), result, tasks,
+                        remoteDeletes);
+            }
+            // Paths that are gone on both sides
+            for (String path : manifest.getSortedPaths()) {
+                if (!paths.contains(path)) {
+                    manifest.remove(path);
+                }
+            }
+            for (int i = 0; i < remoteDeletes.size(); i += MAX_DELETE_BATCH) {
+                List<String> batch = remoteDeletes.subList(i,
+                        Math.min(i + MAX_DELETE_BATCH, remoteDeletes.size()));
+                tasks.add(executor.submit(new DeleteRemote(manifest, batch, result)));
+            }
+            for (Future<?> task : tasks) {
+                await(task);
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+            runner = null;
+            if (manifest.isModified()) {
+                manifest.save(manifestFile);
+            }
+        }
+    }
+
+    /**
+     * Stops a running sync. Transfers in flight are canceled; what is done
+     * already is kept in the manifest.
+     */
+    public void cancel() {
+        canceled = true;
+        ExecutorService running = executor;
+        if (running != null) {
+            running.shutdownNow();
+        }
+        // Tasks that never started would be waited for forever
+        Thread waiting = runner;
+        if (waiting != null) {
+            waiting.interrupt();
+        }
+    }
+
+    /*
+     * Decides what to do with one path by comparing both sides with the
+     * manifest.
+     */
+    private void plan(SyncManifest manifest, String path, Local local, Remote remote,
+            Result result, List<Future<?>> tasks, List<String> remoteDeletes) {
+        SyncManifest.Entry entry = manifest.get(path);
+        boolean localChanged = local != null
+                && (entry == null || !entry.matchesLocal(local.size, local.modified));
+        boolean remoteChanged = remote != null
+                && (entry == null || !entry.matchesRemote(remote.eTag, remote.size));
+
+        if (local != null && (localChanged || remote == null && entry == null)) {
+            tasks.add(executor.submit(new Upload(manifest, path, local, remote, result)));
+        } else if (remote != null && (remoteChanged || local == null && entry == null)) {
+            tasks.add(executor.submit(new Download(manifest, path, remote, result)));
+        } else if (local != null && remote != null) {
+            result.unchanged.incrementAndGet();
+        } else if (local != null) {
+            // Unchanged here and deleted in the bucket
+            tasks.add(executor.submit(new DeleteLocal(manifest, path, local, result)));
+        } else {
+            // Unchanged in the bucket and deleted here
+            remoteDeletes.add(path);
+        }
+    }
+
+    /*
+     * Lists the prefix in parts that start at every LISTING_PART_SIZE-th path
+     * of the manifest and are fetched in parallel. New keys are picked up by
+     * whichever part they fall into, so the parts only need to be roughly
+     * even.
+     */
+    private Map<String, Remote> listRemote(List<String> knownPaths)
+            throws InterruptedException {
+        List<String> bounds = new ArrayList<String>();
+        for (int i = LISTING_PART_SIZE; i < knownPaths.size(); i += LISTING_PART_SIZE) {
+            bounds.add(prefix + knownPaths.get(i));
+        }
+        ExecutorService listers = Executors.newFixedThreadPool(
+                Math.min(bounds.size() + 1, Constants.SYNC_LISTING_CONCURRENCY));
+        try {
+            List<Future<List<S3ObjectSummary>>> parts =
+                    new ArrayList<Future<List<S3ObjectSummary>>>();
+            for (int i = 0; i <= bounds.size(); i++) {
+                String startAfter = i == 0 ? null : bounds.get(i - 1);
+                String end = i == bounds.size() ? null : bounds.get(i);
+                parts.add(listers.submit(new ListPart(startAfter, end)));
+            }
+            Map<String, Remote> remote = new HashMap<String, Remote>();
+            for (Future<List<S3ObjectSummary>> part : parts) {
+                for (S3ObjectSummary summary : await(part)) {
+                    String path = summary.getKey().substring(prefix.length());
+                    // Skip folder placeholders
+                    if (path.length() > 0 && !path.endsWith("/")) {
+                        remote.put(path, new Remote(summary.getETag(), summary.getSize()));
+                    }
+                }
+            }
+            return remote;
+        } finally {
+            listers.shutdownNow();
+        }
+    }
+
+    /*
+     * A folder that cannot be listed fails the scan, since its files would
+     * look deleted and be deleted remotely.
+     */
+    private Map<String, Local> scanLocal() throws IOException, InterruptedException {
+        if (!root.isDirectory() || !root.canRead()) {
+            throw new IOException(root + " is not a readable folder");
+        }
+        Map<String, Local> local = new HashMap<String, Local>();
+        ArrayDeque<String> dirs = new ArrayDeque<String>();
+        dirs.add("");
+        while (!dirs.isEmpty()) {
+            if (canceled) {
+                throw new InterruptedException("Sync canceled");
+            }
+            String dir = dirs.poll();
+            File folder = dir.length() == 0 ? root : new File(root, dir);
+            File[] children = folder.listFiles();
+            if (children == null) {
+                throw new IOException("Cannot list " + folder);
+            }
+            for (File child : children) {
+                String path = dir.length() == 0 ? child.getName() : dir + "/" + child.getName();
+                if (child.isDirectory()) {
+                    dirs.add(path);
+                } else if (!path.endsWith(DOWNLOAD_SUFFIX)) {
+                    local.put(path, new Local(child, child.length(), child.lastModified()));
+                }
+            }
+        }
+        return local;
+    }
+
+    private static <T> T await(Future<T> task) throws InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // Only listing parts throw; the other tasks count their failures
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause
+                    : new IllegalStateException(cause);
+        }
+    }
+
+    /*
+     * Waits for a transfer of the engine and cancels it if the sync is
+     * canceled meanwhile.
+     */
+    private static void awaitTransfer(EngineTransfer transfer) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        TransferListener listener = new TransferListener() {
+            @Override
+            public void onStateChanged(int id, TransferState state) {
+                if (isFinished(state)) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            }
+
+            @Override
+            public void onError(int id, Exception ex) {
+                error[0] = ex;
+            }
+        };
+        transfer.addTransferListener(listener);
+        try {
+            // It may have finished before the listener was added
+            if (!isFinished(transfer.getState())) {
+                done.await();
+            }
+        } catch (InterruptedException e) {
+            transfer.cancel();
+            throw e;
+        } finally {
+            transfer.removeTransferListener(listener);
+        }
+        TransferState state = transfer.getState();
+        if (state != TransferState.COMPLETED) {
+            throw error[0] != null ? error[0] : new IOException("Transfer " + state);
+        }
+    }
+
+    private static boolean isFinished(TransferState state) {
+        return state == TransferState.COMPLETED || state == TransferState.FAILED
+                || state == TransferState.CANCELED;
+    }
+
+    /*
+     * Lists the keys after one bound up to and including the next.
+     */
+    private class ListPart implements Callable<List<S3ObjectSummary>> {
+
+        private final String startAfter;
+        private final String end;
+
+        ListPart(String startAfter, String end) {
+            this.startAfter = startAfter;
+            this.end = end;
+        }
+
+        @Override
+        public List<S3ObjectSummary> call() throws Exception {
+            ObjectListingPager pager = new ObjectListingPager(s3, bucket, prefix,
+                    ObjectListingPager.DEFAULT_PAGE_SIZE, startAfter);
+            List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+            while (pager.hasNextPage() && !canceled) {
+                for (S3ObjectSummary summary : pager.nextPage()) {
+                    if (end != null && BucketIndexEntry.compareKeys(summary.getKey(), end) > 0) {
+                        return summaries;
+                    }
+                    summaries.add(summary);
+                }
+            }
+            return summaries;
+        }
+    }
+
+    /*
+     * Base of the work done for one path, which records its failure instead
+     * of failing the sync.
+     */
+    private abstract class PathTask implements Runnable {
+
+        final SyncManifest manifest;
+        final String path;
+        final Result result;
+
+        PathTask(SyncManifest manifest, String path, Result result) {
+            this.manifest = manifest;
+            this.path = path;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (canceled) {
+                return;
+            }
+            try {
+                execute();
+            } catch (Exception e) {
+                if (!canceled) {
+                    Log.e(TAG, "Unable to sync " + path, e);
+                    result.failed.incrementAndGet();
+                }
+            }
+        }
+
+        abstract void execute() throws Exception;
+    }
+
+    private class Upload extends PathTask {
+
+        private final Local local;
+        private final Remote remote;
+
+        Upload(SyncManifest manifest, String path, Local local, Remote remote, Result result) {
+            super(manifest, path, result);
+            this.local = local;
+            this.remote = remote;
+        }
+
+        @Override
+        void execute() throws Exception {
+            String key = prefix + path;
+            if (isSameAsRemote()) {
+                // E.g. a first run over a folder that was synced before
+                manifest.put(new SyncManifest.Entry(path, local.size, local.modified,
+                        remote.eTag, remote.size));
+                result.unchanged.incrementAndGet();
+                return;
+            }
+
+            String eTag;
+            if (local.size < Constants.MULTIPART_UPLOAD_THRESHOLD) {
+                eTag = s3.putObject(new PutObjectRequest(bucket, key, local.file)).getETag();
+            } else {
+                awaitTransfer(engine.upload(bucket, key, local.file, new UploadOptions()));
+                eTag = s3.getObjectMetadata(bucket, key).getETag();
+            }
+            // The state as listed, so that a change during the upload is
+            // picked up by the next run
+            manifest.put(new SyncManifest.Entry(path, local.size, local.modified, eTag,
+                    local.size));
+            result.uploaded.incrementAndGet();
+        }
+
+        /*
+         * The ETag of a plain single-part object is the MD5 of its content.
+         */
+        private boolean isSameAsRemote() throws IOException {
+            UploadDeduplicator deduplicator = engine.getUploadDeduplicator();
+            if (remote == null || remote.size != local.size || remote.eTag.indexOf('-') >= 0
+                    || deduplicator == null) {
+                return false;
+            }
+            String md5 = deduplicator.getContentMd5(new FileUploadSource(local.file),
+                    new UploadDeduplicator.StopSignal() {
+                        @Override
+                        public boolean isStopRequested() {
+                            return canceled;
+                        }
+                    });
+            return md5.equalsIgnoreCase(remote.eTag);
+        }
+    }
+
+    private class Download extends PathTask {
+
+        private final Remote remote;
+
+        Download(SyncManifest manifest, String path, Remote remote, Result result) {
+            super(manifest, path, result);
+            this.remote = remote;
+        }
+
+        @Override
+        void execute() throws Exception {
+            String key = prefix + path;
+            File file = new File(root, path);
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent);
+            }
+
+            String eTag;
+            if (remote.size < Constants.RANGED_DOWNLOAD_THRESHOLD) {
+                eTag = downloadSmall(key, file);
+            } else {
+                checkNotEncrypted(key, s3.getObjectMetadata(bucket, key));
+                awaitTransfer(engine.download(bucket, key, file, new DownloadOptions()));
+                eTag = remote.eTag;
+            }
+            manifest.put(new SyncManifest.Entry(path, file.length(), file.lastModified(), eTag,
+                    remote.size));
+            result.downloaded.incrementAndGet();
+        }
+
+        /*
+         * Fetches the object with a single request into a temporary file, and
+         * moves it into place once complete. The SDK decompresses objects
+         * that were uploaded compressed on its own.
+         */
+        private String downloadSmall(String key, File file) throws IOException {
+            S3Object object = s3.getObject(new GetObjectRequest(bucket, key));
+            ObjectMetadata metadata = object.getObjectMetadata();
+            File tmp = new File(file.getPath() + DOWNLOAD_SUFFIX);
+            InputStream in = object.getObjectContent();
+            try {
+                checkNotEncrypted(key, metadata);
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to replace " + file);
+                }
+            } finally {
+                in.close();
+                tmp.delete();
+            }
+            return metadata.getETag();
+        }
+
+        /*
+         * Sync neither encrypts nor decrypts, and would otherwise keep the
+         * stored chunks of an encrypted object as its content.
+         */
+        private void checkNotEncrypted(String key, ObjectMetadata metadata)
+                throws IOException {
+            if (ChunkCipher.isEncrypted(metadata)) {
+                throw new IOException(key + " is encrypted, which folder sync does not support");
+            }
+        }
+    }
+
+    private class DeleteLocal extends PathTask {
+
+        private final Local local;
+
+        DeleteLocal(SyncManifest manifest, String path, Local local, Result result) {
+            super(manifest, path, result);
+            this.local = local;
+        }
+
+        @Override
+        void execute() throws Exception {
+            // Keep the file if it changed since it was scanned
+            if (local.file.length() != local.size
+                    || local.file.lastModified() != local.modified) {
+                return;
+            }
+            if (!local.file.delete()) {
+                throw new IOException("Unable to delete " + local.file);
+            }
+            manifest.remove(path);
+            result.deletedLocal.incrementAndGet();
+        }
+    }
+
+    private class DeleteRemote implements Runnable {
+
+        private final SyncManifest manifest;
+        private final List<String> paths;
+        private final Result result;
+
+        DeleteRemote(SyncManifest manifest, List<String> paths, Result result) {
+            this.manifest = manifest;
+            this.paths = paths;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (canceled) {
+                return;
+            }
+            List<KeyVersion> keys = new ArrayList<KeyVersion>(paths.size());
+            for (String path : paths) {
+                keys.add(new KeyVersion(prefix + path));
+            }
+            List<DeletedObject> deleted;
+            try {
+                deleted = s3.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(keys))
+                        .getDeletedObjects();
+            } catch (MultiObjectDeleteException e) {
+                deleted = e.getDeletedObjects();
+                for (DeleteError error : e.getErrors()) {
+                    Log.e(TAG, "Unable to delete " + error.getKey() + ": " + error.getMessage());
+                }
+                result.failed.addAndGet(e.getErrors().size());
+            } catch (RuntimeException e) {
+                if (!canceled) {
+                    Log.e(TAG, "Unable to delete " + paths.size() + " keys", e);
+                    result.failed.addAndGet(paths.size());
+                }
+                return;
+            }
+            for (DeletedObject object : deleted) {
+                manifest.remove(object.getKey().substring(prefix.length()));
+            }
+            result.deletedRemote.addAndGet(deleted.size());
+        }
+    }
+
+    private static class Local {
+
+        final File file;
+        final long size;
+        final long modified;
+
+        Local(File file, long size, long modified) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private static class Remote {
+
+        final String eTag;
+        final long size;
+
+        Remote(String eTag, long size) {
+            this.eTag = eTag;
+            this.size = size;
+        }
+    }
+
+    /*
+     * What a run did, per kind of change.
+     */
+    public static class Result {
+
+        final AtomicInteger uploaded = new AtomicInteger();
+        final AtomicInteger downloaded = new AtomicInteger();
+        final AtomicInteger deletedLocal = new AtomicInteger();
+        final AtomicInteger deletedRemote = new AtomicInteger();
+        final AtomicInteger unchanged = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        public int getUploaded() {
+            return uploaded.get();
+        }
+
+        public int getDownloaded() {
+            return downloaded.get();
+        }
+
+        public int getDeletedLocal() {
+            return deletedLocal.get();
+        }
+
+        public int getDeletedRemote() {
+            return deletedRemote.get();
+        }
+
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+    }
+}
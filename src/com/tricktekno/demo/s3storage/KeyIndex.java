@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * An immutable search index over the keys of a BucketIndex. The entries stay
+ * in S3 key order, so the keys under a prefix form one range that is found by
+ * binary search, and a folder is listed by jumping from one subfolder to the
+ * next. For substring search, all keys are lowercased into one string with a
+ * separator after each key, which is scanned with String.indexOf; each match
+ * is mapped back to its key through the start offsets. A search that narrows
+ * the previous one only checks the previous matches.
+ */
+public class KeyIndex {
+
+    // Ends each key in the search text; not expected in typed queries
+    private static final char SEPARATOR = '\u0000';
+
+    private final BucketIndexEntry[] entries;
+
+    // The lowercased keys, each followed by SEPARATOR, and where each starts.
+    // offsets[size()] is the length of the text.
+    private final String text;
+    private final int[] offsets;
+
+    /**
+     * Builds the index from a BucketIndex that no one else changes, e.g. a
+     * snapshot. Takes time linear in the total key length, so build it off
+     * the main thread.
+     */
+    public KeyIndex(BucketIndex index) {
+        int size = index.size();
+        entries = new BucketIndexEntry[size];
+        offsets = new int[size + 1];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            entries[i] = index.get(i);
+            offsets[i] = length;
+            length += entries[i].getKey().length() + 1;
+        }
+        offsets[size] = length;
+
+        char[] chars = new char[length];
+        for (int i = 0; i < size; i++) {
+            String key = entries[i].getKey();
+            int start = offsets[i];
+            key.getChars(0, key.length(), chars, start);
+            for (int j = start; j < start + key.length(); j++) {
+                chars[j] = Character.toLowerCase(chars[j]);
+            }
+            chars[start + key.length()] = SEPARATOR;
+        }
+        text = new String(chars);
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public BucketIndexEntry get(int position) {
+        return entries[position];
+    }
+
+    /**
+     * Gets the position of a key, or -1 if it is not in the index.
+     */
+    public int indexOf(String key) {
+        int i = rangeStart(key);
+        return i < entries.length && entries[i].getKey().equals(key) ? i : -1;
+    }
+
+    /**
+     * Lists a folder: the subfolders directly below a prefix, and the objects
+     * directly in it, as S3 lists them with a delimiter.
+     *
+     * @param prefix the folder, empty or ending with the delimiter.
+     * @param delimiter separates the levels of a key.
+     * @return the subfolders as full prefixes ending with the delimiter, and
+     *         the objects, each in key order.
+     */
+    public Listing list(String prefix, char delimiter) {
+        List<String> folders = new ArrayList<String>();
+        IntList objects = new IntList();
+        int end = rangeEnd(prefix);
+        int i = rangeStart(prefix);
+        while (i < end) {
+            String key = entries[i].getKey();
+            int next = key.indexOf(delimiter, prefix.length());
+            if (next < 0) {
+                // The folder's own placeholder object is not listed in it
+                if (key.length() > prefix.length()) {
+                    objects.add(i);
+                }
+                i++;
+            } else {
+                String folder = key.substring(0, next + 1);
+                folders.add(folder);
+                i = upperBound(folder, i, end);
+            }
+        }
+        return new Listing(prefix, null, folders, objects.toArray(), 0);
+    }
+
+    /**
+     * Finds the objects below a prefix whose key, after the prefix, contains
+     * a query, ignoring case. Keys that start with the query come first.
+     *
+     * @param prefix the folder to search in, or empty for the whole bucket.
+     * @param query the text to look for, not empty.
+     * @param previous the last search, used to narrow it down if it covered
+     *            the same prefix and a part of the query, or null.
+     * @return the matches, those starting with the query first, each group in
+     *         key order.
+     */
+    public Listing search(String prefix, String query, Listing previous) {
+        String lower = toLowerCase(query);
+        IntList starts = new IntList();
+        IntList contains = new IntList();
+        if (previous != null && previous.index == this && previous.query != null
+                && previous.prefix.equals(prefix) && lower.contains(previous.query)) {
+            narrow(previous, prefix.length(), lower, starts, contains);
+        } else {
+            scan(prefix, lower, starts, contains);
+        }
+        int[] positions = new int[starts.size + contains.size];
+        System.arraycopy(starts.values, 0, positions, 0, starts.size);
+        System.arraycopy(contains.values, 0, positions, starts.size, contains.size);
+        Listing listing = new Listing(prefix, lower, new ArrayList<String>(), positions,
+                starts.size);
+        listing.index = this;
+        return listing;
+    }
+
+    private void scan(String prefix, String query, IntList starts, IntList contains) {
+        int start = rangeStart(prefix);
+        int end = offsets[rangeEnd(prefix)];
+        int from = offsets[start] + prefix.length();
+        int i = start;
+        while (from < end) {
+            int match = text.indexOf(query, from);
+            if (match < 0 || match >= end) {
+                break;
+            }
+            i = keyAt(match, i);
+            int nameStart = offsets[i] + prefix.length();
+            if (match < nameStart) {
+                // Matched inside the prefix; look again after it
+                from = nameStart;
+                continue;
+            }
+            (match == nameStart ? starts : contains).add(i);
+            from = offsets[i + 1] + prefix.length();
+        }
+    }
+
+    /*
+     * Checks only the matches of a search for a part of the query. They are
+     * two runs in key order, which are merged so the result stays in order.
+     */
+    private void narrow(Listing previous, int prefixLength, String query, IntList starts,
+            IntList contains) {
+        int[] positions = previous.positions;
+        int a = 0;
+        int b = previous.startCount;
+        while (a < previous.startCount || b < positions.length) {
+            int i;
+            if (b == positions.length
+                    || a < previous.startCount && positions[a] < positions[b]) {
+                i = positions[a++];
+            } else {
+                i = positions[b++];
+            }
+            int nameStart = offsets[i] + prefixLength;
+            int match = indexOf(query, nameStart, offsets[i + 1] - 1);
+            if (match >= 0) {
+                (match == nameStart ? starts : contains).add(i);
+            }
+        }
+    }
+
+    /*
+     * Finds the query in text[from, end) without looking past end.
+     */
+    private int indexOf(String query, int from, int end) {
+        char first = query.charAt(0);
+        int last = end - query.length();
+        for (int i = from; i <= last; i++) {
+            if (text.charAt(i) == first && text.regionMatches(i, query, 0, query.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Gets the position of the key the text offset falls in, given that it is
+     * not before the key at from. Matches are usually close together, so this
+     * gallops forward from there before it bisects.
+     */
+    private int keyAt(int offset, int from) {
+        int low = from;
+        int step = 1;
+        while (low + step < entries.length && offsets[low + step] <= offset) {
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(low + step, entries.length) - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Gets the position of the first key that is not before the prefix.
+     */
+    private int rangeStart(String prefix) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (BucketIndexEntry.compareKeys(entries[mid].getKey(), prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Gets the position after the last key that starts with the prefix.
+     */
+    private int rangeEnd(String prefix) {
+        return upperBound(prefix, rangeStart(prefix), entries.length);
+    }
+
+    /*
+     * Gets the first position in [from, to) whose key does not start with the
+     * prefix, given that the keys in the range that do come first.
+     */
+    private int upperBound(String prefix, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid].getKey().startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String toLowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /*
+     * The rows of a folder or search: subfolders, then objects.
+     */
+    public static class Listing {
+
+        private final String prefix;
+        private final String query;
+        private final List<String> folders;
+        private final int[] positions;
+
+        // How many of the positions start with the query
+        private final int startCount;
+
+        // The index the positions point into, for narrowing searches
+        private KeyIndex index;
+
+        private Listing(String prefix, String query, List<String> folders, int[] positions,
+                int startCount) {
+            this.prefix = prefix;
+            this.query = query;
+            this.folders = folders;
+            this.positions = positions;
+            this.startCount = startCount;
+        }
+
+        /**
+         * Gets the folder that was listed or searched.
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public int size() {
+            return folders.size() + positions.length;
+        }
+
+        public int getFolderCount() {
+            return folders.size();
+        }
+
+        public String getFolder(int row) {
+            return folders.get(row);
+        }
+
+        public int getObjectCount() {
+            return positions.length;
+        }
+
+        /**
+         * Gets the position in the KeyIndex of an object row, counting after
+         * the folder rows.
+         */
+        public int getObjectPosition(int row) {
+            return positions[row];
+        }
+    }
+
+    /*
+     * A growable int array, to avoid boxing one Integer per match.
+     */
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+}
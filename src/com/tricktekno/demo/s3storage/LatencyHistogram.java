@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+/*
+ * Counts latencies in buckets that double in width, so it takes constant
+ * memory however many are recorded. Percentiles are accurate to within a
+ * factor of two, which is enough to tell a slow network from a stalled one.
+ */
+public class LatencyHistogram {
+
+    // Bucket i holds latencies below 2^i ms; the last one holds the rest,
+    // from about two minutes
+    private static final int BUCKETS = 18;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    public synchronized void record(long millis) {
+        millis = Math.max(millis, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+        counts[bucket]++;
+        count++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile.
+     * @return the upper bound of the bucket holding the percentile.
+     */
+    public synchronized long getPercentileMillis(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(fraction * count), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) - 1, maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+}
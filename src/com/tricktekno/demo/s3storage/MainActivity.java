@@ -15,29 +15,46 @@
 
 package com.tricktekno.demo.s3storage;
 
+import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
+import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class MainActivity extends Activity {
 
+    private static final String TAG = "MainActivity";
+
     private Button btnDownload;
     private Button btnUpload;
+    private Button btnSync;
+
+    private SyncTask syncTask;
+
+    private ClientInitializer clientInitializer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        clientInitializer = Util.getClientInitializer(this);
         initUI();
     }
 
     private void initUI() {
         btnDownload = (Button) findViewById(R.id.buttonDownloadMain);
         btnUpload = (Button) findViewById(R.id.buttonUploadMain);
+        btnSync = (Button) findViewById(R.id.buttonSyncMain);
 
         btnDownload.setOnClickListener(new OnClickListener() {
             @Override
@@ -54,5 +71,95 @@ public class MainActivity extends Activity {
                 startActivity(intent);
             }
         });
+
+        btnSync.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View arg0) {
+                btnSync.setEnabled(false);
+                clientInitializer.whenReady(startSync);
+            }
+        });
+    }
+
+    // Starts the sync once the clients are built in the background
+    private final ClientInitializer.Callback startSync = new ClientInitializer.Callback() {
+        @Override
+        public void onClientsReady() {
+            syncTask = new SyncTask();
+            syncTask.execute();
+        }
+    };
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        clientInitializer.cancel(startSync);
+        if (syncTask != null) {
+            syncTask.cancelSync();
+        }
+    }
+
+    /*
+     * Adds the transfer metrics to "adb shell dumpsys activity", so they can
+     * be read out without a debugger.
+     */
+    @SuppressLint("NewApi")
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Transfer metrics:");
+        Util.getTransferMetrics().snapshot().writeTo(writer);
+    }
+
+    /*
+     * Syncs the sync folder on external storage with the sync prefix of the
+     * bucket.
+     */
+    private class SyncTask extends AsyncTask<Void, Void, FolderSync.Result> {
+
+        private FolderSync sync;
+        private Exception error;
+
+        @Override
+        protected void onPreExecute() {
+            File root = new File(Environment.getExternalStorageDirectory(),
+                    Constants.SYNC_FOLDER);
+            sync = new FolderSync(Util.getS3Client(MainActivity.this),
+                    Util.getTransferEngine(MainActivity.this), Constants.BUCKET_NAME,
+                    Constants.SYNC_PREFIX, root, new File(getFilesDir(), "sync-manifest"));
+        }
+
+        @Override
+        protected FolderSync.Result doInBackground(Void... inputs) {
+            try {
+                return sync.run();
+            } catch (Exception e) {
+                error = e;
+                return null;
+            }
+        }
+
+        void cancelSync() {
+            sync.cancel();
+        }
+
+        @Override
+        protected void onPostExecute(FolderSync.Result result) {
+            syncTask = null;
+            if (isFinishing()) {
+                return;
+            }
+            btnSync.setEnabled(true);
+            if (result == null) {
+                Log.e(TAG, "Unable to sync " + Constants.SYNC_FOLDER, error);
+                Toast.makeText(MainActivity.this, R.string.sync_failed, Toast.LENGTH_LONG)
+                        .show();
+                return;
+            }
+            Toast.makeText(MainActivity.this, getString(R.string.sync_done,
+                    result.getUploaded(), result.getDownloaded(),
+                    result.getDeletedLocal() + result.getDeletedRemote(), result.getFailed()),
+                    Toast.LENGTH_LONG).show();
+        }
     }
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/*
+ * Uploads a file or document as a multipart upload with several parts in
+ * flight at once. Each part is read straight from its UploadSource, so nothing
+ * is copied first. A failed part is retried on its own, and the parts uploaded
+ * so far are kept when the upload is paused so that resuming only sends the
+ * rest.
+ *
+ * The SDK checks the MD5 of each part against the ETag S3 returns for it, in
+ * the same pass that sends the part, and the part is sent again if they
+ * differ. The CRC-32C of each part is computed in that pass as well. Once the
+ * upload is complete, the ETag of the object is checked against the one
+ * computed from the parts, which catches parts that S3 put together wrong.
+ *
+ * With an EncryptedUploadSource, each part is encrypted on its own thread as
+ * it is sent, and the encrypted data key is stored in the object's metadata.
+ */
+public class MultipartUpload extends EngineTransfer {
+
+    private final AmazonS3 s3;
+    private final Executor partExecutor;
+    private final UploadOptions options;
+    private final UploadSource source;
+
+    // Kept across pause and resume; only touched by the running transfer
+    private String uploadId;
+    private PartETag[] partETags;
+    private long[] partCrc32cs;
+    private long partSize;
+
+    // CRC-32C of the uploaded content, or -1 if not known
+    private volatile long crc32c = -1;
+
+    // Skips uploads whose content is stored under the key already, or null
+    private volatile UploadDeduplicator deduplicator;
+    private String contentMd5;
+
+    MultipartUpload(int id, AmazonS3 s3, String bucket, String key, UploadSource source,
+            UploadOptions options, Executor partExecutor, TokenBucket sharedBandwidth,
+            CongestionController congestion) {
+        super(id, TransferType.UPLOAD, bucket, key, fileOf(source), partExecutor,
+                sharedBandwidth, congestion);
+        this.s3 = s3;
+        this.partExecutor = partExecutor;
+        this.options = options;
+        this.source = source;
+    }
+
+    private static File fileOf(UploadSource source) {
+        return source instanceof FileUploadSource ? ((FileUploadSource) source).getFile() : null;
+    }
+
+    void setDeduplicator(UploadDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public UploadOptions getOptions() {
+        return options;
+    }
+
+    public UploadSource getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the CRC-32C of the uploaded content.
+     *
+     * @return the CRC-32C, or -1 if the upload has not completed or was
+     *         skipped as a duplicate.
+     */
+    public long getCrc32c() {
+        return crc32c;
+    }
+
+    @Override
+    public String getAbsoluteFilePath() {
+        return source.getDisplayName();
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        try {
+            upload();
+        } finally {
+            // Reopened if the upload is resumed
+            source.close();
+        }
+    }
+
+    private void upload() throws Exception {
+        long length = source.getLength();
+        setBytesTotal(length);
+
+        if (uploadId == null && deduplicator != null) {
+            contentMd5 = deduplicator.getContentMd5(source,
+                    new UploadDeduplicator.StopSignal() {
+                        @Override
+                        public boolean isStopRequested() {
+                            return MultipartUpload.this.isStopRequested();
+                        }
+                    });
+            checkNotStopped();
+            if (deduplicator.isUploaded(getBucket(), getKey(), contentMd5)) {
+                // Nothing to send
+                addBytesTransferred(length - getBytesTransferred());
+                return;
+            }
+        }
+
+        if (uploadId == null) {
+            partSize = options.getPartSize(length);
+            int partCount = (int) Math.max(1, (length + partSize - 1) / partSize);
+            partETags = new PartETag[partCount];
+            partCrc32cs = new long[partCount];
+            ObjectMetadata metadata = new ObjectMetadata();
+            // Lets downloads fetch and check the object part by part
+            metadata.addUserMetadata(ObjectChecksums.PART_SIZE_METADATA_KEY,
+                    String.valueOf(partSize));
+            if (contentMd5 != null) {
+                metadata.addUserMetadata(UploadDeduplicator.MD5_METADATA_KEY, contentMd5);
+            }
+            if (source instanceof EncryptedUploadSource) {
+                ((EncryptedUploadSource) source).getCipher().addTo(metadata);
+            }
+            uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(getBucket(),
+                    getKey()).withObjectMetadata(metadata)).getUploadId();
+        }
+        uploadParts(length);
+        checkNotStopped();
+
+        List<PartETag> parts = new ArrayList<PartETag>(partETags.length);
+        for (PartETag partETag : partETags) {
+            parts.add(partETag);
+        }
+        CompleteMultipartUploadResult result = s3.completeMultipartUpload(
+                new CompleteMultipartUploadRequest(getBucket(), getKey(), uploadId, parts));
+        ObjectChecksums.verifyMultipartUpload(getKey(), result, parts);
+
+        long crc = new Crc32c().getValue();
+        for (int i = 0; i < partCrc32cs.length; i++) {
+            crc = Crc32c.combine(crc, partCrc32cs[i], Math.min(partSize, length - i * partSize));
+        }
+        crc32c = crc;
+    }
+
+    /*
+     * Keeps up to the configured number of parts in flight until every part is
+     * uploaded, a part fails for good, or the transfer is stopped. Parts that
+     * are already in flight are allowed to finish.
+     */
+    private void uploadParts(long length) throws Exception {
+        CompletionService<PartETag> completionService = new ExecutorCompletionService<PartETag>(
+                partExecutor);
+        int concurrency = options.getConcurrency();
+        int next = 0;
+        int inFlight = 0;
+        Exception failure = null;
+
+        while (true) {
+            while (failure == null && !isStopRequested() && inFlight < concurrency
+                    && next < partETags.length) {
+                if (partETags[next] == null) {
+                    long offset = next * partSize;
+                    long size = Math.min(partSize, length - offset);
+                    completionService.submit(new PartUploader(next + 1, offset, size,
+                            next == partETags.length - 1));
+                    inFlight++;
+                }
+                next++;
+            }
+            if (inFlight == 0) {
+                break;
+            }
+
+            Future<PartETag> future = completionService.take();
+            inFlight--;
+            try {
+                PartETag partETag = future.get();
+                partETags[partETag.getPartNumber() - 1] = partETag;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    protected void onCanceled() {
+        if (uploadId == null) {
+            return;
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(getBucket(), getKey(),
+                    uploadId));
+        } catch (AmazonClientException e) {
+            // The parts are orphaned either way; a bucket lifecycle rule for
+            // incomplete multipart uploads takes care of them.
+        }
+        uploadId = null;
+        partETags = null;
+        partCrc32cs = null;
+    }
+
+    /*
+     * Uploads one part, retrying it under the engine's congestion control.
+     */
+    private class PartUploader implements Callable<PartETag>, ProgressListener {
+
+        private final int partNumber;
+        private final long offset;
+        private final long size;
+        private final boolean lastPart;
+
+        // Bytes reported by the current attempt, and how many of them were
+        // credited to the transfer. Progress events arrive on the part thread.
+        private long attemptBytes;
+        private long credited;
+
+        PartUploader(int partNumber, long offset, long size, boolean lastPart) {
+            this.partNumber = partNumber;
+            this.offset = offset;
+            this.size = size;
+            this.lastPart = lastPart;
+        }
+
+        @Override
+        public PartETag call() throws Exception {
+            return callWithRetries(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    return uploadPart();
+                }
+            }, options.getMaxPartRetries());
+        }
+
+        private PartETag uploadPart() throws Exception {
+            InputStream in = null;
+            try {
+                // A fresh stream per attempt, read straight from the source
+                ChecksumInputStream checked = new ChecksumInputStream(
+                        source.openRange(offset, size), false);
+                in = throttle(checked);
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(getBucket())
+                        .withKey(getKey())
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(in)
+                        .withPartSize(size)
+                        .withLastPart(lastPart)
+                        .withGeneralProgressListener(this);
+                PartETag partETag = s3.uploadPart(request).getPartETag();
+                partCrc32cs[partNumber - 1] = checked.getCrc32c();
+                return partETag;
+            } catch (Exception e) {
+                resetProgress();
+                throw e;
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+
+        @Override
+        public void progressChanged(ProgressEvent event) {
+            if (event.getEventCode() == ProgressEvent.RESET_EVENT_CODE) {
+                resetProgress();
+                return;
+            }
+            if (event.getEventCode() != 0) {
+                return;
+            }
+            // Internal SDK retries can report the same bytes twice, so never
+            // credit more than the part size.
+            attemptBytes += event.getBytesTransferred();
+            long creditable = Math.min(attemptBytes, size);
+            if (creditable > credited) {
+                addBytesTransferred(creditable - credited);
+                credited = creditable;
+            }
+        }
+
+        private void resetProgress() {
+            if (credited > 0) {
+                addBytesTransferred(-credited);
+            }
+            attemptBytes = 0;
+            credited = 0;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+import com.amazonaws.util.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * Keeps copies of downloaded objects so that downloading an unchanged object
+ * again only takes a conditional GET and a local copy. There is one copy per
+ * bucket and key, stored under its ETag, and copies are evicted least recently
+ * used first to keep the cache under its quota. Hits only reorder the index
+ * in memory. The index is saved in access order whenever copies are added or
+ * removed, so the order as of the last change survives restarts.
+ */
+public class ObjectCache {
+
+    private static final String INDEX_FILE_NAME = "objects.index";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x53334f43; // "S3OC"
+    private static final int VERSION = 1;
+
+    private final File dir;
+    private final File indexFile;
+    private final long quotaBytes;
+    private final long maxObjectBytes;
+
+    // Cached copies by bucket and key in access order, guarded by this
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long cachedBytes;
+    private boolean loaded;
+
+    /*
+     * The cached copy of one object.
+     */
+    public static class Entry {
+        private final String bucket;
+        private final String key;
+        private final String eTag;
+        private final long lastModified;
+        private final long size;
+        private final File file;
+
+        Entry(String bucket, String key, String eTag, long lastModified, long size, File file) {
+            this.bucket = bucket;
+            this.key = key;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.file = file;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * Gets when the object was last modified in milliseconds since the
+         * epoch, or 0 if S3 did not say.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * @param dir the directory the copies are kept in.
+     * @param quotaBytes how many bytes of copies may be kept.
+     * @param maxObjectBytes objects larger than this are not kept.
+     */
+    public ObjectCache(File dir, long quotaBytes, long maxObjectBytes) {
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX_FILE_NAME);
+        this.quotaBytes = quotaBytes;
+        this.maxObjectBytes = Math.min(maxObjectBytes, quotaBytes);
+    }
+
+    /**
+     * Gets the cached copy of an object, whatever its ETag.
+     *
+     * @return the copy, or null if there is none.
+     */
+    public synchronized Entry get(String bucket, String key) {
+        load();
+        Entry entry = entries.get(idOf(bucket, key));
+        if (entry != null && entry.file.length() != entry.size) {
+            // Damaged or removed behind our back
+            remove(entry);
+            save();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Copies a cached object into a file, replacing its content. Call off the
+     * main thread.
+     *
+     * @throws IOException if the copy is gone, e.g. because it was evicted, or
+     *             the file cannot be written.
+     */
+    public void copyTo(Entry entry, File target) throws IOException {
+        long copied = FileCopy.copy(new FileInputStream(entry.file), target);
+        if (copied != entry.size) {
+            target.delete();
+            throw new IOException("Cached copy of " + entry.key + " is incomplete");
+        }
+    }
+
+    /**
+     * Keeps a copy of a downloaded object, replacing the copy of an older
+     * version. Call off the main thread.
+     *
+     * @param bucket the bucket the object is in.
+     * @param key the key of the object.
+     * @param eTag the ETag of the version that was downloaded.
+     * @param lastModified when that version was last modified, or 0.
+     * @param source the downloaded file.
+     * @throws IOException if the copy cannot be written.
+     */
+    public void put(String bucket, String key, String eTag, long lastModified, File source)
+            throws IOException {
+        long size = source.length();
+        if (size > maxObjectBytes) {
+            remove(bucket, key);
+            return;
+        }
+        synchronized (this) {
+            load();
+            Entry old = entries.get(idOf(bucket, key));
+            if (old != null && old.eTag.equals(eTag) && old.size == size) {
+                // Already kept, e.g. because the download was served from here
+                return;
+            }
+        }
+
+        // Copying can take a while, so don't hold the lock
+        File temp = File.createTempFile("object", TEMP_SUFFIX, dir);
+        if (FileCopy.copy(new FileInputStream(source), temp) != size) {
+            temp.delete();
+            throw new IOException("Download of " + key + " changed while it was cached");
+        }
+        synchronized (this) {
+            File file = new File(dir, fileNameOf(bucket, key, eTag));
+            Entry old = entries.get(idOf(bucket, key));
+            if (old != null) {
+                remove(old);
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                save();
+                throw new IOException("Unable to cache " + key);
+            }
+            Entry entry = new Entry(bucket, key, eTag, lastModified, size, file);
+            entries.put(idOf(bucket, key), entry);
+            cachedBytes += size;
+            evict(entry);
+            save();
+        }
+    }
+
+    /**
+     * Drops the cached copy of an object, if any.
+     */
+    public synchronized void remove(String bucket, String key) {
+        load();
+        Entry entry = entries.get(idOf(bucket, key));
+        if (entry != null) {
+            remove(entry);
+            save();
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        load();
+        return cachedBytes;
+    }
+
+    private static String idOf(String bucket, String key) {
+        return bucket + '/' + key;
+    }
+
+    /*
+     * Names a copy after its bucket, key and ETag, so that a copy being read
+     * is never overwritten by a newer version.
+     */
+    private static String fileNameOf(String bucket, String key, String eTag) {
+        String name = bucket + '\n' + key + '\n' + eTag;
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(name.getBytes(StringUtils.UTF8)));
+    }
+
+    /*
+     * Evicts copies, least recently used first, until they fit in the quota.
+     */
+    private void evict(Entry keep) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (cachedBytes > quotaBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry == keep) {
+                continue;
+            }
+            it.remove();
+            entry.file.delete();
+            cachedBytes -= entry.size;
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(idOf(entry.bucket, entry.key));
+        entry.file.delete();
+        cachedBytes -= entry.size;
+    }
+
+    /*
+     * Reads the index once, and removes files that it does not know about,
+     * such as copies whose put was interrupted.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        dir.mkdirs();
+        readIndex();
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> known = new ArrayList<File>();
+        for (Entry entry : entries.values()) {
+            known.add(entry.file);
+        }
+        for (File file : files) {
+            if (!file.equals(indexFile) && !known.contains(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void readIndex() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String bucket = in.readUTF();
+                String key = in.readUTF();
+                String eTag = in.readUTF();
+                long lastModified = in.readLong();
+                long size = in.readLong();
+                Entry entry = new Entry(bucket, key, eTag, lastModified, size,
+                        new File(dir, fileNameOf(bucket, key, eTag)));
+                if (entry.file.length() == size) {
+                    entries.put(idOf(bucket, key), entry);
+                    cachedBytes += size;
+                }
+            }
+        } catch (IOException e) {
+            // Keep what was read; the rest is removed as unknown
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /*
+     * Saves the index in access order, replacing the previous file
+     * atomically. A failed save only loses track of copies, which are then
+     * removed on the next load.
+     */
+    private void save() {
+        File tmp = new File(dir, INDEX_FILE_NAME + TEMP_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.bucket);
+                    out.writeUTF(entry.key);
+                    out.writeUTF(entry.eTag);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.size);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+}
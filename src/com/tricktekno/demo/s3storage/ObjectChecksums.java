@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+ * Checks transfer data against the ETags S3 computes. The ETag of an object
+ * uploaded in one piece is the MD5 of its content. The ETag of a multipart
+ * upload is the MD5 of the MD5s of its parts, followed by "-" and the number
+ * of parts, so it can be checked from the MD5 of each part. Engine uploads
+ * record their part size in the object's user metadata, so that downloads
+ * can fetch in the same ranges and check them the same way. ETags of objects
+ * encrypted with SSE-KMS or SSE-C are not MD5s and are not checked.
+ */
+public class ObjectChecksums {
+
+    // User metadata key, sent as x-amz-meta-part-size
+    public static final String PART_SIZE_METADATA_KEY = "part-size";
+
+    private ObjectChecksums() {
+    }
+
+    /**
+     * Checks whether an ETag is the MD5 of the whole content.
+     */
+    public static boolean isMd5ETag(String eTag) {
+        return eTag != null && isHex(unquote(eTag));
+    }
+
+    /**
+     * Checks whether the ETag of an object is the MD5 of its whole content,
+     * which it is not for SSE-KMS or SSE-C even if it looks like one.
+     */
+    public static boolean isMd5ETag(ObjectMetadata metadata) {
+        return hasContentETags(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm(),
+                metadata.getSSECustomerKeyMd5()) && isMd5ETag(metadata.getETag());
+    }
+
+    /**
+     * Gets the number of parts of a multipart ETag.
+     *
+     * @return the number of parts, or 0 if the ETag is not a multipart ETag.
+     */
+    public static int getPartCount(String eTag) {
+        if (eTag == null) {
+            return 0;
+        }
+        String value = unquote(eTag);
+        int dash = value.indexOf('-');
+        if (dash < 0 || !isHex(value.substring(0, dash))) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks whether an ETag is the MD5 of the given content.
+     */
+    public static boolean matches(String eTag, byte[] md5) {
+        return isMd5ETag(eTag) && unquote(eTag).equalsIgnoreCase(BinaryUtils.toHex(md5));
+    }
+
+    /**
+     * Computes the ETag S3 gives a multipart upload with the given parts.
+     *
+     * @param partMd5s the MD5 of each part, in order.
+     * @return the ETag, without quotes.
+     */
+    public static String multipartETag(byte[][] partMd5s) {
+        MessageDigest digest = newMd5();
+        for (byte[] md5 : partMd5s) {
+            digest.update(md5);
+        }
+        return BinaryUtils.toHex(digest.digest()) + "-" + partMd5s.length;
+    }
+
+    /**
+     * Checks the ETag of a completed multipart upload against its parts, unless
+     * the part ETags are not MD5s.
+     *
+     * @param key the key, for the message.
+     * @param result what S3 returned for the upload.
+     * @param parts the parts S3 returned, in order.
+     * @throws IOException if S3 stored something other than the parts.
+     */
+    public static void verifyMultipartUpload(String key, CompleteMultipartUploadResult result,
+            Collection<PartETag> parts) throws IOException {
+        if (!hasContentETags(result.getSSEAlgorithm(), result.getSSECustomerAlgorithm(),
+                result.getSSECustomerKeyMd5())) {
+            return;
+        }
+        String eTag = result.getETag();
+        byte[][] md5s = new byte[parts.size()][];
+        int i = 0;
+        for (PartETag part : parts) {
+            if (!isMd5ETag(part.getETag())) {
+                return;
+            }
+            md5s[i++] = BinaryUtils.fromHex(unquote(part.getETag()));
+        }
+        String expected = multipartETag(md5s);
+        if (eTag != null && !expected.equalsIgnoreCase(unquote(eTag))) {
+            throw new IOException("Upload of " + key + " was stored with ETag " + eTag
+                    + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Gets the size of the parts an object was uploaded in, if it was
+     * uploaded by the engine.
+     *
+     * @return the part size, or 0 if it is not known or the ETag cannot be
+     *         checked with it.
+     */
+    public static long getPartSize(ObjectMetadata metadata) {
+        int partCount = getPartCount(metadata.getETag());
+        String value = metadata.getUserMetaDataOf(PART_SIZE_METADATA_KEY);
+        if (partCount == 0 || value == null || !hasContentETags(metadata.getSSEAlgorithm(),
+                metadata.getSSECustomerAlgorithm(), metadata.getSSECustomerKeyMd5())) {
+            return 0;
+        }
+        long partSize;
+        try {
+            partSize = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        long length = metadata.getContentLength();
+        if (partSize <= 0 || Math.max(1, (length + partSize - 1) / partSize) != partCount) {
+            return 0;
+        }
+        return partSize;
+    }
+
+    /*
+     * Computes the MD5 of each part of a stream read in order, to check a
+     * whole object against its multipart ETag in the same pass that reads it.
+     */
+    static class PartDigester {
+        private final long partSize;
+        private final List<byte[]> md5s = new ArrayList<byte[]>();
+        private final MessageDigest digest = newMd5();
+        private long inPart;
+
+        PartDigester(long partSize) {
+            this.partSize = partSize;
+        }
+
+        void update(byte[] buffer, int offset, int count) {
+            while (count > 0) {
+                int n = (int) Math.min(count, partSize - inPart);
+                digest.update(buffer, offset, n);
+                inPart += n;
+                offset += n;
+                count -= n;
+                if (inPart == partSize) {
+                    md5s.add(digest.digest());
+                    inPart = 0;
+                }
+            }
+        }
+
+        /*
+         * Gets the multipart ETag of what was read. Call once, at the end.
+         */
+        String getETag() {
+            if (inPart > 0 || md5s.isEmpty()) {
+                md5s.add(digest.digest());
+            }
+            return multipartETag(md5s.toArray(new byte[md5s.size()][]));
+        }
+    }
+
+    /*
+     * S3 derives ETags from the content unless the object is encrypted with
+     * a KMS key or a customer-provided key. SSE-S3 (AES256) keeps MD5 ETags.
+     */
+    private static boolean hasContentETags(String sseAlgorithm, String sseCustomerAlgorithm,
+            String sseCustomerKeyMd5) {
+        return !ObjectMetadata.KMS_SERVER_SIDE_ENCRYPTION.equals(sseAlgorithm)
+                && sseCustomerAlgorithm == null && sseCustomerKeyMd5 == null;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String unquote(String eTag) {
+        if (eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+            return eTag.substring(1, eTag.length() - 1);
+        }
+        return eTag;
+    }
+
+    private static boolean isHex(String value) {
+        if (value.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Walks a bucket listing one page at a time, following the continuation
+ * marker of each page, so that callers can render the first page before the
+ * rest of the bucket has been listed.
+ */
+public class ObjectListingPager {
+
+    // S3 never returns more than 1000 keys per page
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String prefix;
+    private final int pageSize;
+
+    private String nextMarker;
+    private boolean hasNextPage;
+
+    public ObjectListingPager(AmazonS3 s3, String bucket) {
+        this(s3, bucket, null, DEFAULT_PAGE_SIZE);
+    }
+
+    public ObjectListingPager(AmazonS3 s3, String bucket, String prefix, int pageSize) {
+        this(s3, bucket, prefix, pageSize, null);
+    }
+
+    /**
+     * @param startAfter the listing starts after this key, or at the start of
+     *            the prefix if null. Lets several pagers list disjoint parts
+     *            of a prefix in parallel.
+     */
+    public ObjectListingPager(AmazonS3 s3, String bucket, String prefix, int pageSize,
+            String startAfter) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.pageSize = pageSize;
+        this.nextMarker = startAfter;
+        this.hasNextPage = true;
+    }
+
+    public synchronized boolean hasNextPage() {
+        return hasNextPage;
+    }
+
+    /**
+     * Fetches the next page of the listing. This makes a network call and must
+     * not be called on the main thread.
+     *
+     * @return the object summaries of the page, empty once the listing is
+     *         exhausted.
+     */
+    public synchronized List<S3ObjectSummary> nextPage() {
+        if (!hasNextPage) {
+            return Collections.emptyList();
+        }
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                .withBucketName(bucket)
+                .withPrefix(prefix)
+                .withMarker(nextMarker)
+                .withMaxKeys(pageSize));
+        List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+
+        hasNextPage = listing.isTruncated();
+        if (hasNextPage) {
+            // The next marker is only returned when a delimiter is used, so
+            // fall back to the last key of the page otherwise.
+            nextMarker = listing.getNextMarker();
+            if (nextMarker == null && !summaries.isEmpty()) {
+                nextMarker = summaries.get(summaries.size() - 1).getKey();
+            }
+            if (nextMarker == null) {
+                hasNextPage = false;
+            }
+        }
+        return summaries;
+    }
+}
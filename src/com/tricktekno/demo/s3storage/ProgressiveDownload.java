@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+/*
+ * Downloads an object into a file in fixed-size chunks, in whatever order
+ * they are read. A read waits for the chunk it needs, fetching it right away
+ * if no one is, and starts fetching the next few chunks in the background so
+ * that sequential reads do not wait. The chunks on disk are recorded in a
+ * DownloadRangeState, so a stream that is opened again only fetches what is
+ * missing.
+ */
+public class ProgressiveDownload {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final File file;
+    private final File stateFile;
+    private final Executor readAheadExecutor;
+    private final int readAhead;
+
+    private final String contentType;
+    private final DownloadRangeState state;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    // Chunks being fetched, guarded by this
+    private final boolean[] fetching;
+    private boolean closed;
+
+    // Set once a fetch finds a different version of the object
+    private volatile boolean objectChanged;
+
+    /*
+     * Use open().
+     */
+    private ProgressiveDownload(AmazonS3 s3, String bucket, String key, File file,
+            Executor readAheadExecutor, int readAhead, String contentType,
+            DownloadRangeState state) throws IOException {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.file = file;
+        this.stateFile = DownloadRangeState.stateFileFor(file);
+        this.readAheadExecutor = readAheadExecutor;
+        this.readAhead = readAhead;
+        this.contentType = contentType;
+        this.state = state;
+        this.fetching = new boolean[state.getRangeCount()];
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        raf.setLength(state.getLength());
+    }
+
+    /**
+     * Starts streaming an object into a file. The first chunk is fetched
+     * right away, and its response also tells the size and version of the
+     * object, so no HEAD request is needed. What the file already holds of
+     * the same version is kept.
+     *
+     * @param s3 the client to fetch with.
+     * @param bucket the bucket of the object.
+     * @param key the key of the object.
+     * @param file the file to download to.
+     * @param chunkSize the size of the chunks that are fetched.
+     * @param readAheadExecutor runs the background fetches.
+     * @param readAhead how many chunks after a read are fetched in the
+     *            background.
+     * @throws IOException if the object cannot be fetched or streamed.
+     */
+    public static ProgressiveDownload open(AmazonS3 s3, String bucket, String key, File file,
+            long chunkSize, Executor readAheadExecutor, int readAhead) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        S3Object first;
+        try {
+            first = s3.getObject(new GetObjectRequest(bucket, key).withRange(0, chunkSize - 1));
+        } catch (AmazonClientException e) {
+            throw new IOException("Unable to fetch " + key, e);
+        }
+        S3ObjectInputStream content = first.getObjectContent();
+        ObjectMetadata metadata = first.getObjectMetadata();
+        if (CompressedUpload.CONTENT_ENCODING.equalsIgnoreCase(metadata.getContentEncoding())) {
+            content.abort();
+            throw new IOException(key + " is stored compressed and cannot be streamed");
+        }
+        if (ChunkCipher.isEncrypted(metadata)) {
+            // Only the engine decrypts
+            content.abort();
+            throw new IOException(key + " is encrypted and cannot be streamed");
+        }
+        long length = metadata.getInstanceLength();
+        String eTag = metadata.getETag();
+
+        File stateFile = DownloadRangeState.stateFileFor(file);
+        DownloadRangeState state = DownloadRangeState.load(stateFile);
+        if (state == null || !state.matches(eTag, length, chunkSize) || !file.isFile()) {
+            state = new DownloadRangeState(eTag, length, chunkSize);
+        }
+        ProgressiveDownload download = new ProgressiveDownload(s3, bucket, key, file,
+                readAheadExecutor, readAhead, metadata.getContentType(), state);
+        if (state.isCompleted(0) || length == 0) {
+            content.abort();
+            content.close();
+            return download;
+        }
+        try {
+            download.write(0, content);
+        } catch (IOException e) {
+            download.close();
+            throw e;
+        }
+        return download;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return state.getLength();
+    }
+
+    /**
+     * Gets the Content-Type of the object, or null if it has none.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public boolean isComplete() {
+        return state.getCompletedBytes() == state.getLength();
+    }
+
+    /**
+     * Checks whether the object was found to have changed since the stream
+     * was opened. Chunks that are not on disk yet can no longer be read then.
+     */
+    public boolean isObjectChanged() {
+        return objectChanged;
+    }
+
+    /**
+     * Reads the object at a position, waiting until that part is on disk.
+     * Call off the main thread.
+     *
+     * @return the number of bytes read, at most up to the end of the chunk
+     *         the position is in, or -1 at the end of the object.
+     * @throws IOException if the chunk cannot be fetched or read.
+     */
+    public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+        if (position >= state.getLength()) {
+            return -1;
+        }
+        int chunk = (int) (position / state.getRangeSize());
+        await(chunk);
+        for (int next = chunk + 1; next <= chunk + readAhead && next < fetching.length; next++) {
+            prefetch(next);
+        }
+
+        long available = state.getRangeEnd(chunk) + 1 - position;
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) Math.min(count, available));
+        return channel.read(target, position);
+    }
+
+    /**
+     * Stops using the file. Fetches in flight finish, but their data is
+     * dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /*
+     * Waits until a chunk is on disk, fetching it on this thread if no one
+     * else is.
+     */
+    private void await(int chunk) throws IOException {
+        synchronized (this) {
+            while (!state.isCompleted(chunk) && fetching[chunk]) {
+                if (closed) {
+                    throw new IOException("Stream of " + key + " is closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while streaming " + key);
+                }
+            }
+            if (state.isCompleted(chunk)) {
+                return;
+            }
+            // The fetch in the background failed, or never started
+            fetching[chunk] = true;
+        }
+        fetch(chunk);
+    }
+
+    private void prefetch(final int chunk) {
+        synchronized (this) {
+            if (closed || fetching[chunk] || state.isCompleted(chunk)) {
+                return;
+            }
+            fetching[chunk] = true;
+        }
+        readAheadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetch(chunk);
+                } catch (IOException e) {
+                    // A read that needs the chunk fetches it again
+                }
+            }
+        });
+    }
+
+    /*
+     * Fetches a chunk the caller has marked as fetching.
+     */
+    private void fetch(int chunk) throws IOException {
+        try {
+            GetObjectRequest request = new GetObjectRequest(bucket, key)
+                    .withRange(state.getRangeStart(chunk), state.getRangeEnd(chunk))
+                    .withMatchingETagConstraint(state.getETag());
+            S3Object object = s3.getObject(request);
+            if (object == null) {
+                objectChanged = true;
+                throw new IOException("Object changed while streaming: " + key);
+            }
+            write(chunk, object.getObjectContent());
+        } catch (AmazonClientException e) {
+            // Also thrown by reads of a body that was aborted on close
+            throw new IOException("Unable to fetch " + key, e);
+        } finally {
+            synchronized (this) {
+                fetching[chunk] = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Writes the body of a ranged GET into its place in the file and records
+     * the chunk as done.
+     */
+    private void write(int chunk, S3ObjectInputStream content) throws IOException {
+        long start = state.getRangeStart(chunk);
+        long end = state.getRangeEnd(chunk);
+        long position = start;
+        boolean drained = false;
+        try {
+            byte[] bytes = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int read;
+            while ((read = content.read(bytes)) != -1) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            drained = true;
+        } finally {
+            if (!drained) {
+                content.abort();
+            }
+            content.close();
+        }
+        if (position != end + 1) {
+            throw new IOException("Range " + start + "-" + end + " ended at " + position);
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            state.setCompleted(chunk);
+            state.save(stateFile);
+            if (isComplete()) {
+                stateFile.delete();
+            }
+        }
+    }
+}
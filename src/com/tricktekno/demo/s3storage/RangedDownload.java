@@ -0,0 +1,536 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Downloads an object as several byte ranges in flight at once. The target
+ * file is preallocated and each range is written at its own offset, and the
+ * ranges already on disk are recorded in a DownloadRangeState so that
+ * resuming only fetches the missing ones. Objects stored gzip-encoded are
+ * decompressed on the way to the file instead.
+ *
+ * With an ObjectCache, a download that finished is kept in the cache. When the
+ * cache has a copy of the object, a conditional GET asks S3 whether the copy
+ * is still current. If S3 answers 304 Not Modified, the copy is put in place
+ * and nothing else is fetched.
+ *
+ * Each range is checksummed as it is written, with no extra pass over the
+ * file. An object uploaded in one piece and fetched as one range has its MD5
+ * checked against the ETag as soon as the range is in, and a range that does
+ * not match is fetched again. An object uploaded by MultipartUpload is
+ * fetched in the ranges of its parts, and the MD5s of the ranges are checked
+ * against its multipart ETag at the end. The CRC-32C of every range is kept,
+ * and combined into that of the object.
+ *
+ * Objects encrypted by a ChunkCipher are fetched in ranges of whole chunks,
+ * and each range is decrypted on its own thread on the way to the file.
+ * Progress, range state and checksums count the stored bytes.
+ */
+public class RangedDownload extends EngineTransfer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Makes S3 send a compressed body without Content-Encoding: gzip
+    private static final String IDENTITY_ENCODING = "identity";
+
+    private final AmazonS3 s3;
+    private final Executor rangeExecutor;
+    private final DownloadOptions options;
+    private final File stateFile;
+
+    // Where finished downloads are kept and reused, or null
+    private final ObjectCache cache;
+
+    // Decrypts the data keys of encrypted objects, or null
+    private final SecretKey encryptionKey;
+
+    // Kept across pause and resume; only replaced by the running transfer
+    private volatile DownloadRangeState state;
+
+    // Whether the MD5 of each range is computed, to be checked against the
+    // ETag. Set before the ranges are fetched.
+    private volatile boolean checkMd5;
+
+    // CRC-32C of the downloaded content, or -1 if not known
+    private volatile long crc32c = -1;
+
+    // Decrypts the ranges of an encrypted object, or null. Set before the
+    // ranges are fetched.
+    private volatile ChunkCipher cipher;
+
+    RangedDownload(int id, AmazonS3 s3, String bucket, String key, File file,
+            DownloadOptions options, Executor rangeExecutor, TokenBucket sharedBandwidth,
+            CongestionController congestion, ObjectCache cache, SecretKey encryptionKey) {
+        super(id, TransferType.DOWNLOAD, bucket, key, file, rangeExecutor, sharedBandwidth,
+                congestion);
+        this.s3 = s3;
+        this.rangeExecutor = rangeExecutor;
+        this.options = options;
+        this.stateFile = DownloadRangeState.stateFileFor(file);
+        this.cache = cache;
+        this.encryptionKey = encryptionKey;
+    }
+
+    public DownloadOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Gets the CRC-32C of the downloaded content, as stored. For an encrypted
+     * object, that is the ciphertext.
+     *
+     * @return the CRC-32C, or -1 if the download has not completed or was
+     *         served from the ObjectCache.
+     */
+    public long getCrc32c() {
+        return crc32c;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        File file = getFile();
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        crc32c = -1;
+        ObjectCache.Entry cached = cache != null ? cache.get(getBucket(), getKey()) : null;
+        ObjectMetadata metadata;
+        if (cached != null) {
+            metadata = revalidate(cached);
+            if (metadata == null) {
+                return;
+            }
+        } else {
+            metadata = s3.getObjectMetadata(getBucket(), getKey());
+        }
+        long length = metadata.getContentLength();
+        String eTag = metadata.getETag();
+        setBytesTotal(length);
+        checkNotStopped();
+
+        // Ranges that match the parts of a multipart upload can be checked
+        long partSize = ObjectChecksums.getPartSize(metadata);
+        if (CompressedUpload.CONTENT_ENCODING.equalsIgnoreCase(metadata.getContentEncoding())) {
+            downloadDecompressed(eTag, partSize);
+            keep(metadata);
+            return;
+        }
+
+        cipher = null;
+        long plainLength = length;
+        if (ChunkCipher.isEncrypted(metadata)) {
+            if (encryptionKey == null) {
+                throw new IOException(getKey() + " is encrypted and no key is set");
+            }
+            cipher = ChunkCipher.fromMetadata(metadata, encryptionKey);
+            plainLength = cipher.getPlainLength(length);
+        }
+
+        long rangeSize = partSize > 0 ? partSize : options.getRangeSize();
+        if (cipher != null && cipher.alignToChunks(rangeSize) != rangeSize) {
+            // Each range must hold whole chunks to be decrypted on its own
+            rangeSize = cipher.alignToChunks(rangeSize);
+            partSize = 0;
+        }
+        if (state == null) {
+            state = DownloadRangeState.load(stateFile);
+        }
+        if (state == null || !state.matches(eTag, length, rangeSize) || !file.isFile()) {
+            // Nothing usable on disk, or the object changed since
+            state = new DownloadRangeState(eTag, length, rangeSize);
+        }
+        checkMd5 = partSize > 0
+                || state.getRangeCount() == 1 && ObjectChecksums.isMd5ETag(metadata);
+        addBytesTransferred(state.getCompletedBytes() - getBytesTransferred());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(plainLength);
+            if (length > 0) {
+                state.save(stateFile);
+                fetchRanges(raf.getChannel());
+            }
+        } finally {
+            raf.close();
+        }
+        checkNotStopped();
+        verifyParts(eTag, partSize > 0);
+        stateFile.delete();
+        crc32c = state.getCrc32c();
+        keep(metadata);
+    }
+
+    /*
+     * Checks the MD5s of the ranges against a multipart ETag. On a mismatch,
+     * the ranges on disk are dropped, so the download starts over.
+     */
+    private void verifyParts(String eTag, boolean partsAligned) throws IOException {
+        if (!partsAligned) {
+            return;
+        }
+        byte[][] md5s = state.getMd5s();
+        if (md5s == null) {
+            // Ranges left by a download that did not check them
+            return;
+        }
+        String expected = ObjectChecksums.multipartETag(md5s);
+        if (!expected.equalsIgnoreCase(eTag)) {
+            stateFile.delete();
+            state = null;
+            throw new IOException("Download of " + getKey() + " does not match its ETag "
+                    + eTag + ", got " + expected);
+        }
+    }
+
+    /*
+     * Asks S3 for the object unless it still has the ETag of the cached copy,
+     * in which case S3 answers 304 and the copy is put in place.
+     *
+     * @return null if the cached copy was used. Otherwise, the metadata of the
+     *         current version, taken from the response so that no HEAD
+     *         request is needed. Its body is dropped and fetched in ranges.
+     */
+    private ObjectMetadata revalidate(ObjectCache.Entry cached) throws Exception {
+        GetObjectRequest request = new GetObjectRequest(getBucket(), getKey())
+                .withNonmatchingETagConstraint(cached.getETag());
+        if (cached.getLastModified() > 0) {
+            request.setModifiedSinceConstraint(new Date(cached.getLastModified()));
+        }
+        S3Object object = s3.getObject(request);
+        if (object != null) {
+            object.getObjectContent().abort();
+            return object.getObjectMetadata();
+        }
+
+        checkNotStopped();
+        setBytesTotal(cached.getSize());
+        try {
+            cache.copyTo(cached, getFile());
+        } catch (IOException e) {
+            // Evicted or damaged in the meantime; download it after all
+            cache.remove(getBucket(), getKey());
+            return s3.getObjectMetadata(getBucket(), getKey());
+        }
+        // Left over from an earlier download to the same file
+        stateFile.delete();
+        state = null;
+        addBytesTransferred(cached.getSize() - getBytesTransferred());
+        return null;
+    }
+
+    /*
+     * Keeps a copy of the finished download in the cache, unless it was
+     * decrypted, so that no second copy of the plaintext is written.
+     */
+    private void keep(ObjectMetadata metadata) {
+        if (cache == null || ChunkCipher.isEncrypted(metadata)) {
+            return;
+        }
+        Date lastModified = metadata.getLastModified();
+        try {
+            cache.put(getBucket(), getKey(), metadata.getETag(),
+                    lastModified != null ? lastModified.getTime() : 0, getFile());
+        } catch (IOException e) {
+            // The download succeeded; it is only fetched in full next time
+        }
+    }
+
+    /*
+     * Keeps up to the configured number of ranges in flight until every range
+     * is on disk, a range fails for good, or the transfer is stopped.
+     */
+    private void fetchRanges(FileChannel channel) throws Exception {
+        CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(
+                rangeExecutor);
+        int concurrency = options.getConcurrency();
+        int rangeCount = state.getRangeCount();
+        int next = 0;
+        int inFlight = 0;
+        Exception failure = null;
+
+        while (true) {
+            while (failure == null && !isStopRequested() && inFlight < concurrency
+                    && next < rangeCount) {
+                if (!state.isCompleted(next)) {
+                    completionService.submit(new RangeFetcher(next, channel));
+                    inFlight++;
+                }
+                next++;
+            }
+            if (inFlight == 0) {
+                break;
+            }
+
+            Future<Integer> future = completionService.take();
+            inFlight--;
+            try {
+                future.get();
+                state.save(stateFile);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Streams a gzip-encoded object, such as one written by CompressedUpload,
+     * through a decompressor into the file. Compressed ranges cannot be
+     * decompressed on their own, so the object is fetched in one piece and
+     * fetched again from the start when resumed. Progress counts compressed
+     * bytes.
+     *
+     * Compressed objects are multipart uploads, whose ETags the SDK does not
+     * check, so the compressed bytes are checked here when the part size is
+     * known. The SDK decompresses bodies sent with Content-Encoding: gzip on
+     * its own, so S3 is asked to send the body as is instead.
+     */
+    private void downloadDecompressed(final String eTag, final long partSize)
+            throws Exception {
+        state = null;
+        stateFile.delete();
+        addBytesTransferred(-getBytesTransferred());
+        callWithRetries(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    fetchDecompressed(eTag, partSize);
+                    return null;
+                } catch (StoppedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    addBytesTransferred(-getBytesTransferred());
+                    throw e;
+                }
+            }
+        }, options.getMaxRangeRetries());
+    }
+
+    private void fetchDecompressed(String eTag, long partSize) throws Exception {
+        S3Object object = s3.getObject(new GetObjectRequest(getBucket(), getKey())
+                .withMatchingETagConstraint(eTag)
+                .withResponseHeaders(new ResponseHeaderOverrides()
+                        .withContentEncoding(IDENTITY_ENCODING)));
+        if (object == null) {
+            throw new IllegalStateException("Object changed during download: " + getKey());
+        }
+
+        final S3ObjectInputStream content = object.getObjectContent();
+        final ObjectChecksums.PartDigester parts = partSize > 0
+                ? new ObjectChecksums.PartDigester(partSize) : null;
+        InputStream counted = new FilterInputStream(throttle(content)) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    addBytesTransferred(1);
+                    if (parts != null) {
+                        parts.update(new byte[] {
+                                (byte) b
+                        }, 0, 1);
+                    }
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read > 0) {
+                    addBytesTransferred(read);
+                    if (parts != null) {
+                        parts.update(buffer, offset, read);
+                    }
+                }
+                return read;
+            }
+        };
+        boolean drained = false;
+        OutputStream out = null;
+        try {
+            ChecksumInputStream in = new ChecksumInputStream(new GZIPInputStream(counted,
+                    BUFFER_SIZE), false);
+            out = new FileOutputStream(getFile());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkNotStopped();
+                out.write(buffer, 0, read);
+            }
+            // The decompressor can stop before the end of the body
+            while (counted.read(buffer) != -1) {
+                checkNotStopped();
+            }
+            drained = true;
+            if (parts != null && !parts.getETag().equalsIgnoreCase(eTag)) {
+                throw new IOException("Download of " + getKey()
+                        + " does not match its ETag " + eTag);
+            }
+            crc32c = in.getCrc32c();
+        } finally {
+            if (!drained) {
+                content.abort();
+            }
+            content.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    @Override
+    protected void onCanceled() {
+        stateFile.delete();
+        getFile().delete();
+        state = null;
+    }
+
+    /*
+     * Fetches one range into its place in the file, retrying it under the
+     * engine's congestion control.
+     */
+    private class RangeFetcher implements Callable<Integer> {
+
+        private final int range;
+        private final FileChannel channel;
+
+        RangeFetcher(int range, FileChannel channel) {
+            this.range = range;
+            this.channel = channel;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            return callWithRetries(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    fetch();
+                    return range;
+                }
+            }, options.getMaxRangeRetries());
+        }
+
+        /*
+         * Streams the range into the file, decrypting it on the way if the
+         * object is encrypted. Stored bytes are credited as they are read and
+         * taken back if the attempt fails.
+         */
+        private void fetch() throws Exception {
+            long start = state.getRangeStart(range);
+            long end = state.getRangeEnd(range);
+            GetObjectRequest request = new GetObjectRequest(getBucket(), getKey())
+                    .withRange(start, end)
+                    .withMatchingETagConstraint(state.getETag());
+            S3Object object = s3.getObject(request);
+            if (object == null) {
+                throw new IllegalStateException("Object changed during download: " + getKey());
+            }
+
+            long credited = 0;
+            S3ObjectInputStream content = object.getObjectContent();
+            ChecksumInputStream checked = new ChecksumInputStream(content, checkMd5);
+            InputStream in = throttle(checked);
+            ChunkCipher rangeCipher = cipher;
+            long position = start;
+            long expectedEnd = end + 1;
+            if (rangeCipher != null) {
+                in = new DecryptingInputStream(in, rangeCipher,
+                        start / rangeCipher.getEncryptedChunkSize(),
+                        rangeCipher.getPlainLength(state.getLength()));
+                position = rangeCipher.getPlainLength(start);
+                expectedEnd = rangeCipher.getPlainLength(end + 1);
+            }
+            boolean drained = false;
+            try {
+                byte[] bytes = new byte[BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int read;
+                while ((read = in.read(bytes)) != -1) {
+                    checkNotStopped();
+                    buffer.clear();
+                    buffer.limit(read);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    long count = checked.getCount();
+                    addBytesTransferred(count - credited);
+                    credited = count;
+                }
+                drained = true;
+                // E.g. the chunk of an empty encrypted object
+                addBytesTransferred(checked.getCount() - credited);
+                credited = checked.getCount();
+                if (position != expectedEnd) {
+                    throw new IOException("Range " + start + "-" + end + " ended at " + position);
+                }
+                // Only computed when the ETag can be checked
+                byte[] md5 = checked.getMd5();
+                if (md5 != null && state.getRangeCount() == 1
+                        && ObjectChecksums.isMd5ETag(state.getETag())
+                        && !ObjectChecksums.matches(state.getETag(), md5)) {
+                    // Corrupted on the way; fetched again by the retry
+                    throw new IOException("Download of " + getKey()
+                            + " does not match its ETag " + state.getETag());
+                }
+                state.setCompleted(range, md5, checked.getCrc32c());
+            } catch (Exception e) {
+                addBytesTransferred(-credited);
+                throw e;
+            } finally {
+                if (!drained) {
+                    // Don't read the rest of the body just to reuse the connection
+                    content.abort();
+                }
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+/*
+ * Measures a byte rate over a rolling window made of fixed time slots. Slots
+ * older than the window are ignored, so the rate drops to zero while nothing
+ * is added, e.g. when a transfer stalls.
+ */
+public class RateWindow {
+
+    private final int slots;
+    private final long slotMillis;
+
+    // Bytes per slot and the period each slot was last used for
+    private final long[] slotBytes;
+    private final long[] slotPeriods;
+    private long firstMillis = -1;
+
+    /**
+     * @param slots the number of slots in the window.
+     * @param slotMillis the length of each slot.
+     */
+    public RateWindow(int slots, long slotMillis) {
+        this.slots = slots;
+        this.slotMillis = slotMillis;
+        this.slotBytes = new long[slots];
+        this.slotPeriods = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            slotPeriods[i] = -1;
+        }
+    }
+
+    public synchronized void add(long nowMillis, long bytes) {
+        if (firstMillis < 0) {
+            firstMillis = nowMillis;
+        }
+        long period = nowMillis / slotMillis;
+        int slot = (int) (period % slots);
+        if (slotPeriods[slot] != period) {
+            slotPeriods[slot] = period;
+            slotBytes[slot] = 0;
+        }
+        slotBytes[slot] += bytes;
+    }
+
+    /**
+     * @return the bytes per second over the window, or over the time since
+     *         the first bytes were added if that is shorter.
+     */
+    public synchronized long getRate(long nowMillis) {
+        if (firstMillis < 0) {
+            return 0;
+        }
+        long period = nowMillis / slotMillis;
+        long oldest = period - slots + 1;
+        long bytes = 0;
+        for (int i = 0; i < slots; i++) {
+            if (slotPeriods[i] >= oldest && slotPeriods[i] <= period) {
+                bytes += slotBytes[i];
+            }
+        }
+        // At least one slot, so the first bytes do not make a huge rate
+        long span = Math.max(nowMillis - Math.max(firstMillis, oldest * slotMillis), slotMillis);
+        return bytes * 1000 / span;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * Keeps track of the copies of picked documents that are staged in app
+ * storage for TransferUtility. Each copy is pinned while its upload waits in
+ * the queue, and then to the transfer that uploads it. Once that transfer has
+ * finished, the copy stays around so that picking
+ * the same document again reuses it, until it is evicted, least recently used
+ * first, to keep the staging area under its quota. Copies of deleted
+ * transfers are removed right away.
+ */
+public class StagingStore {
+
+    // Transfer id of a staged copy that no transfer uses
+    public static final int NO_TRANSFER = 0;
+
+    private static final String INDEX_FILE_NAME = "staging.index";
+    private static final int MAGIC = 0x53335354; // "S3ST"
+    private static final int VERSION = 1;
+
+    private final File dir;
+    private final File indexFile;
+    private final long quotaBytes;
+
+    // Staged copies by source Uri in access order, guarded by this
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long stagedBytes;
+    private boolean loaded;
+
+    /*
+     * A staged copy of one source Uri.
+     */
+    private static class Entry {
+        final String source;
+        final File file;
+        final long size;
+        int transferId;
+
+        // Uploads of the copy that are queued but not started yet. Not saved,
+        // since the queue does not outlive the process.
+        int queued;
+
+        Entry(String source, File file, long size, int transferId) {
+            this.source = source;
+            this.file = file;
+            this.size = size;
+            this.transferId = transferId;
+        }
+    }
+
+    /**
+     * @param dir the directory the copies are staged in.
+     * @param quotaBytes how many bytes of copies that no transfer uses may be
+     *            kept.
+     */
+    public StagingStore(File dir, long quotaBytes) {
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX_FILE_NAME);
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * Stages a copy of a document for an upload that is about to be queued,
+     * or reuses the copy staged when the same Uri was picked before. Call off
+     * the main thread. The copy is pinned until it is assigned to its transfer
+     * or its queued upload is dropped.
+     *
+     * @param context
+     * @param uri the document to stage.
+     * @return the staged copy.
+     * @throws IOException if the document cannot be copied.
+     */
+    public File stage(Context context, Uri uri) throws IOException {
+        String source = uri.toString();
+        synchronized (this) {
+            load();
+            Entry entry = entries.get(source);
+            if (entry != null && entry.file.length() == entry.size) {
+                entry.queued++;
+                return entry.file;
+            }
+            if (entry != null) {
+                // The copy was damaged or removed behind our back
+                remove(entry);
+            }
+        }
+
+        // Copying can take a while, so don't hold the lock
+        File copy = Util.copyContentUriToFile(context, uri);
+        synchronized (this) {
+            Entry entry = entries.get(source);
+            if (entry != null) {
+                // Staged by someone else in the meantime
+                copy.delete();
+                entry.queued++;
+                return entry.file;
+            }
+            entry = new Entry(source, copy, copy.length(), NO_TRANSFER);
+            entry.queued = 1;
+            entries.put(source, entry);
+            stagedBytes += entry.size;
+            evict(entry);
+            save();
+            return copy;
+        }
+    }
+
+    /**
+     * Pins a staged copy to the transfer that uploads it, so it is never
+     * evicted while the transfer may still need it. This takes over the pin
+     * of its queued upload.
+     */
+    public synchronized void assign(File file, int transferId) {
+        load();
+        Entry entry = find(file);
+        if (entry != null) {
+            entry.transferId = transferId;
+            entry.queued = Math.max(entry.queued - 1, 0);
+            save();
+        }
+    }
+
+    /**
+     * Unpins a copy whose queued upload was dropped before it started.
+     */
+    public synchronized void unqueue(File file) {
+        load();
+        Entry entry = find(file);
+        if (entry != null && entry.queued > 0) {
+            entry.queued--;
+            evict(null);
+            save();
+        }
+    }
+
+    /**
+     * Unpins the copy of a transfer that finished. The copy may be reused or
+     * evicted from now on.
+     */
+    public synchronized void release(int transferId) {
+        load();
+        Entry entry = findByTransfer(transferId);
+        if (entry != null) {
+            entry.transferId = NO_TRANSFER;
+            evict(null);
+            save();
+        }
+    }
+
+    /**
+     * Removes the copy of a transfer that was deleted.
+     */
+    public synchronized void discard(int transferId) {
+        load();
+        Entry entry = findByTransfer(transferId);
+        if (entry != null) {
+            remove(entry);
+            save();
+        }
+    }
+
+    /**
+     * Catches up with transfers that finished or were deleted while nobody was
+     * listening, e.g. while the app was in the background.
+     */
+    public void reconcile(TransferUtility transferUtility) {
+        int[] transferIds;
+        synchronized (this) {
+            load();
+            transferIds = new int[entries.size()];
+            int i = 0;
+            for (Entry entry : entries.values()) {
+                transferIds[i++] = entry.transferId;
+            }
+        }
+        for (int transferId : transferIds) {
+            if (transferId == NO_TRANSFER || TransferEngine.isEngineTransfer(transferId)) {
+                // Engine transfers release their copies as they finish
+                continue;
+            }
+            TransferObserver observer = transferUtility.getTransferById(transferId);
+            if (observer == null) {
+                discard(transferId);
+            } else if (observer.getState() == TransferState.COMPLETED
+                    || observer.getState() == TransferState.CANCELED) {
+                release(transferId);
+            }
+        }
+    }
+
+    public synchronized long getStagedBytes() {
+        load();
+        return stagedBytes;
+    }
+
+    /*
+     * Evicts unpinned copies, least recently used first, until they fit in
+     * the quota.
+     */
+    private void evict(Entry keep) {
+        long unpinnedBytes = 0;
+        for (Entry entry : entries.values()) {
+            if (!isPinned(entry)) {
+                unpinnedBytes += entry.size;
+            }
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (unpinnedBytes > quotaBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (isPinned(entry) || entry == keep) {
+                continue;
+            }
+            it.remove();
+            entry.file.delete();
+            stagedBytes -= entry.size;
+            unpinnedBytes -= entry.size;
+        }
+    }
+
+    private static boolean isPinned(Entry entry) {
+        return entry.transferId != NO_TRANSFER || entry.queued > 0;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.source);
+        entry.file.delete();
+        stagedBytes -= entry.size;
+    }
+
+    private Entry find(File file) {
+        for (Entry entry : entries.values()) {
+            if (entry.file.equals(file)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry findByTransfer(int transferId) {
+        for (Entry entry : entries.values()) {
+            if (entry.transferId == transferId) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Reads the index once, and removes staged files that it does not know
+     * about, such as copies made before the store existed.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        readIndex();
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> known = new ArrayList<File>();
+        for (Entry entry : entries.values()) {
+            known.add(entry.file);
+        }
+        for (File file : files) {
+            if (!file.equals(indexFile) && !known.contains(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void readIndex() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), new File(dir, in.readUTF()),
+                        in.readLong(), in.readInt());
+                if (TransferEngine.isEngineTransfer(entry.transferId)) {
+                    // Engine transfers do not outlive the process
+                    entry.transferId = NO_TRANSFER;
+                }
+                if (entry.file.isFile()) {
+                    entries.put(entry.source, entry);
+                    stagedBytes += entry.size;
+                }
+            }
+        } catch (IOException e) {
+            // Keep what was read; the rest is removed as unknown
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /*
+     * Saves the index in access order, replacing the previous file
+     * atomically. A failed save only loses track of copies, which are then
+     * removed on the next load.
+     */
+    private void save() {
+        File tmp = new File(dir, INDEX_FILE_NAME + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.source);
+                    out.writeUTF(entry.file.getName());
+                    out.writeLong(entry.size);
+                    out.writeInt(entry.transferId);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.HttpUtils;
+import com.amazonaws.util.Md5Utils;
+import com.amazonaws.util.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Serves objects of a bucket over HTTP on the loopback interface while they
+ * download, so that a media player can start playing right away. Each object
+ * is backed by a ProgressiveDownload, which fetches the parts the player asks
+ * for first. Players seek with Range requests, which fetch the chunks they
+ * cover on demand. The URLs carry a random token, so other apps on the
+ * device cannot read the bucket through the server.
+ */
+public class StreamingServer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final File dir;
+    private final int maxStreams;
+    private final String token;
+    private final ExecutorService connectionExecutor;
+    private final ExecutorService readAheadExecutor;
+
+    // Open streams by key in access order, guarded by this
+    private final LinkedHashMap<String, ProgressiveDownload> streams =
+            new LinkedHashMap<String, ProgressiveDownload>(16, 0.75f, true);
+
+    private ServerSocket serverSocket;
+
+    /**
+     * @param s3 the client to fetch with.
+     * @param bucket the bucket whose objects are served.
+     * @param dir the directory the objects are downloaded to.
+     * @param maxStreams how many objects are kept on disk. When another one
+     *            is streamed, the least recently used one is deleted.
+     */
+    public StreamingServer(AmazonS3 s3, String bucket, File dir, int maxStreams) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.dir = dir;
+        this.maxStreams = maxStreams;
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        this.token = BinaryUtils.toHex(secret);
+        this.connectionExecutor = Executors.newCachedThreadPool(
+                new DaemonThreadFactory("stream-connection"));
+        this.readAheadExecutor = Executors.newFixedThreadPool(Constants.STREAM_CONCURRENCY,
+                new DaemonThreadFactory("stream-read-ahead"));
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface.
+     *
+     * @throws IOException if no port can be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket listening = serverSocket;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(listening);
+            }
+        }, "stream-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops listening and closes the open streams. Their files are kept, so
+     * a new server picks up where this one left off.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+            for (ProgressiveDownload stream : streams.values()) {
+                stream.close();
+            }
+            streams.clear();
+        }
+        connectionExecutor.shutdownNow();
+        readAheadExecutor.shutdownNow();
+    }
+
+    /**
+     * Gets the URL a player can stream an object from. The server must be
+     * started.
+     */
+    public synchronized String getUrl(String key) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + token + "/"
+                + HttpUtils.urlEncode(key, true);
+    }
+
+    private void accept(ServerSocket listening) {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = listening.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            connectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /*
+     * Answers one request and closes the connection. Players open a new
+     * connection for each seek anyway.
+     */
+    private void serve(Socket socket) {
+        try {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(),
+                        BUFFER_SIZE);
+                handle(in, out);
+                out.flush();
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // The player went away, e.g. to seek elsewhere
+        }
+    }
+
+    private void handle(InputStream in, OutputStream out) throws IOException {
+        String[] requestLine = readLine(in).split(" ");
+        String range = null;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                range = line.substring(colon + 1).trim();
+            }
+        }
+        if (requestLine.length < 2) {
+            sendStatus(out, 400, "Bad Request");
+            return;
+        }
+        String method = requestLine[0];
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            sendStatus(out, 405, "Method Not Allowed");
+            return;
+        }
+        String prefix = "/" + token + "/";
+        if (!requestLine[1].startsWith(prefix)) {
+            sendStatus(out, 404, "Not Found");
+            return;
+        }
+        String key = decodePath(requestLine[1].substring(prefix.length()));
+
+        ProgressiveDownload stream;
+        try {
+            stream = getStream(key);
+        } catch (IOException e) {
+            sendStatus(out, 502, "Bad Gateway");
+            return;
+        }
+
+        long length = stream.getLength();
+        long start = 0;
+        long end = length - 1;
+        int status = 200;
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.matches()) {
+            if (matcher.group(1).length() > 0) {
+                start = Long.parseLong(matcher.group(1));
+                if (matcher.group(2).length() > 0) {
+                    end = Math.min(Long.parseLong(matcher.group(2)), length - 1);
+                }
+            } else if (matcher.group(2).length() > 0) {
+                // The last bytes
+                start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+            }
+            if (start > end) {
+                writeHead(out, 416, "Range Not Satisfiable", "Content-Range: bytes */" + length,
+                        0, stream.getContentType());
+                return;
+            }
+            status = 206;
+        }
+
+        writeHead(out, status, status == 206 ? "Partial Content" : "OK",
+                status == 206 ? "Content-Range: bytes " + start + "-" + end + "/" + length
+                        : null, end - start + 1, stream.getContentType());
+        if (head) {
+            return;
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        while (position <= end) {
+            int read;
+            try {
+                read = stream.read(position, buffer, 0,
+                        (int) Math.min(buffer.length, end + 1 - position));
+            } catch (IOException e) {
+                if (stream.isObjectChanged()) {
+                    // The player's next request opens the new version
+                    drop(key, stream);
+                }
+                throw e;
+            }
+            if (read < 0) {
+                throw new IOException("Stream of " + key + " ended early");
+            }
+            out.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    /*
+     * Gets the stream of a key, opening it on first use. Opening fetches the
+     * first chunk, which is what a player asks for first.
+     */
+    private ProgressiveDownload getStream(String key) throws IOException {
+        synchronized (this) {
+            ProgressiveDownload stream = streams.get(key);
+            if (stream != null && !stream.isObjectChanged()) {
+                return stream;
+            }
+            if (stream != null) {
+                drop(key, stream);
+            }
+        }
+
+        File file = new File(dir, BinaryUtils.toHex(Md5Utils.computeMD5Hash(
+                (bucket + '\n' + key).getBytes(StringUtils.UTF8))));
+        ProgressiveDownload opened = ProgressiveDownload.open(s3, bucket, key, file,
+                Constants.STREAM_CHUNK_SIZE, readAheadExecutor, Constants.STREAM_READ_AHEAD);
+        synchronized (this) {
+            ProgressiveDownload stream = streams.get(key);
+            if (stream != null) {
+                // Opened by another connection in the meantime
+                opened.close();
+                return stream;
+            }
+            streams.put(key, opened);
+            Iterator<ProgressiveDownload> eldest = streams.values().iterator();
+            while (streams.size() > maxStreams && eldest.hasNext()) {
+                ProgressiveDownload evicted = eldest.next();
+                eldest.remove();
+                delete(evicted);
+            }
+            return opened;
+        }
+    }
+
+    /*
+     * Closes a stream and deletes what it fetched, unless another stream of
+     * the key took its place already.
+     */
+    private synchronized void drop(String key, ProgressiveDownload stream) {
+        if (streams.get(key) == stream) {
+            streams.remove(key);
+            delete(stream);
+        }
+    }
+
+    private static void delete(ProgressiveDownload stream) {
+        stream.close();
+        stream.getFile().delete();
+        DownloadRangeState.stateFileFor(stream.getFile()).delete();
+    }
+
+    private static void sendStatus(OutputStream out, int status, String reason)
+            throws IOException {
+        writeHead(out, status, reason, null, 0, null);
+    }
+
+    private static void writeHead(OutputStream out, int status, String reason, String extra,
+            long contentLength, String contentType) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        head.append("Content-Length: ").append(contentLength).append("\r\n");
+        head.append("Accept-Ranges: bytes\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (extra != null) {
+            head.append(extra).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes(StringUtils.UTF8));
+    }
+
+    /*
+     * Reads a line of the request head, without its line break.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /*
+     * Undoes the percent-encoding of a path. Unlike URLDecoder, this leaves a
+     * '+' alone.
+     */
+    private static String decodePath(String path) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%' && i + 2 < path.length()) {
+                bytes.write(Integer.parseInt(path.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                byte[] encoded = String.valueOf(c).getBytes(StringUtils.UTF8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StringUtils.UTF8);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
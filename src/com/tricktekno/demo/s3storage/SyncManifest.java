@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Remembers the state of every path as of the last sync of a folder: the size
+ * and modification time of the local file, and the ETag and size of the
+ * object. A path whose local and remote state both still match its entry is
+ * in sync and costs nothing on the next run.
+ */
+public class SyncManifest {
+
+    private static final int MAGIC = 0x5333534d; // "S3SM"
+    private static final int VERSION = 1;
+
+    // Entries by relative path, guarded by this
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean modified;
+
+    /**
+     * Reads a manifest. A missing or unreadable file gives an empty manifest,
+     * which makes the next sync compare contents instead of trusting it.
+     *
+     * @param file the file the manifest was saved to.
+     * @return the manifest.
+     */
+    public static SyncManifest load(File file) {
+        SyncManifest manifest = new SyncManifest();
+        if (!file.isFile()) {
+            return manifest;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return manifest;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(),
+                        in.readUTF(), in.readLong());
+                manifest.entries.put(entry.path, entry);
+            }
+        } catch (IOException e) {
+            // A partial manifest is wrong about the missing paths
+            manifest.entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Saves the manifest, replacing the previous file atomically.
+     *
+     * @param file the file to save to.
+     * @throws IOException if the manifest cannot be written.
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.path);
+                    out.writeLong(entry.localSize);
+                    out.writeLong(entry.localModified);
+                    out.writeUTF(entry.eTag);
+                    out.writeLong(entry.remoteSize);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+            modified = false;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public synchronized void put(Entry entry) {
+        entries.put(entry.path, entry);
+        modified = true;
+    }
+
+    public synchronized void remove(String path) {
+        if (entries.remove(path) != null) {
+            modified = true;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return whether the manifest changed since it was loaded or saved.
+     */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * @return all paths, in the order S3 lists their keys.
+     */
+    public synchronized List<String> getSortedPaths() {
+        List<String> paths = new ArrayList<String>(entries.keySet());
+        Collections.sort(paths, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return BucketIndexEntry.compareKeys(a, b);
+            }
+        });
+        return paths;
+    }
+
+    /*
+     * The synced state of one path.
+     */
+    public static class Entry {
+
+        final String path;
+        final long localSize;
+        final long localModified;
+        final String eTag;
+        final long remoteSize;
+
+        Entry(String path, long localSize, long localModified, String eTag, long remoteSize) {
+            this.path = path;
+            this.localSize = localSize;
+            this.localModified = localModified;
+            this.eTag = eTag;
+            this.remoteSize = remoteSize;
+        }
+
+        boolean matchesLocal(long size, long modified) {
+            return localSize == size && localModified == modified;
+        }
+
+        boolean matchesRemote(String eTag, long size) {
+            return remoteSize == size && this.eTag.equals(eTag);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/*
+ * Paces reads through one or more TokenBuckets, e.g. the bucket of a single
+ * transfer and the one shared by all transfers of its kind. The bytes are
+ * paid for after they are read, so the read sizes of the caller are kept.
+ * Mark and reset are passed through, so SDK retries still work.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final TokenBucket[] buckets;
+
+    public ThrottledInputStream(InputStream in, TokenBucket... buckets) {
+        super(in);
+        this.buckets = buckets;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            pay(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            pay(read);
+        }
+        return read;
+    }
+
+    private void pay(int bytes) throws IOException {
+        try {
+            for (TokenBucket bucket : buckets) {
+                bucket.acquire(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
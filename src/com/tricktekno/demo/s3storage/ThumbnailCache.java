@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Keeps the thumbnails of bucket objects in two tiers: decoded bitmaps in
+ * memory, and compressed copies in a cache directory, each evicted least
+ * recently used first to stay under its byte quota. A thumbnail is stored
+ * under the key and ETag of its object, so a replaced object gets a new one.
+ * Objects that have no thumbnail are remembered in memory so they are not
+ * fetched again.
+ */
+public class ThumbnailCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int JPEG_QUALITY = 85;
+
+    private final File dir;
+    private final long memoryQuotaBytes;
+    private final long diskQuotaBytes;
+
+    // Decoded thumbnails by id in access order, guarded by this
+    private final LinkedHashMap<String, Bitmap> memory =
+            new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private long memoryBytes;
+
+    // Sizes of the thumbnail files by id in access order, guarded by this
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f,
+            true);
+    private long diskBytes;
+    private boolean diskLoaded;
+
+    private final Set<String> missing = new HashSet<String>();
+
+    /**
+     * @param dir the directory for the compressed thumbnails.
+     * @param memoryQuotaBytes how many bytes of bitmaps may be kept in memory.
+     * @param diskQuotaBytes how many bytes of files may be kept in dir.
+     */
+    public ThumbnailCache(File dir, long memoryQuotaBytes, long diskQuotaBytes) {
+        this.dir = dir;
+        this.memoryQuotaBytes = memoryQuotaBytes;
+        this.diskQuotaBytes = diskQuotaBytes;
+    }
+
+    /**
+     * Gets the id a thumbnail is cached under.
+     */
+    public static String getId(BucketIndexEntry entry) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String name = entry.getKey() + '\n' + entry.getETag();
+        return BinaryUtils.toHex(digest.digest(name.getBytes(StringUtils.UTF8)));
+    }
+
+    /**
+     * Gets a thumbnail if it is in memory. Cheap enough for the main thread.
+     */
+    public synchronized Bitmap getFromMemory(String id) {
+        return memory.get(id);
+    }
+
+    /**
+     * Gets a thumbnail from memory, or from disk and then keeps it in memory.
+     * Call off the main thread.
+     *
+     * @return the thumbnail, or null if it is not cached.
+     */
+    public Bitmap get(String id) {
+        File file;
+        synchronized (this) {
+            Bitmap bitmap = memory.get(id);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            loadDisk();
+            if (disk.get(id) == null) {
+                return null;
+            }
+            file = new File(dir, id);
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        synchronized (this) {
+            if (bitmap == null) {
+                // Damaged or removed behind our back
+                removeFile(id);
+                return null;
+            }
+            // Keeps the order across restarts, which is read from the files
+            file.setLastModified(System.currentTimeMillis());
+            putInMemory(id, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Keeps a thumbnail in memory and writes it to disk. Call off the main
+     * thread.
+     */
+    public void put(String id, Bitmap bitmap) {
+        synchronized (this) {
+            putInMemory(id, bitmap);
+            loadDisk();
+        }
+
+        File temp = null;
+        try {
+            // Unique, since the same thumbnail may be fetched twice at once
+            temp = File.createTempFile(id, TEMP_SUFFIX, dir);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                if (bitmap.hasAlpha()) {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } else {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Only kept in memory then
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            File file = new File(dir, id);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            Long old = disk.put(id, file.length());
+            if (old != null) {
+                diskBytes -= old;
+            }
+            diskBytes += file.length();
+            trimDisk();
+        }
+    }
+
+    /**
+     * Remembers that an object has no thumbnail that can be shown.
+     */
+    public synchronized void putMissing(String id) {
+        missing.add(id);
+    }
+
+    public synchronized boolean isMissing(String id) {
+        return missing.contains(id);
+    }
+
+    private void putInMemory(String id, Bitmap bitmap) {
+        Bitmap old = memory.put(id, bitmap);
+        if (old != null) {
+            memoryBytes -= sizeOf(old);
+        }
+        memoryBytes += sizeOf(bitmap);
+        Iterator<Bitmap> eldest = memory.values().iterator();
+        while (memoryBytes > memoryQuotaBytes && eldest.hasNext()) {
+            Bitmap evicted = eldest.next();
+            if (evicted == bitmap) {
+                // Larger than the whole quota; keep it for now
+                break;
+            }
+            memoryBytes -= sizeOf(evicted);
+            eldest.remove();
+        }
+    }
+
+    /*
+     * Reads what is on disk the first time it is needed, oldest first. Left
+     * over temporary files are deleted.
+     */
+    private void loadDisk() {
+        if (diskLoaded) {
+            return;
+        }
+        diskLoaded = true;
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            disk.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > diskQuotaBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            diskBytes -= entry.getValue();
+            eldest.remove();
+            new File(dir, entry.getKey()).delete();
+        }
+    }
+
+    private void removeFile(String id) {
+        Long size = disk.remove(id);
+        if (size != null) {
+            diskBytes -= size;
+        }
+        new File(dir, id).delete();
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        // getByteCount() needs API level 12
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Shows thumbnails of image objects in list rows. A thumbnail comes from the
+ * ThumbnailCache if it is there. Otherwise it is fetched, in this order of
+ * preference:
+ *
+ * 1. a server-side thumbnail stored under Constants.THUMBNAIL_PREFIX;
+ * 2. the whole object, if it is small;
+ * 3. a ranged GET of the start of a JPEG, for the thumbnail embedded in its
+ *    EXIF header.
+ *
+ * The fetched image is decoded at a reduced sample size and cached. Fetches
+ * run on a few background threads, newest first, so the rows on screen load
+ * before the rows the user scrolled past. A row that is recycled or bound to
+ * another object cancels its fetch.
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final String[] IMAGE_EXTENSIONS = {
+            ".jpg", ".jpeg", ".png", ".gif", ".webp", ".bmp"
+    };
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Context context;
+    private final ThumbnailCache cache;
+    private final String bucket;
+    private final int size;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param context
+     * @param cache where thumbnails are kept.
+     * @param bucket the bucket the objects are in.
+     * @param size the size in pixels of the shorter side of a thumbnail.
+     */
+    public ThumbnailLoader(Context context, ThumbnailCache cache, String bucket, int size) {
+        this.context = context.getApplicationContext();
+        this.cache = cache;
+        this.bucket = bucket;
+        this.size = size;
+        this.executor = new ThreadPoolExecutor(Constants.THUMBNAIL_CONCURRENCY,
+                Constants.THUMBNAIL_CONCURRENCY, 0, TimeUnit.MILLISECONDS, new LifoQueue(),
+                new BackgroundThreadFactory());
+    }
+
+    /**
+     * Gets whether a key names an image that may have a thumbnail.
+     */
+    public static boolean isImage(String key) {
+        String lower = key.toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shows the thumbnail of an object in a view, cancelling whatever the view
+     * was loading before. The view is cleared until the thumbnail is there.
+     * Must be called on the main thread.
+     *
+     * @param entry the object.
+     * @param thumbnailKey the key of its server-side thumbnail, or null if it
+     *            has none.
+     * @param view where to show the thumbnail.
+     */
+    public void load(BucketIndexEntry entry, String thumbnailKey, ImageView view) {
+        String id = ThumbnailCache.getId(entry);
+        Request current = (Request) view.getTag();
+        if (current != null) {
+            if (current.id.equals(id)) {
+                // Still loading the same thumbnail
+                return;
+            }
+            current.cancel();
+            view.setTag(null);
+        }
+
+        Bitmap bitmap = cache.getFromMemory(id);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageDrawable(null);
+        if (cache.isMissing(id)) {
+            return;
+        }
+        Request request = new Request(id, entry, thumbnailKey, view);
+        view.setTag(request);
+        request.future = executor.submit(request);
+    }
+
+    /**
+     * Cancels what a view is loading, e.g. when its row is recycled. Must be
+     * called on the main thread.
+     */
+    public void cancel(ImageView view) {
+        Request current = (Request) view.getTag();
+        if (current != null) {
+            current.cancel();
+            view.setTag(null);
+        }
+    }
+
+    /**
+     * Cancels all fetches and stops the threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Fetches and decodes a thumbnail.
+     *
+     * @return the thumbnail, or null if the object has none that can be shown.
+     */
+    private Bitmap fetch(Request request) throws IOException {
+        AmazonS3 s3 = Util.getS3Client(context);
+        if (request.thumbnailKey != null) {
+            return decode(read(s3, new GetObjectRequest(bucket, request.thumbnailKey),
+                    request));
+        }
+
+        BucketIndexEntry entry = request.entry;
+        if (entry.getSize() <= Constants.THUMBNAIL_MAX_FETCH_BYTES) {
+            return decode(read(s3, new GetObjectRequest(bucket, entry.getKey()), request));
+        }
+
+        String key = entry.getKey().toLowerCase(Locale.US);
+        if (key.endsWith(".jpg") || key.endsWith(".jpeg")) {
+            GetObjectRequest header = new GetObjectRequest(bucket, entry.getKey())
+                    .withRange(0, Constants.THUMBNAIL_HEADER_BYTES - 1);
+            return decode(getExifThumbnail(read(s3, header, request)));
+        }
+        return null;
+    }
+
+    /*
+     * Reads a GET response into memory.
+     *
+     * @return the content, or null if it is over THUMBNAIL_MAX_FETCH_BYTES or
+     *         encrypted by the engine, which only decrypts whole downloads.
+     */
+    private byte[] read(AmazonS3 s3, GetObjectRequest get, Request request)
+            throws IOException {
+        S3Object object = s3.getObject(get);
+        S3ObjectInputStream in = object.getObjectContent();
+        if (ChunkCipher.isEncrypted(object.getObjectMetadata())) {
+            in.abort();
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean complete = false;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (request.cancelled) {
+                    throw new InterruptedIOException("Cancelled");
+                }
+                if (out.size() + read > Constants.THUMBNAIL_MAX_FETCH_BYTES) {
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+            complete = true;
+        } finally {
+            if (complete) {
+                in.close();
+            } else {
+                // Drops the connection rather than reading the rest
+                in.abort();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /*
+     * Extracts the thumbnail embedded in the EXIF header of a JPEG. Before
+     * API level 24, ExifInterface only reads files.
+     */
+    private byte[] getExifThumbnail(byte[] header) throws IOException {
+        if (header == null) {
+            return null;
+        }
+        File file = File.createTempFile("exif", ".jpg", context.getCacheDir());
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(header);
+            } finally {
+                out.close();
+            }
+            return new ExifInterface(file.getPath()).getThumbnail();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Decodes an image at the largest power of two subsampling that keeps its
+     * shorter side at least the thumbnail size, then scales it down the rest
+     * of the way.
+     */
+    private Bitmap decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int shorter = Math.min(options.outWidth, options.outHeight);
+        if (shorter <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (shorter / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        shorter = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (shorter <= size) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() * size / shorter,
+                bitmap.getHeight() * size / shorter, true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    /*
+     * Loads one thumbnail into one view.
+     */
+    private class Request implements Runnable {
+
+        final String id;
+        final BucketIndexEntry entry;
+        final String thumbnailKey;
+        final ImageView view;
+
+        // Set on the main thread right after the request is submitted
+        Future<?> future;
+        volatile boolean cancelled;
+
+        Request(String id, BucketIndexEntry entry, String thumbnailKey, ImageView view) {
+            this.id = id;
+            this.entry = entry;
+            this.thumbnailKey = thumbnailKey;
+            this.view = view;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Bitmap bitmap = cache.get(id);
+            if (bitmap == null) {
+                try {
+                    bitmap = fetch(this);
+                } catch (IOException e) {
+                    if (!cancelled) {
+                        Log.w(TAG, "Unable to fetch the thumbnail of " + entry.getKey(), e);
+                    }
+                    return;
+                } catch (AmazonClientException e) {
+                    if (!cancelled) {
+                        Log.w(TAG, "Unable to fetch the thumbnail of " + entry.getKey(), e);
+                    }
+                    return;
+                }
+                if (bitmap == null) {
+                    cache.putMissing(id);
+                    return;
+                }
+                cache.put(id, bitmap);
+            }
+
+            final Bitmap result = bitmap;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may show another object by now
+                    if (view.getTag() == Request.this) {
+                        view.setImageBitmap(result);
+                        view.setTag(null);
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Hands out the most recently queued fetch first.
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable r) {
+            return offerFirst(r);
+        }
+    }
+
+    /*
+     * Runs fetches at background priority, so decoding does not compete with
+     * drawing the list.
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "thumbnail-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+/*
+ * Limits a byte rate. Tokens accrue at the rate up to a small burst, and
+ * taking bytes blocks until enough tokens have accrued. The rate can be
+ * changed at any time, also while callers are blocked.
+ */
+public class TokenBucket {
+
+    // A rate that imposes no limit
+    public static final long UNLIMITED = 0;
+
+    // The burst is a quarter of a second's worth of bytes, but at least this
+    private static final long MIN_BURST = 16 * 1024;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // All guarded by this
+    private long rate;
+    private long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param bytesPerSecond the rate, or UNLIMITED.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the rate. Blocked callers continue at the new rate.
+     *
+     * @param bytesPerSecond the rate, or UNLIMITED.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        rate = Math.max(UNLIMITED, bytesPerSecond);
+        capacity = Math.max(MIN_BURST, rate / 4);
+        tokens = Math.min(tokens, capacity);
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes bytes from the bucket, blocking until they are available.
+     *
+     * @param bytes the number of bytes.
+     * @throws InterruptedException if interrupted while blocked.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (bytes > 0 && rate != UNLIMITED) {
+            refill();
+            // Take at most a burst at a time so large requests can complete
+            long wanted = Math.min(bytes, capacity);
+            if (tokens >= wanted) {
+                tokens -= wanted;
+                bytes -= wanted;
+                continue;
+            }
+            long waitNanos = (long) ((wanted - tokens) * NANOS_PER_SECOND / rate);
+            wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate != UNLIMITED) {
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) * rate
+                    / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
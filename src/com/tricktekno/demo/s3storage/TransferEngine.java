@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Runs transfers that TransferUtility cannot, such as multipart uploads and
+ * ranged downloads with several parts in flight. Its API mirrors
+ * TransferUtility so that the activities can treat both the same way. Engine
+ * transfers have negative ids so they never collide with TransferUtility
+ * records.
+ */
+public class TransferEngine {
+
+    private final AmazonS3 s3;
+
+    // Runs whole transfers, and the parts of those transfers
+    private final ExecutorService transferExecutor;
+    private final ExecutorService partExecutor;
+
+    // All transfers in the order they were created, guarded by itself
+    private final LinkedHashMap<Integer, EngineTransfer> transfers =
+            new LinkedHashMap<Integer, EngineTransfer>();
+
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    // Shared by all uploads, and by all downloads
+    private final TokenBucket uploadBandwidth = new TokenBucket(TokenBucket.UNLIMITED);
+    private final TokenBucket downloadBandwidth = new TokenBucket(TokenBucket.UNLIMITED);
+
+    // Limits the requests of all transfers in flight together
+    private final CongestionController congestion = new CongestionController(
+            Constants.ENGINE_INITIAL_CONCURRENCY, Constants.ENGINE_MAX_CONCURRENCY);
+
+    private volatile UploadDeduplicator deduplicator;
+    private volatile ObjectCache objectCache;
+    private volatile SecretKey encryptionKey;
+
+    public TransferEngine(AmazonS3 s3) {
+        this.s3 = s3;
+        this.transferExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("transfer"));
+        this.partExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("transfer-part"));
+    }
+
+    /**
+     * Checks whether a transfer id belongs to the engine rather than to
+     * TransferUtility.
+     */
+    public static boolean isEngineTransfer(int id) {
+        return id < 0;
+    }
+
+    /**
+     * Starts a parallel multipart upload of a file.
+     *
+     * @param bucket the bucket to upload to.
+     * @param key the key to upload to.
+     * @param file the file to upload.
+     * @param options part size, concurrency and retry settings.
+     * @return the started upload.
+     */
+    public MultipartUpload upload(String bucket, String key, File file, UploadOptions options) {
+        return upload(bucket, key, new FileUploadSource(file), options);
+    }
+
+    /**
+     * Starts a parallel multipart upload that reads its parts from a source,
+     * e.g. straight from a picked document.
+     *
+     * @param bucket the bucket to upload to.
+     * @param key the key to upload to.
+     * @param source where to read the bytes from.
+     * @param options part size, concurrency and retry settings.
+     * @return the started upload.
+     */
+    public MultipartUpload upload(String bucket, String key, UploadSource source,
+            UploadOptions options) {
+        MultipartUpload upload = new MultipartUpload(lastId.decrementAndGet(), s3, bucket, key,
+                source, options, partExecutor, uploadBandwidth, congestion);
+        upload.setDeduplicator(deduplicator);
+        register(upload);
+        transferExecutor.execute(upload);
+        return upload;
+    }
+
+    /**
+     * Starts an upload that gzip-compresses the source on the fly and stores
+     * it with Content-Encoding set. Each part in flight is held in memory, so
+     * keep the part size and concurrency of the options small.
+     *
+     * @param bucket the bucket to upload to.
+     * @param key the key to upload to.
+     * @param source where to read the uncompressed bytes from.
+     * @param contentType the MIME type of the uncompressed data, or null.
+     * @param options part size, concurrency and retry settings.
+     * @return the started upload.
+     */
+    public CompressedUpload uploadCompressed(String bucket, String key, UploadSource source,
+            String contentType, UploadOptions options) {
+        CompressedUpload upload = new CompressedUpload(lastId.decrementAndGet(), s3, bucket,
+                key, source, contentType, options, partExecutor, uploadBandwidth, congestion);
+        upload.setDeduplicator(deduplicator);
+        register(upload);
+        transferExecutor.execute(upload);
+        return upload;
+    }
+
+    /**
+     * Starts an upload that encrypts the source on the fly, each part on its
+     * own thread. The part size of the options is rounded up to whole chunks.
+     * Encrypted uploads are never skipped as duplicates, since that would
+     * need a hash of the plaintext stored next to the object.
+     *
+     * @param bucket the bucket to upload to.
+     * @param key the key to upload to.
+     * @param source where to read the plaintext from.
+     * @param options part size, concurrency and retry settings.
+     * @return the started upload.
+     * @throws IllegalStateException if no encryption key is set.
+     */
+    public MultipartUpload uploadEncrypted(String bucket, String key, UploadSource source,
+            UploadOptions options) {
+        SecretKey masterKey = encryptionKey;
+        if (masterKey == null) {
+            throw new IllegalStateException("No encryption key is set");
+        }
+        ChunkCipher cipher = ChunkCipher.create(masterKey, Constants.ENCRYPTION_CHUNK_SIZE);
+        // The caller may reuse its options for uploads that are not encrypted
+        UploadOptions aligned = options.copy().withPartAlignment(cipher.getEncryptedChunkSize());
+        MultipartUpload upload = new MultipartUpload(lastId.decrementAndGet(), s3, bucket, key,
+                new EncryptedUploadSource(source, cipher), aligned, partExecutor,
+                uploadBandwidth, congestion);
+        register(upload);
+        transferExecutor.execute(upload);
+        return upload;
+    }
+
+    /**
+     * Starts a parallel ranged download of an object.
+     *
+     * @param bucket the bucket to download from.
+     * @param key the key to download.
+     * @param file the file to write to. It is preallocated to the object size,
+     *            or to the plaintext size of an encrypted object, which is
+     *            decrypted with the encryption key.
+     * @param options range size, concurrency and retry settings.
+     * @return the started download.
+     */
+    public RangedDownload download(String bucket, String key, File file, DownloadOptions options) {
+        RangedDownload download = new RangedDownload(lastId.decrementAndGet(), s3, bucket, key,
+                file, options, partExecutor, downloadBandwidth, congestion, objectCache,
+                encryptionKey);
+        register(download);
+        transferExecutor.execute(download);
+        return download;
+    }
+
+    /**
+     * Limits the combined rate of all uploads or of all downloads. Takes
+     * effect right away, also for running transfers.
+     *
+     * @param type UPLOAD or DOWNLOAD.
+     * @param bytesPerSecond the rate, or TokenBucket.UNLIMITED.
+     */
+    public void setBandwidthLimit(TransferType type, long bytesPerSecond) {
+        (type == TransferType.DOWNLOAD ? downloadBandwidth : uploadBandwidth)
+                .setRate(bytesPerSecond);
+    }
+
+    public long getBandwidthLimit(TransferType type) {
+        return (type == TransferType.DOWNLOAD ? downloadBandwidth : uploadBandwidth).getRate();
+    }
+
+    /**
+     * Gets the controller that adapts how many requests all transfers have in
+     * flight together to how much load S3 accepts.
+     */
+    public CongestionController getCongestionController() {
+        return congestion;
+    }
+
+    /**
+     * Makes uploads started from now on first check whether their content is
+     * stored under their key already, and complete without sending anything
+     * if it is.
+     *
+     * @param deduplicator the deduplicator, or null to always upload.
+     */
+    public void setUploadDeduplicator(UploadDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public UploadDeduplicator getUploadDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Makes downloads started from now on keep a copy of what they fetched,
+     * and reuse the copy while the object has not changed.
+     *
+     * @param objectCache the cache, or null to always download.
+     */
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    public ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * Sets the key of the device, which encrypts the data keys of encrypted
+     * uploads and decrypts those of encrypted downloads started from now on.
+     *
+     * @param encryptionKey a 256-bit AES key, or null to neither encrypt nor
+     *            decrypt.
+     */
+    public void setEncryptionKey(SecretKey encryptionKey) {
+        this.encryptionKey = encryptionKey;
+    }
+
+    public SecretKey getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public EngineTransfer getTransferById(int id) {
+        synchronized (transfers) {
+            return transfers.get(id);
+        }
+    }
+
+    public List<EngineTransfer> getTransfersWithType(TransferType type) {
+        List<EngineTransfer> result = new ArrayList<EngineTransfer>();
+        synchronized (transfers) {
+            for (EngineTransfer transfer : transfers.values()) {
+                if (type == TransferType.ANY || transfer.getType() == type) {
+                    result.add(transfer);
+                }
+            }
+        }
+        return result;
+    }
+
+    public boolean pause(int id) {
+        EngineTransfer transfer = getTransferById(id);
+        return transfer != null && transfer.pause();
+    }
+
+    public void pauseAllWithType(TransferType type) {
+        for (EngineTransfer transfer : getTransfersWithType(type)) {
+            transfer.pause();
+        }
+    }
+
+    /**
+     * Resumes a paused or failed transfer. Work that already completed, such
+     * as uploaded parts, is not repeated.
+     *
+     * @return the resumed transfer, or null if it cannot be resumed.
+     */
+    public EngineTransfer resume(int id) {
+        EngineTransfer transfer = getTransferById(id);
+        if (transfer == null || !transfer.prepareResume()) {
+            return null;
+        }
+        transferExecutor.execute(transfer);
+        return transfer;
+    }
+
+    public boolean cancel(int id) {
+        EngineTransfer transfer = getTransferById(id);
+        return transfer != null && transfer.cancel();
+    }
+
+    public void cancelAllWithType(TransferType type) {
+        for (EngineTransfer transfer : getTransfersWithType(type)) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * Forgets a transfer, canceling it first if it is unfinished.
+     */
+    public boolean deleteTransferRecord(int id) {
+        EngineTransfer transfer;
+        synchronized (transfers) {
+            transfer = transfers.remove(id);
+        }
+        if (transfer == null) {
+            return false;
+        }
+        transfer.cancel();
+        transfer.cleanTransferListener();
+        return true;
+    }
+
+    private void register(EngineTransfer transfer) {
+        synchronized (transfers) {
+            transfers.put(transfer.getId(), transfer);
+        }
+    }
+
+    /*
+     * Names worker threads so they are easy to spot in traces.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
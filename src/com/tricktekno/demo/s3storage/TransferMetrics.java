@@ -0,0 +1,467 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.os.SystemClock;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Measures transfers and the S3 requests behind them: a rolling throughput
+ * and the time to first byte of every transfer, and latency histograms per
+ * kind of request. It listens to transfers like any TransferListener and to
+ * the S3 client through a request handler. snapshot() copies everything out,
+ * e.g. to be dumped or exported.
+ */
+public class TransferMetrics implements TransferListener {
+
+    // The throughput is measured over the last 5 seconds
+    private static final int RATE_SLOTS = 10;
+    private static final long RATE_SLOT_MS = 500;
+
+    // Finished transfers are forgotten once this many are tracked
+    private static final int MAX_TRANSFERS = 200;
+
+    private static final String FIRST_BYTE_SUFFIX = " first byte";
+
+    // Transfers in the order they were tracked, guarded by this
+    private final LinkedHashMap<Integer, TransferStats> transfers =
+            new LinkedHashMap<Integer, TransferStats>();
+
+    // Per kind of request or transfer, guarded by this
+    private final TreeMap<String, OperationStats> operations =
+            new TreeMap<String, OperationStats>();
+
+    private final RateWindow uploadRate = new RateWindow(RATE_SLOTS, RATE_SLOT_MS);
+    private final RateWindow downloadRate = new RateWindow(RATE_SLOTS, RATE_SLOT_MS);
+
+    private final RequestHandler2 requestHandler = new LatencyHandler();
+
+    /**
+     * Starts measuring a transfer. Its callbacks are ignored until then.
+     *
+     * @param id the id of the transfer.
+     * @param type UPLOAD or DOWNLOAD.
+     */
+    public synchronized void track(int id, TransferType type) {
+        if (transfers.containsKey(id)) {
+            return;
+        }
+        transfers.put(id, new TransferStats(id, type));
+        if (transfers.size() > MAX_TRANSFERS) {
+            for (Map.Entry<Integer, TransferStats> entry : transfers.entrySet()) {
+                if (entry.getValue().isFinished()) {
+                    transfers.remove(entry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the handler to add to the S3 client, which times its requests.
+     */
+    public RequestHandler2 getRequestHandler() {
+        return requestHandler;
+    }
+
+    @Override
+    public void onStateChanged(int id, TransferState state) {
+        TransferStats stats = get(id);
+        if (stats != null) {
+            stats.onStateChanged(now(), state);
+        }
+    }
+
+    @Override
+    public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+        TransferStats stats = get(id);
+        if (stats == null) {
+            return;
+        }
+        long now = now();
+        long firstByteMillis = stats.onProgress(now, bytesCurrent, bytesTotal);
+        if (firstByteMillis >= 0) {
+            operation(stats.type + FIRST_BYTE_SUFFIX).latency.record(firstByteMillis);
+        }
+    }
+
+    @Override
+    public void onError(int id, Exception ex) {
+        TransferStats stats = get(id);
+        if (stats != null) {
+            stats.onError();
+        }
+    }
+
+    /**
+     * @return the bytes per second of a transfer over the last few seconds,
+     *         or 0 if it is not tracked.
+     */
+    public long getRate(int id) {
+        TransferStats stats = get(id);
+        return stats == null ? 0 : stats.rate.getRate(now());
+    }
+
+    /**
+     * @return the seconds a running transfer needs at its current rate, or
+     *         -1 if that cannot be told, e.g. because it stalled.
+     */
+    public long getEtaSeconds(int id) {
+        TransferStats stats = get(id);
+        return stats == null ? -1 : stats.getEtaSeconds(now());
+    }
+
+    /**
+     * @return the combined bytes per second of all uploads or downloads.
+     */
+    public long getRate(TransferType type) {
+        return rateOf(type).getRate(now());
+    }
+
+    /**
+     * Copies out the current metrics.
+     */
+    public Snapshot snapshot() {
+        long now = now();
+        Snapshot snapshot = new Snapshot(getRate(TransferType.UPLOAD),
+                getRate(TransferType.DOWNLOAD));
+        synchronized (this) {
+            for (TransferStats stats : transfers.values()) {
+                snapshot.transfers.add(stats.snapshot(now));
+            }
+            for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+                snapshot.operations.add(entry.getValue().snapshot(entry.getKey()));
+            }
+        }
+        return snapshot;
+    }
+
+    private synchronized TransferStats get(int id) {
+        return transfers.get(id);
+    }
+
+    private synchronized OperationStats operation(String name) {
+        OperationStats stats = operations.get(name);
+        if (stats == null) {
+            stats = new OperationStats();
+            operations.put(name, stats);
+        }
+        return stats;
+    }
+
+    private RateWindow rateOf(TransferType type) {
+        return type == TransferType.DOWNLOAD ? downloadRate : uploadRate;
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /*
+     * The measurements of one transfer. A resumed transfer is timed from the
+     * resume, since its earlier runs say nothing about the current network.
+     */
+    private class TransferStats {
+
+        final int id;
+        final TransferType type;
+        final RateWindow rate = new RateWindow(RATE_SLOTS, RATE_SLOT_MS);
+
+        private TransferState state = TransferState.WAITING;
+        private long bytesTransferred = -1;
+        private long bytesTotal;
+        private long runStartMillis = -1;
+        private long firstByteMillis = -1;
+        private long activeMillis;
+        private int errors;
+        private boolean awaitingFirstByte;
+
+        TransferStats(int id, TransferType type) {
+            this.id = id;
+            this.type = type;
+        }
+
+        synchronized void onStateChanged(long now, TransferState newState) {
+            if (newState == TransferState.IN_PROGRESS && runStartMillis < 0) {
+                runStartMillis = now;
+                awaitingFirstByte = true;
+            } else if (newState != TransferState.IN_PROGRESS && runStartMillis >= 0) {
+                activeMillis += now - runStartMillis;
+                runStartMillis = -1;
+                awaitingFirstByte = false;
+            }
+            state = newState;
+        }
+
+        /*
+         * Returns the time to first byte if these are the first bytes of a
+         * run, or -1.
+         */
+        long onProgress(long now, long current, long total) {
+            long delta;
+            long firstByte = -1;
+            synchronized (this) {
+                // A restart sets the count back, which is not a rate
+                delta = bytesTransferred < 0 ? 0 : current - bytesTransferred;
+                bytesTransferred = current;
+                bytesTotal = total;
+                if (delta > 0 && awaitingFirstByte) {
+                    awaitingFirstByte = false;
+                    firstByteMillis = now - runStartMillis;
+                    firstByte = firstByteMillis;
+                }
+            }
+            if (delta > 0) {
+                rate.add(now, delta);
+                rateOf(type).add(now, delta);
+            }
+            return firstByte;
+        }
+
+        synchronized void onError() {
+            errors++;
+        }
+
+        synchronized boolean isFinished() {
+            return state == TransferState.COMPLETED || state == TransferState.FAILED
+                    || state == TransferState.CANCELED;
+        }
+
+        long getEtaSeconds(long now) {
+            long remaining;
+            synchronized (this) {
+                if (state != TransferState.IN_PROGRESS || bytesTotal <= 0) {
+                    return -1;
+                }
+                remaining = Math.max(bytesTotal - bytesTransferred, 0);
+            }
+            long bytesPerSecond = rate.getRate(now);
+            return bytesPerSecond == 0 ? -1 : (remaining + bytesPerSecond - 1) / bytesPerSecond;
+        }
+
+        TransferSnapshot snapshot(long now) {
+            long bytesPerSecond = rate.getRate(now);
+            long eta = getEtaSeconds(now);
+            synchronized (this) {
+                long elapsed = activeMillis + (runStartMillis >= 0 ? now - runStartMillis : 0);
+                return new TransferSnapshot(id, type, state, Math.max(bytesTransferred, 0),
+                        bytesTotal, bytesPerSecond, eta, firstByteMillis, elapsed, errors);
+            }
+        }
+    }
+
+    private static class OperationStats {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        private long errors;
+
+        synchronized void onError() {
+            errors++;
+        }
+
+        synchronized OperationSnapshot snapshot(String name) {
+            return new OperationSnapshot(name, latency.getCount(), errors,
+                    latency.getMeanMillis(), latency.getPercentileMillis(0.5),
+                    latency.getPercentileMillis(0.9), latency.getPercentileMillis(0.99),
+                    latency.getMaxMillis());
+        }
+    }
+
+    /*
+     * Times S3 requests from signing to the response headers, which for a
+     * GetObject is the time to its first byte. Retries are part of the
+     * request they retry.
+     */
+    private class LatencyHandler extends RequestHandler2 {
+
+        // Start times of the requests in flight, guarded by itself
+        private final Map<Request<?>, Long> started = new IdentityHashMap<Request<?>, Long>();
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            synchronized (started) {
+                started.put(request, now());
+            }
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response) {
+            finish(request, false);
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e) {
+            finish(request, true);
+        }
+
+        private void finish(Request<?> request, boolean failed) {
+            Long start;
+            synchronized (started) {
+                start = started.remove(request);
+            }
+            if (start == null) {
+                return;
+            }
+            OperationStats stats = operation(nameOf(request));
+            stats.latency.record(now() - start);
+            if (failed) {
+                stats.onError();
+            }
+        }
+
+        private String nameOf(Request<?> request) {
+            AmazonWebServiceRequest original = request.getOriginalRequest();
+            if (original == null) {
+                return request.getHttpMethod().toString();
+            }
+            String name = original.getClass().getSimpleName();
+            return name.endsWith("Request") ? name.substring(0, name.length() - 7) : name;
+        }
+    }
+
+    /*
+     * A copy of all metrics at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long uploadBytesPerSecond;
+        private final long downloadBytesPerSecond;
+        private final List<TransferSnapshot> transfers = new ArrayList<TransferSnapshot>();
+        private final List<OperationSnapshot> operations = new ArrayList<OperationSnapshot>();
+
+        Snapshot(long uploadBytesPerSecond, long downloadBytesPerSecond) {
+            this.uploadBytesPerSecond = uploadBytesPerSecond;
+            this.downloadBytesPerSecond = downloadBytesPerSecond;
+        }
+
+        public long getUploadBytesPerSecond() {
+            return uploadBytesPerSecond;
+        }
+
+        public long getDownloadBytesPerSecond() {
+            return downloadBytesPerSecond;
+        }
+
+        public List<TransferSnapshot> getTransfers() {
+            return transfers;
+        }
+
+        public List<OperationSnapshot> getOperations() {
+            return operations;
+        }
+
+        /**
+         * Writes the snapshot as a plain text report.
+         */
+        public void writeTo(PrintWriter writer) {
+            writer.println("Upload rate: " + uploadBytesPerSecond + " B/s");
+            writer.println("Download rate: " + downloadBytesPerSecond + " B/s");
+            writer.println("Transfers:");
+            for (TransferSnapshot t : transfers) {
+                writer.println(String.format("  %d %s %s %d/%d B, %d B/s, eta %ds, "
+                        + "first byte %dms, active %dms, errors %d", t.id, t.type, t.state,
+                        t.bytesTransferred, t.bytesTotal, t.bytesPerSecond, t.etaSeconds,
+                        t.firstByteMillis, t.activeMillis, t.errors));
+            }
+            writer.println("Operations:");
+            for (OperationSnapshot o : operations) {
+                writer.println(String.format("  %s: count %d, errors %d, mean %dms, "
+                        + "p50 %dms, p90 %dms, p99 %dms, max %dms", o.name, o.count, o.errors,
+                        o.meanMillis, o.p50Millis, o.p90Millis, o.p99Millis, o.maxMillis));
+            }
+            writer.flush();
+        }
+
+        @Override
+        public String toString() {
+            StringWriter out = new StringWriter();
+            writeTo(new PrintWriter(out));
+            return out.toString();
+        }
+    }
+
+    public static class TransferSnapshot {
+
+        public final int id;
+        public final TransferType type;
+        public final TransferState state;
+        public final long bytesTransferred;
+        public final long bytesTotal;
+        public final long bytesPerSecond;
+        // -1 if not known
+        public final long etaSeconds;
+        public final long firstByteMillis;
+        public final long activeMillis;
+        public final int errors;
+
+        TransferSnapshot(int id, TransferType type, TransferState state,
+                long bytesTransferred, long bytesTotal, long bytesPerSecond, long etaSeconds,
+                long firstByteMillis, long activeMillis, int errors) {
+            this.id = id;
+            this.type = type;
+            this.state = state;
+            this.bytesTransferred = bytesTransferred;
+            this.bytesTotal = bytesTotal;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaSeconds = etaSeconds;
+            this.firstByteMillis = firstByteMillis;
+            this.activeMillis = activeMillis;
+            this.errors = errors;
+        }
+    }
+
+    public static class OperationSnapshot {
+
+        // The request, e.g. "UploadPart", or the transfer kind for times to
+        // first byte, e.g. "DOWNLOAD first byte"
+        public final String name;
+        public final long count;
+        public final long errors;
+        public final long meanMillis;
+        public final long p50Millis;
+        public final long p90Millis;
+        public final long p99Millis;
+        public final long maxMillis;
+
+        OperationSnapshot(String name, long count, long errors, long meanMillis,
+                long p50Millis, long p90Millis, long p99Millis, long maxMillis) {
+            this.name = name;
+            this.count = count;
+            this.errors = errors;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.view.View;
+import android.widget.ListAdapter;
+import android.widget.ListView;
+
+/*
+ * Coalesces transfer callbacks so that the list is refreshed at most once per
+ * display frame, and only for the rows whose transfer actually changed. While
+ * ticking, the visible rows are also refreshed every second, so that speeds
+ * shown for transfers that stopped reporting progress drop.
+ */
+public class TransferProgressDispatcher {
+
+    // Roughly one frame at 60fps
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private static final long TICK_INTERVAL_MS = 1000;
+
+    /**
+     * Refreshes the data backing a single row before it is rebound.
+     */
+    public interface RowUpdater {
+        void updateRow(int position);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ListView listView;
+    private final RowUpdater rowUpdater;
+
+    // Maps a transfer id to its position in the list
+    private final SparseIntArray rowIndex = new SparseIntArray();
+
+    // Transfer ids that changed since the last frame, guarded by this
+    private final SparseBooleanArray pendingIds = new SparseBooleanArray();
+    private boolean scheduled;
+
+    // Reused between frames so that a flush does not allocate
+    private int[] flushIds = new int[16];
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+            handler.postDelayed(this, TICK_INTERVAL_MS);
+        }
+    };
+
+    public TransferProgressDispatcher(ListView listView, RowUpdater rowUpdater) {
+        this.listView = listView;
+        this.rowUpdater = rowUpdater;
+    }
+
+    /**
+     * Rebuilds the id-to-row index. Must be called on the main thread whenever
+     * rows are added, removed or reordered.
+     *
+     * @param records the rows in the order they appear in the list.
+     */
+    public void setRows(TransferRecordStore records) {
+        rowIndex.clear();
+        for (int i = 0; i < records.size(); i++) {
+            rowIndex.put(records.getId(i), i);
+        }
+    }
+
+    /**
+     * Marks a transfer as changed. The row is refreshed on the next frame, no
+     * matter how many times this is called before then. Safe to call from any
+     * thread.
+     *
+     * @param id the id of the transfer that changed.
+     */
+    public void post(int id) {
+        synchronized (this) {
+            pendingIds.put(id, true);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        handler.postDelayed(flushRunnable, FRAME_INTERVAL_MS);
+    }
+
+    /**
+     * Starts refreshing the visible rows every second until {@link #cancel()}.
+     * Must be called on the main thread.
+     */
+    public void startTicking() {
+        handler.removeCallbacks(tickRunnable);
+        handler.postDelayed(tickRunnable, TICK_INTERVAL_MS);
+    }
+
+    /**
+     * Drops any pending updates and stops ticking, e.g. when the activity is
+     * paused.
+     */
+    public void cancel() {
+        handler.removeCallbacks(flushRunnable);
+        handler.removeCallbacks(tickRunnable);
+        synchronized (this) {
+            pendingIds.clear();
+            scheduled = false;
+        }
+    }
+
+    /**
+     * Rebinds the view of a single row if it is currently on screen, without
+     * touching the rest of the list.
+     *
+     * @param position the position of the row in the list.
+     */
+    public void rebind(int position) {
+        int first = listView.getFirstVisiblePosition();
+        int last = listView.getLastVisiblePosition();
+        if (position < first || position > last) {
+            return;
+        }
+        View child = listView.getChildAt(position - first);
+        ListAdapter adapter = listView.getAdapter();
+        if (child != null && adapter != null && position < adapter.getCount()) {
+            adapter.getView(position, child, listView);
+        }
+    }
+
+    private void tick() {
+        ListAdapter adapter = listView.getAdapter();
+        if (adapter == null) {
+            return;
+        }
+        int last = Math.min(listView.getLastVisiblePosition(), adapter.getCount() - 1);
+        for (int position = listView.getFirstVisiblePosition(); position <= last; position++) {
+            rowUpdater.updateRow(position);
+            rebind(position);
+        }
+    }
+
+    private void flush() {
+        int count;
+        synchronized (this) {
+            count = pendingIds.size();
+            if (flushIds.length < count) {
+                flushIds = new int[Math.max(count, flushIds.length * 2)];
+            }
+            for (int i = 0; i < count; i++) {
+                flushIds[i] = pendingIds.keyAt(i);
+            }
+            pendingIds.clear();
+            scheduled = false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int position = rowIndex.get(flushIds[i], -1);
+            if (position < 0) {
+                continue;
+            }
+            rowUpdater.updateRow(position);
+            rebind(position);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ProgressBar;
+import android.widget.RadioButton;
+import android.widget.TextView;
+
+/*
+ * Binds the rows of a TransferRecordStore to record_item views. Row views are
+ * recycled and their children are looked up once through a view holder.
+ */
+public class TransferRecordAdapter extends BaseAdapter {
+
+    private final LayoutInflater inflater;
+    private final TransferRecordStore records;
+
+    public TransferRecordAdapter(Context context, TransferRecordStore records) {
+        this.inflater = LayoutInflater.from(context);
+        this.records = records;
+    }
+
+    @Override
+    public int getCount() {
+        return records.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return records.getId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.record_item, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        holder.radio.setChecked(records.isChecked(position));
+        holder.fileName.setText(records.getFileName(position));
+        holder.progress.setProgress(records.getProgress(position));
+        holder.bytes.setText(records.getBytesText(position));
+        holder.state.setText(records.getState(position).toString());
+        holder.percentage.setText(records.getPercentageText(position));
+        holder.speed.setText(records.getSpeedText(position));
+        return convertView;
+    }
+
+    private static class ViewHolder {
+        final RadioButton radio;
+        final TextView fileName;
+        final ProgressBar progress;
+        final TextView bytes;
+        final TextView state;
+        final TextView percentage;
+        final TextView speed;
+
+        ViewHolder(View view) {
+            radio = (RadioButton) view.findViewById(R.id.radioButton1);
+            fileName = (TextView) view.findViewById(R.id.textFileName);
+            progress = (ProgressBar) view.findViewById(R.id.progressBar1);
+            bytes = (TextView) view.findViewById(R.id.textBytes);
+            state = (TextView) view.findViewById(R.id.textState);
+            percentage = (TextView) view.findViewById(R.id.textPercentage);
+            speed = (TextView) view.findViewById(R.id.textSpeed);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+
+/*
+ * Holds the rows shown in a transfer list as parallel primitive arrays, so that
+ * binding a row needs neither map lookups nor boxing. The display strings are
+ * only rebuilt when the underlying numbers change.
+ */
+public class TransferRecordStore {
+
+    public static final int FLAG_CHECKED = 1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final TransferState[] STATES = TransferState.values();
+
+    private int size;
+    private int[] ids;
+    private long[] bytesTransferred;
+    private long[] bytesTotal;
+    private int[] states;
+    private int[] flags;
+    private int[] progress;
+    private String[] fileNames;
+    private String[] bytesText;
+    private String[] percentageText;
+    private long[] rates;
+    private long[] etas;
+    private String[] speedText;
+
+    // Supplies the speed and time left of running transfers, or null
+    private final TransferMetrics metrics;
+
+    public TransferRecordStore() {
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    public TransferRecordStore(TransferMetrics metrics) {
+        this(DEFAULT_CAPACITY, metrics);
+    }
+
+    public TransferRecordStore(int capacity, TransferMetrics metrics) {
+        this.metrics = metrics;
+        allocate(Math.max(capacity, 1));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            fileNames[i] = null;
+            bytesText[i] = null;
+            percentageText[i] = null;
+            speedText[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Appends a row for the given transfer.
+     *
+     * @param observer the transfer to add.
+     * @return the position of the new row.
+     */
+    public int add(TransferObserver observer) {
+        int row = append(observer.getId());
+        update(row, observer);
+        return row;
+    }
+
+    /**
+     * Appends a row for the given engine transfer.
+     *
+     * @param transfer the transfer to add.
+     * @return the position of the new row.
+     */
+    public int add(EngineTransfer transfer) {
+        int row = append(transfer.getId());
+        update(row, transfer);
+        return row;
+    }
+
+    /**
+     * Refreshes a row from its transfer. Display strings are only rebuilt if
+     * the numbers they show changed.
+     *
+     * @param row the position of the row.
+     * @param observer the transfer backing the row.
+     */
+    public void update(int row, TransferObserver observer) {
+        set(row, observer.getAbsoluteFilePath(), observer.getState(),
+                observer.getBytesTransferred(), observer.getBytesTotal());
+    }
+
+    /**
+     * Refreshes a row from its engine transfer.
+     *
+     * @param row the position of the row.
+     * @param transfer the transfer backing the row.
+     */
+    public void update(int row, EngineTransfer transfer) {
+        set(row, transfer.getAbsoluteFilePath(), transfer.getState(),
+                transfer.getBytesTransferred(), transfer.getBytesTotal());
+    }
+
+    private int append(int id) {
+        if (size == ids.length) {
+            grow();
+        }
+        int row = size++;
+        ids[row] = id;
+        flags[row] = 0;
+        bytesTransferred[row] = -1;
+        bytesTotal[row] = -1;
+        rates[row] = -1;
+        etas[row] = -1;
+        speedText[row] = "";
+        return row;
+    }
+
+    private void set(int row, String fileName, TransferState state, long transferred,
+            long total) {
+        fileNames[row] = fileName;
+        states[row] = state.ordinal();
+        if (transferred != bytesTransferred[row] || total != bytesTotal[row]) {
+            bytesTransferred[row] = transferred;
+            bytesTotal[row] = total;
+            progress[row] = total > 0 ? (int) (transferred * 100 / total) : 0;
+            bytesText[row] = Util.getBytesString(transferred) + "/" + Util.getBytesString(total);
+            percentageText[row] = progress[row] + "%";
+        }
+        setSpeed(row, state);
+    }
+
+    /*
+     * Shows the speed of running transfers, rounded to what is displayed.
+     */
+    private void setSpeed(int row, TransferState state) {
+        long rate = -1;
+        long eta = -1;
+        if (metrics != null && state == TransferState.IN_PROGRESS) {
+            rate = metrics.getRate(ids[row]) / 1024;
+            eta = metrics.getEtaSeconds(ids[row]);
+        }
+        if (rate == rates[row] && eta == etas[row]) {
+            return;
+        }
+        rates[row] = rate;
+        etas[row] = eta;
+        speedText[row] = rate < 0 ? "" : Util.getSpeedString(rate * 1024, eta);
+    }
+
+    /**
+     * Removes a row, shifting the following rows up by one.
+     *
+     * @param row the position of the row to remove.
+     */
+    public void remove(int row) {
+        int moved = size - row - 1;
+        if (moved > 0) {
+            System.arraycopy(ids, row + 1, ids, row, moved);
+            System.arraycopy(bytesTransferred, row + 1, bytesTransferred, row, moved);
+            System.arraycopy(bytesTotal, row + 1, bytesTotal, row, moved);
+            System.arraycopy(states, row + 1, states, row, moved);
+            System.arraycopy(flags, row + 1, flags, row, moved);
+            System.arraycopy(progress, row + 1, progress, row, moved);
+            System.arraycopy(fileNames, row + 1, fileNames, row, moved);
+            System.arraycopy(bytesText, row + 1, bytesText, row, moved);
+            System.arraycopy(percentageText, row + 1, percentageText, row, moved);
+            System.arraycopy(rates, row + 1, rates, row, moved);
+            System.arraycopy(etas, row + 1, etas, row, moved);
+            System.arraycopy(speedText, row + 1, speedText, row, moved);
+        }
+        size--;
+        fileNames[size] = null;
+        bytesText[size] = null;
+        percentageText[size] = null;
+        speedText[size] = null;
+    }
+
+    public void setChecked(int row, boolean checked) {
+        if (checked) {
+            flags[row] |= FLAG_CHECKED;
+        } else {
+            flags[row] &= ~FLAG_CHECKED;
+        }
+    }
+
+    public boolean isChecked(int row) {
+        return (flags[row] & FLAG_CHECKED) != 0;
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public long getBytesTransferred(int row) {
+        return bytesTransferred[row];
+    }
+
+    public long getBytesTotal(int row) {
+        return bytesTotal[row];
+    }
+
+    public TransferState getState(int row) {
+        return STATES[states[row]];
+    }
+
+    public int getFlags(int row) {
+        return flags[row];
+    }
+
+    public int getProgress(int row) {
+        return progress[row];
+    }
+
+    public String getFileName(int row) {
+        return fileNames[row];
+    }
+
+    public String getBytesText(int row) {
+        return bytesText[row];
+    }
+
+    public String getPercentageText(int row) {
+        return percentageText[row];
+    }
+
+    public String getSpeedText(int row) {
+        return speedText[row];
+    }
+
+    private void allocate(int capacity) {
+        ids = new int[capacity];
+        bytesTransferred = new long[capacity];
+        bytesTotal = new long[capacity];
+        states = new int[capacity];
+        flags = new int[capacity];
+        progress = new int[capacity];
+        fileNames = new String[capacity];
+        bytesText = new String[capacity];
+        percentageText = new String[capacity];
+        rates = new long[capacity];
+        etas = new long[capacity];
+        speedText = new String[capacity];
+    }
+
+    private void grow() {
+        int[] oldIds = ids;
+        long[] oldTransferred = bytesTransferred;
+        long[] oldTotal = bytesTotal;
+        int[] oldStates = states;
+        int[] oldFlags = flags;
+        int[] oldProgress = progress;
+        String[] oldFileNames = fileNames;
+        String[] oldBytesText = bytesText;
+        String[] oldPercentageText = percentageText;
+        long[] oldRates = rates;
+        long[] oldEtas = etas;
+        String[] oldSpeedText = speedText;
+
+        allocate(ids.length * 2);
+        System.arraycopy(oldIds, 0, ids, 0, size);
+        System.arraycopy(oldTransferred, 0, bytesTransferred, 0, size);
+        System.arraycopy(oldTotal, 0, bytesTotal, 0, size);
+        System.arraycopy(oldStates, 0, states, 0, size);
+        System.arraycopy(oldFlags, 0, flags, 0, size);
+        System.arraycopy(oldProgress, 0, progress, 0, size);
+        System.arraycopy(oldFileNames, 0, fileNames, 0, size);
+        System.arraycopy(oldBytesText, 0, bytesText, 0, size);
+        System.arraycopy(oldPercentageText, 0, percentageText, 0, size);
+        System.arraycopy(oldRates, 0, rates, 0, size);
+        System.arraycopy(oldEtas, 0, etas, 0, size);
+        System.arraycopy(oldSpeedText, 0, speedText, 0, size);
+    }
+}
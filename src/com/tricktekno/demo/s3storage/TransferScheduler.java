@@ -0,0 +1,517 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/*
+ * Decides when uploads and downloads are handed to TransferUtility or the
+ * TransferEngine. Uploads and downloads have separate limits on how many run
+ * at once, and the limits are lower on metered networks. Within each kind,
+ * requests with a higher priority go first and smaller ones before larger
+ * ones, which keeps the average time until a transfer is done short.
+ *
+ * Requests with at least PRIORITY_USER were started by the user, who is
+ * waiting for them. They are counted against the limit among themselves only,
+ * so they never wait behind background transfers.
+ *
+ * A started transfer keeps its slot while it is paused, so pausing everything
+ * does not start the rest of the queue.
+ */
+public class TransferScheduler {
+
+    private static final String TAG = "TransferScheduler";
+
+    // Transfers queued in bulk, such as the files of a folder
+    public static final int PRIORITY_BACKGROUND = 0;
+    // Transfers of a few picked files
+    public static final int PRIORITY_NORMAL = 5;
+    // Transfers the user is waiting for
+    public static final int PRIORITY_USER = 10;
+
+    /*
+     * Notified when the scheduler started a transfer, on an arbitrary thread.
+     */
+    public interface Callback {
+        void onTransferStarted(int id, TransferType type);
+    }
+
+    /*
+     * A transfer waiting to be started. An upload reads either from a file or
+     * from an UploadSource, a download writes to a file.
+     */
+    public static class Request {
+        private final TransferType type;
+        private final String key;
+        private final long length;
+        private final File file;
+        private final UploadSource source;
+        private final boolean staged;
+        private int priority = PRIORITY_NORMAL;
+        private String contentType;
+
+        // Keeps requests of the same priority and size in the order they
+        // were added
+        private long sequence;
+
+        private Request(TransferType type, String key, long length, File file,
+                UploadSource source, boolean staged) {
+            this.type = type;
+            this.key = key;
+            this.length = length;
+            this.file = file;
+            this.source = source;
+            this.staged = staged;
+        }
+
+        /**
+         * @param key the key to upload to.
+         * @param file the file to upload.
+         * @param staged whether the file is a copy tracked by the StagingStore.
+         */
+        public static Request upload(String key, File file, boolean staged) {
+            return new Request(TransferType.UPLOAD, key, file.length(), file, null, staged);
+        }
+
+        /**
+         * @param key the key to upload to.
+         * @param source where to read the bytes from.
+         * @param length the number of bytes, used to order the queue.
+         */
+        public static Request upload(String key, UploadSource source, long length) {
+            return new Request(TransferType.UPLOAD, key, length, null, source, false);
+        }
+
+        /**
+         * @param key the key to download.
+         * @param file the file to download to.
+         * @param length the size of the object.
+         */
+        public static Request download(String key, File file, long length) {
+            return new Request(TransferType.DOWNLOAD, key, length, file, null, false);
+        }
+
+        public Request withPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Sets the MIME type of an upload, which decides whether it is
+         * compressed.
+         */
+        public Request withContentType(String contentType) {
+            this.contentType = contentType;
+            return this;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public TransferType getType() {
+            return type;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        boolean isUserInitiated() {
+            return priority >= PRIORITY_USER;
+        }
+    }
+
+    private static final Comparator<Request> SCHEDULING_ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request lhs, Request rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority > rhs.priority ? -1 : 1;
+            }
+            if (lhs.length != rhs.length) {
+                return lhs.length < rhs.length ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    /*
+     * How many transfers of one kind may run at once.
+     */
+    private static class Limits {
+        int unmetered;
+        int metered;
+
+        Limits(int unmetered, int metered) {
+            this.unmetered = unmetered;
+            this.metered = metered;
+        }
+    }
+
+    private final Context context;
+    private final TransferUtility transferUtility;
+    private final TransferEngine transferEngine;
+    private final StagingStore stagingStore;
+    private final TransferMetrics metrics;
+    private final String bucket;
+    private final TransferListener listener = new SchedulerListener();
+
+    // All guarded by this
+    private final PriorityQueue<Request> pendingUploads =
+            new PriorityQueue<Request>(16, SCHEDULING_ORDER);
+    private final PriorityQueue<Request> pendingDownloads =
+            new PriorityQueue<Request>(16, SCHEDULING_ORDER);
+    private final Map<Integer, Request> running = new HashMap<Integer, Request>();
+    // Transfers that finished before start() returned their id
+    private final Set<Integer> finishedEarly = new HashSet<Integer>();
+    private final Limits uploadLimits;
+    private final Limits downloadLimits;
+    private boolean connected;
+    private boolean metered;
+    private long nextSequence;
+    private Callback callback;
+
+    public TransferScheduler(Context context, TransferUtility transferUtility,
+            TransferEngine transferEngine, StagingStore stagingStore, TransferMetrics metrics,
+            String bucket) {
+        this.context = context.getApplicationContext();
+        this.transferUtility = transferUtility;
+        this.transferEngine = transferEngine;
+        this.stagingStore = stagingStore;
+        this.metrics = metrics;
+        this.bucket = bucket;
+        this.uploadLimits = new Limits(Constants.MAX_UPLOADS_UNMETERED,
+                Constants.MAX_UPLOADS_METERED);
+        this.downloadLimits = new Limits(Constants.MAX_DOWNLOADS_UNMETERED,
+                Constants.MAX_DOWNLOADS_METERED);
+
+        readNetwork();
+        this.context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                readNetwork();
+                startNext();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Sets how many transfers of a kind may run at once.
+     *
+     * @param type UPLOAD or DOWNLOAD.
+     * @param unmetered the limit on unmetered networks such as Wi-Fi.
+     * @param metered the limit on metered networks such as mobile data.
+     */
+    public void setLimits(TransferType type, int unmetered, int metered) {
+        synchronized (this) {
+            Limits limits = limitsFor(type);
+            limits.unmetered = Math.max(1, unmetered);
+            limits.metered = Math.max(1, metered);
+        }
+        startNext();
+    }
+
+    public synchronized void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    public void add(Request request) {
+        synchronized (this) {
+            enqueue(request);
+        }
+        startNext();
+    }
+
+    public void addAll(Collection<Request> requests) {
+        synchronized (this) {
+            for (Request request : requests) {
+                enqueue(request);
+            }
+        }
+        startNext();
+    }
+
+    public synchronized int getPendingCount(TransferType type) {
+        return pendingFor(type).size();
+    }
+
+    /**
+     * Drops the transfers of a kind that have not been started yet.
+     */
+    public synchronized void clear(TransferType type) {
+        PriorityQueue<Request> pending = pendingFor(type);
+        for (Request request : pending) {
+            if (request.staged) {
+                stagingStore.unqueue(request.file);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Frees the slot of a transfer whose record was deleted, since it will
+     * not report that it finished.
+     */
+    public void remove(int id) {
+        synchronized (this) {
+            if (running.remove(id) == null) {
+                return;
+            }
+        }
+        startNext();
+    }
+
+    private void enqueue(Request request) {
+        request.sequence = nextSequence++;
+        pendingFor(request.type).add(request);
+    }
+
+    private PriorityQueue<Request> pendingFor(TransferType type) {
+        return type == TransferType.DOWNLOAD ? pendingDownloads : pendingUploads;
+    }
+
+    private Limits limitsFor(TransferType type) {
+        return type == TransferType.DOWNLOAD ? downloadLimits : uploadLimits;
+    }
+
+    private void finished(int id) {
+        synchronized (this) {
+            if (running.remove(id) == null) {
+                finishedEarly.add(id);
+                return;
+            }
+        }
+        startNext();
+    }
+
+    /*
+     * Starts queued transfers until the slots are full. Transfers are started
+     * outside the lock since the listener may be called right away.
+     */
+    private void startNext() {
+        while (true) {
+            Request request;
+            Callback cb;
+            synchronized (this) {
+                request = poll(TransferType.DOWNLOAD);
+                if (request == null) {
+                    request = poll(TransferType.UPLOAD);
+                }
+                if (request == null) {
+                    return;
+                }
+                cb = callback;
+            }
+            int id;
+            try {
+                id = start(request);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to start transfer of " + request.key, e);
+                if (request.staged) {
+                    stagingStore.unqueue(request.file);
+                }
+                continue;
+            }
+            synchronized (this) {
+                if (!finishedEarly.remove(id)) {
+                    running.put(id, request);
+                }
+            }
+            if (cb != null) {
+                cb.onTransferStarted(id, request.type);
+            }
+        }
+    }
+
+    /*
+     * Takes the next request of a kind if it may start now. Requests the
+     * user is waiting for are only limited by other such requests.
+     */
+    private Request poll(TransferType type) {
+        Request next = pendingFor(type).peek();
+        if (next == null || !connected) {
+            return null;
+        }
+        int limit = metered ? limitsFor(type).metered : limitsFor(type).unmetered;
+        int count = 0;
+        for (Request request : running.values()) {
+            if (request.type == type
+                    && (!next.isUserInitiated() || request.isUserInitiated())) {
+                count++;
+            }
+        }
+        return count < limit ? pendingFor(type).poll() : null;
+    }
+
+    private int start(Request request) {
+        if (request.type == TransferType.DOWNLOAD) {
+            if (request.length >= Constants.RANGED_DOWNLOAD_THRESHOLD
+                    || isThrottled(TransferType.DOWNLOAD) || Constants.COMPRESS_UPLOADS
+                    || transferEngine.getObjectCache() != null
+                    || transferEngine.getEncryptionKey() != null) {
+                return listen(transferEngine.download(bucket, request.key, request.file,
+                        new DownloadOptions()));
+            }
+            return listen(transferUtility.download(bucket, request.key, request.file),
+                    TransferType.DOWNLOAD);
+        }
+
+        if (Constants.ENCRYPT_UPLOADS) {
+            // Also staged copies, since TransferUtility would send plaintext
+            UploadSource source = request.source != null ? request.source
+                    : new FileUploadSource(request.file);
+            MultipartUpload upload = transferEngine.uploadEncrypted(bucket, request.key, source,
+                    new UploadOptions());
+            if (request.staged) {
+                stagingStore.assign(request.file, upload.getId());
+            }
+            return listen(upload);
+        }
+        if (Constants.COMPRESS_UPLOADS && !request.staged
+                && Compression.isCompressible(request.contentType, request.key)) {
+            UploadSource source = request.source != null ? request.source
+                    : new FileUploadSource(request.file);
+            return listen(transferEngine.uploadCompressed(bucket, request.key, source,
+                    request.contentType, new UploadOptions()
+                            .withPartSize(UploadOptions.MIN_PART_SIZE)
+                            .withConcurrency(Constants.COMPRESSED_UPLOAD_CONCURRENCY)));
+        }
+        if (request.source != null) {
+            return listen(transferEngine.upload(bucket, request.key, request.source,
+                    new UploadOptions()));
+        }
+        if ((request.length >= Constants.MULTIPART_UPLOAD_THRESHOLD
+                || isThrottled(TransferType.UPLOAD)
+                || transferEngine.getUploadDeduplicator() != null) && !request.staged) {
+            return listen(transferEngine.upload(bucket, request.key, request.file,
+                    new UploadOptions()));
+        }
+        TransferObserver observer = transferUtility.upload(bucket, request.key, request.file);
+        if (request.staged) {
+            stagingStore.assign(request.file, observer.getId());
+        }
+        return listen(observer, TransferType.UPLOAD);
+    }
+
+    /*
+     * TransferUtility reads and writes the data itself, so only the engine
+     * can keep to a bandwidth limit.
+     */
+    private boolean isThrottled(TransferType type) {
+        return transferEngine.getBandwidthLimit(type) != TokenBucket.UNLIMITED;
+    }
+
+    private int listen(TransferObserver observer, TransferType type) {
+        metrics.track(observer.getId(), type);
+        observer.setTransferListener(listener);
+        return observer.getId();
+    }
+
+    private int listen(EngineTransfer transfer) {
+        metrics.track(transfer.getId(), transfer.getType());
+        transfer.addTransferListener(listener);
+        // It may have finished before the listener was added
+        TransferState state = transfer.getState();
+        if (isFinished(state)) {
+            listener.onStateChanged(transfer.getId(), state);
+        }
+        return transfer.getId();
+    }
+
+    private static boolean isFinished(TransferState state) {
+        return state == TransferState.COMPLETED || state == TransferState.CANCELED
+                || state == TransferState.FAILED;
+    }
+
+    /*
+     * Reads whether there is a network and whether it is metered. Below API
+     * 16, mobile networks are taken to be metered.
+     */
+    @SuppressLint("NewApi")
+    private void readNetwork() {
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        boolean isConnected = info != null && info.isConnected();
+        boolean isMetered = Build.VERSION.SDK_INT >= 16
+                ? cm.isActiveNetworkMetered()
+                : info != null && info.getType() == ConnectivityManager.TYPE_MOBILE;
+        synchronized (this) {
+            connected = isConnected;
+            metered = isMetered;
+        }
+    }
+
+    /*
+     * Frees the slot of a transfer once it can no longer make progress on its
+     * own, and passes its callbacks on to the metrics.
+     */
+    private class SchedulerListener implements TransferListener {
+
+        @Override
+        public void onStateChanged(int id, TransferState state) {
+            metrics.onStateChanged(id, state);
+            if (isFinished(state)) {
+                if (state != TransferState.FAILED) {
+                    // A failed upload may be resumed and still need its copy
+                    stagingStore.release(id);
+                }
+                finished(id);
+            }
+        }
+
+        @Override
+        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            metrics.onProgressChanged(id, bytesCurrent, bytesTotal);
+        }
+
+        @Override
+        public void onError(int id, Exception e) {
+            metrics.onError(id, e);
+        }
+    }
+}
@@ -18,26 +18,25 @@ package com.tricktekno.demo.s3storage;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.ListActivity;
+import android.content.ClipData;
 import android.content.ContentUris;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
+import android.webkit.MimeTypeMap;
 import android.view.View.OnClickListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
-import android.widget.ProgressBar;
-import android.widget.RadioButton;
-import android.widget.SimpleAdapter;
-import android.widget.SimpleAdapter.ViewBinder;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
@@ -47,9 +46,9 @@ import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 
@@ -61,9 +60,14 @@ public class UploadActivity extends ListActivity {
     // TAG for logging;
     private static final String TAG = "UploadActivity";
 
+    // Request codes for picking documents and for picking a whole folder
+    private static final int REQUEST_DOCUMENTS = 0;
+    private static final int REQUEST_FOLDER = 1;
+
     // Button for upload operations
     private Button btnUploadFile;
     private Button btnUploadImage;
+    private Button btnUploadFolder;
     private Button btnPause;
     private Button btnResume;
     private Button btnCancel;
@@ -74,57 +78,122 @@ public class UploadActivity extends ListActivity {
 
     private TransferUtility transferUtility;
 
-    // The SimpleAdapter adapts the data about transfers to rows in the UI
-    private SimpleAdapter simpleAdapter;
+    // Runs the uploads that are too large for a single stream
+    private TransferEngine transferEngine;
+
+    // Tracks the copies of documents that have to be staged for upload
+    private StagingStore stagingStore;
+
+    // Starts picked uploads a few at a time, smallest first
+    private TransferScheduler transferScheduler;
+
+    // Builds the clients above off the main thread
+    private ClientInitializer clientInitializer;
+
+    // The TransferRecordAdapter adapts the data about transfers to rows in the UI
+    private TransferRecordAdapter transferAdapter;
 
     // A List of all transfers
     private List<TransferObserver> observers;
 
+    // Transfers run by the TransferEngine, listed after the observers
+    private List<EngineTransfer> engineTransfers;
 
-    private ArrayList<HashMap<String, Object>> transferRecordMaps;
+    // One row per observer, then one per engine transfer
+    private TransferRecordStore records;
 
 
     private int checkedIndex;
 
+    // Coalesces listener callbacks into per-row updates
+    private TransferProgressDispatcher progressDispatcher;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_upload);
 
 
-        transferUtility = Util.getTransferUtility(this);
+        clientInitializer = Util.getClientInitializer(this);
         checkedIndex = INDEX_NOT_CHECKED;
-        transferRecordMaps = new ArrayList<HashMap<String, Object>>();
+        records = new TransferRecordStore(Util.getTransferMetrics());
         initUI();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        initData();
+        // The screen shows right away and lists the uploads once the clients
+        // are built in the background
+        clientInitializer.whenReady(showTransfers);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        clientInitializer.cancel(showTransfers);
+        if (transferScheduler != null) {
+            transferScheduler.setCallback(null);
+        }
+        getListView().removeCallbacks(refreshList);
+        progressDispatcher.cancel();
 
         if (observers != null && !observers.isEmpty()) {
             for (TransferObserver observer : observers) {
                 observer.cleanTransferListener();
             }
         }
+        if (engineTransfers != null) {
+            for (EngineTransfer transfer : engineTransfers) {
+                transfer.cleanTransferListener();
+            }
+        }
     }
 
+    private final ClientInitializer.Callback showTransfers = new ClientInitializer.Callback() {
+        @Override
+        public void onClientsReady() {
+            transferUtility = Util.getTransferUtility(UploadActivity.this);
+            transferEngine = Util.getTransferEngine(UploadActivity.this);
+            stagingStore = Util.getStagingStore(UploadActivity.this);
+            transferScheduler = Util.getTransferScheduler(UploadActivity.this);
+            initData();
+            transferScheduler.setCallback(schedulerCallback);
+            progressDispatcher.startTicking();
+            updateButtonAvailability();
+        }
+    };
+
+    // Lists uploads the scheduler started since the list was last built
+    private final Runnable refreshList = new Runnable() {
+        @Override
+        public void run() {
+            initData();
+        }
+    };
+
+    private final TransferScheduler.Callback schedulerCallback =
+            new TransferScheduler.Callback() {
+                @Override
+                public void onTransferStarted(int id, TransferType type) {
+                    if (type != TransferType.UPLOAD) {
+                        return;
+                    }
+                    // Called on any thread; several starts are listed at once
+                    getListView().removeCallbacks(refreshList);
+                    getListView().post(refreshList);
+                }
+            };
+
     private void initData() {
-        transferRecordMaps.clear();
+        records.clear();
         // Use TransferUtility to get all upload transfers.
         observers = transferUtility.getTransfersWithType(TransferType.UPLOAD);
+        stagingStore.reconcile(transferUtility);
         TransferListener listener = new UploadListener();
         for (TransferObserver observer : observers) {
 
-            HashMap<String, Object> map = new HashMap<String, Object>();
-            Util.fillMap(map, observer, false);
-            transferRecordMaps.add(map);
+            records.add(observer);
 
 
             if (TransferState.WAITING.equals(observer.getState())
@@ -133,53 +202,31 @@ public class UploadActivity extends ListActivity {
                 observer.setTransferListener(listener);
             }
         }
-        simpleAdapter.notifyDataSetChanged();
+
+        engineTransfers = transferEngine.getTransfersWithType(TransferType.UPLOAD);
+        for (EngineTransfer transfer : engineTransfers) {
+            records.add(transfer);
+            if (TransferState.WAITING.equals(transfer.getState())
+                    || TransferState.IN_PROGRESS.equals(transfer.getState())) {
+                transfer.setTransferListener(listener);
+            }
+        }
+        progressDispatcher.setRows(records);
+        transferAdapter.notifyDataSetChanged();
     }
 
     private void initUI() {
 
-        simpleAdapter = new SimpleAdapter(this, transferRecordMaps,
-                R.layout.record_item, new String[] {
-                        "checked", "fileName", "progress", "bytes", "state", "percentage"
-                },
-                new int[] {
-                        R.id.radioButton1, R.id.textFileName, R.id.progressBar1, R.id.textBytes,
-                        R.id.textState, R.id.textPercentage
+        transferAdapter = new TransferRecordAdapter(this, records);
+        setListAdapter(transferAdapter);
+
+        progressDispatcher = new TransferProgressDispatcher(getListView(),
+                new TransferProgressDispatcher.RowUpdater() {
+                    @Override
+                    public void updateRow(int position) {
+                        refreshRow(position);
+                    }
                 });
-        simpleAdapter.setViewBinder(new ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Object data,
-                    String textRepresentation) {
-                switch (view.getId()) {
-                    case R.id.radioButton1:
-                        RadioButton radio = (RadioButton) view;
-                        radio.setChecked((Boolean) data);
-                        return true;
-                    case R.id.textFileName:
-                        TextView fileName = (TextView) view;
-                        fileName.setText((String) data);
-                        return true;
-                    case R.id.progressBar1:
-                        ProgressBar progress = (ProgressBar) view;
-                        progress.setProgress((Integer) data);
-                        return true;
-                    case R.id.textBytes:
-                        TextView bytes = (TextView) view;
-                        bytes.setText((String) data);
-                        return true;
-                    case R.id.textState:
-                        TextView state = (TextView) view;
-                        state.setText(((TransferState) data).toString());
-                        return true;
-                    case R.id.textPercentage:
-                        TextView percentage = (TextView) view;
-                        percentage.setText((String) data);
-                        return true;
-                }
-                return false;
-            }
-        });
-        setListAdapter(simpleAdapter);
 
 
         getListView().setOnItemClickListener(new OnItemClickListener() {
@@ -187,19 +234,24 @@ public class UploadActivity extends ListActivity {
             public void onItemClick(AdapterView<?> adapterView, View view, int pos, long id) {
 
                 if (checkedIndex != pos) {
-                    transferRecordMaps.get(pos).put("checked", true);
+                    records.setChecked(pos, true);
                     if (checkedIndex >= 0) {
-                        transferRecordMaps.get(checkedIndex).put("checked", false);
+                        records.setChecked(checkedIndex, false);
                     }
+                    int previousIndex = checkedIndex;
                     checkedIndex = pos;
                     updateButtonAvailability();
-                    simpleAdapter.notifyDataSetChanged();
+                    progressDispatcher.rebind(pos);
+                    if (previousIndex >= 0) {
+                        progressDispatcher.rebind(previousIndex);
+                    }
                 }
             }
         });
 
         btnUploadFile = (Button) findViewById(R.id.buttonUploadFile);
         btnUploadImage = (Button) findViewById(R.id.buttonUploadImage);
+        btnUploadFolder = (Button) findViewById(R.id.buttonUploadFolder);
         btnPause = (Button) findViewById(R.id.buttonPause);
         btnResume = (Button) findViewById(R.id.buttonResume);
         btnCancel = (Button) findViewById(R.id.buttonCancel);
@@ -215,13 +267,14 @@ public class UploadActivity extends ListActivity {
                     intent.setAction(Intent.ACTION_OPEN_DOCUMENT);
                     intent.addCategory(Intent.CATEGORY_OPENABLE);
                     intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+                    intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                     intent.setType("*/*");
                 } else {
                     intent.setAction(Intent.ACTION_GET_CONTENT);
                     intent.setType("file/*");
                 }
 
-                startActivityForResult(intent, 0);
+                startActivityForResult(intent, REQUEST_DOCUMENTS);
             }
         });
 
@@ -234,12 +287,23 @@ public class UploadActivity extends ListActivity {
                     intent.setAction(Intent.ACTION_OPEN_DOCUMENT);
                     intent.addCategory(Intent.CATEGORY_OPENABLE);
                     intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+                    intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                 } else {
                     intent.setAction(Intent.ACTION_GET_CONTENT);
                 }
 
                 intent.setType("image/*");
-                startActivityForResult(intent, 0);
+                startActivityForResult(intent, REQUEST_DOCUMENTS);
+            }
+        });
+
+        // Picking a folder needs the document tree API
+        btnUploadFolder.setEnabled(Build.VERSION.SDK_INT >= 21);
+        btnUploadFolder.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+                startActivityForResult(intent, REQUEST_FOLDER);
             }
         });
 
@@ -247,8 +311,11 @@ public class UploadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 // Make sure the user has selected a transfer
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    Boolean paused = transferUtility.pause(observers.get(checkedIndex).getId());
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    boolean paused = TransferEngine.isEngineTransfer(id)
+                            ? transferEngine.pause(id)
+                            : transferUtility.pause(id);
                     if (!paused) {
                         Toast.makeText(
                                 UploadActivity.this,
@@ -263,12 +330,21 @@ public class UploadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 // Make sure the user has selected a transfer
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    TransferObserver resumed = transferUtility.resume(observers.get(checkedIndex)
-                            .getId());
-                    observers.get(checkedIndex).setTransferListener(new UploadListener());
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    boolean resumed;
+                    if (TransferEngine.isEngineTransfer(id)) {
+                        EngineTransfer transfer = transferEngine.resume(id);
+                        if (transfer != null) {
+                            transfer.setTransferListener(new UploadListener());
+                        }
+                        resumed = transfer != null;
+                    } else {
+                        resumed = transferUtility.resume(id) != null;
+                        observers.get(checkedIndex).setTransferListener(new UploadListener());
+                    }
 
-                    if (resumed == null) {
+                    if (!resumed) {
                         Toast.makeText(
                                 UploadActivity.this,
                                 "Cannot resume transfer.  You can only resume transfers in a PAUSED state.",
@@ -282,8 +358,11 @@ public class UploadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 // Make sure a transfer is selected
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    Boolean canceled = transferUtility.cancel(observers.get(checkedIndex).getId());
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    boolean canceled = TransferEngine.isEngineTransfer(id)
+                            ? transferEngine.cancel(id)
+                            : transferUtility.cancel(id);
                     /**
                      * If cancel returns false, it is likely because the
                      * transfer is already canceled
@@ -302,11 +381,20 @@ public class UploadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 // Make sure a transfer is selected
-                if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                    transferUtility.deleteTransferRecord(observers.get(checkedIndex).getId());
-                    observers.remove(checkedIndex);
-                    transferRecordMaps.remove(checkedIndex);
+                if (checkedIndex >= 0 && checkedIndex < records.size()) {
+                    int id = records.getId(checkedIndex);
+                    transferScheduler.remove(id);
+                    if (TransferEngine.isEngineTransfer(id)) {
+                        transferEngine.deleteTransferRecord(id);
+                        engineTransfers.remove(checkedIndex - observers.size());
+                    } else {
+                        transferUtility.deleteTransferRecord(id);
+                        observers.remove(checkedIndex);
+                    }
+                    stagingStore.discard(id);
+                    records.remove(checkedIndex);
                     checkedIndex = INDEX_NOT_CHECKED;
+                    progressDispatcher.setRows(records);
                     updateButtonAvailability();
                     updateList();
                 }
@@ -317,13 +405,17 @@ public class UploadActivity extends ListActivity {
             @Override
             public void onClick(View v) {
                 transferUtility.pauseAllWithType(TransferType.UPLOAD);
+                transferEngine.pauseAllWithType(TransferType.UPLOAD);
             }
         });
 
         btnCancelAll.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
+                // Don't let the scheduler start what is left
+                transferScheduler.clear(TransferType.UPLOAD);
                 transferUtility.cancelAllWithType(TransferType.UPLOAD);
+                transferEngine.cancelAllWithType(TransferType.UPLOAD);
             }
         });
 
@@ -331,22 +423,33 @@ public class UploadActivity extends ListActivity {
     }
 
     private void updateList() {
-        TransferObserver observer = null;
-        HashMap<String, Object> map = null;
-        for (int i = 0; i < observers.size(); i++) {
-            observer = observers.get(i);
-            map = transferRecordMaps.get(i);
-            Util.fillMap(map, observer, i == checkedIndex);
+        for (int i = 0; i < records.size(); i++) {
+            refreshRow(i);
         }
-        simpleAdapter.notifyDataSetChanged();
+        transferAdapter.notifyDataSetChanged();
 
     }
 
     /*
-     * Enables or disables buttons according to checkedIndex.
+     * Refreshes a row from the observer or engine transfer backing it.
+     */
+    private void refreshRow(int position) {
+        if (position < observers.size()) {
+            records.update(position, observers.get(position));
+        } else if (position - observers.size() < engineTransfers.size()) {
+            records.update(position, engineTransfers.get(position - observers.size()));
+        }
+    }
+
+    /*
+     * Enables or disables buttons according to checkedIndex, and whether the
+     * clients are built.
      */
     private void updateButtonAvailability() {
-        boolean availability = checkedIndex >= 0;
+        boolean ready = transferScheduler != null;
+        btnPauseAll.setEnabled(ready);
+        btnCancelAll.setEnabled(ready);
+        boolean availability = ready && checkedIndex >= 0;
         btnPause.setEnabled(availability);
         btnResume.setEnabled(availability);
         btnCancel.setEnabled(availability);
@@ -355,33 +458,196 @@ public class UploadActivity extends ListActivity {
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode == Activity.RESULT_OK) {
-            Uri uri = data.getData();
+        if (resultCode == Activity.RESULT_OK && data != null) {
+            final List<Uri> uris = new ArrayList<Uri>();
+            final Uri tree = requestCode == REQUEST_FOLDER ? data.getData() : null;
+            if (requestCode != REQUEST_FOLDER) {
+                collectUris(data, uris);
+            }
+            clientInitializer.whenReady(new ClientInitializer.Callback() {
+                @Override
+                public void onClientsReady() {
+                    new ResolveUploadsTask(uris, tree).execute();
+                }
+            });
+        }
+    }
+
+    /*
+     * Gets the picked documents, several of them if the picker allowed
+     * multiple selection.
+     */
+    @SuppressLint("NewApi")
+    private static void collectUris(Intent data, List<Uri> uris) {
+        ClipData clip = Build.VERSION.SDK_INT >= 16 ? data.getClipData() : null;
+        if (clip != null) {
+            for (int i = 0; i < clip.getItemCount(); i++) {
+                Uri uri = clip.getItemAt(i).getUri();
+                if (uri != null) {
+                    uris.add(uri);
+                }
+            }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
+        }
+    }
+
+    /*
+     * Works out off the main thread how each picked document, or each document
+     * in a picked folder, can be uploaded, and feeds them all into the upload
+     * scheduler. Documents with a file behind them are read from the file, others
+     * straight from the provider's file descriptor if it is seekable. Only
+     * documents the provider can merely stream are staged in app storage.
+     */
+    private class ResolveUploadsTask extends
+            AsyncTask<Void, Void, List<TransferScheduler.Request>> {
+
+        private final List<Uri> uris;
+        private final Uri tree;
+        private int failures;
+
+        ResolveUploadsTask(List<Uri> uris, Uri tree) {
+            this.uris = uris;
+            this.tree = tree;
+        }
+
+        @Override
+        protected List<TransferScheduler.Request> doInBackground(Void... params) {
+            List<TransferScheduler.Request> items = new ArrayList<TransferScheduler.Request>();
+            // The user waits for a single file, less so for several
+            int priority = uris.size() == 1 ? TransferScheduler.PRIORITY_USER
+                    : TransferScheduler.PRIORITY_NORMAL;
+            for (Uri uri : uris) {
+                add(items, resolve(uri, null), priority);
+            }
+            if (tree != null) {
+                walkTree(items);
+            }
+            return items;
+        }
+
+        @Override
+        protected void onPostExecute(List<TransferScheduler.Request> items) {
+            if (!items.isEmpty()) {
+                transferScheduler.addAll(items);
+                Toast.makeText(UploadActivity.this, "Queued " + items.size() + " file(s)",
+                        Toast.LENGTH_SHORT).show();
+            }
+            if (failures > 0) {
+                Toast.makeText(UploadActivity.this,
+                        "Unable to read " + failures + " file(s).  See error log for details",
+                        Toast.LENGTH_LONG).show();
+            }
+        }
 
+        private void add(List<TransferScheduler.Request> items, TransferScheduler.Request item,
+                int priority) {
+            if (item != null) {
+                items.add(item.withPriority(priority));
+            } else {
+                failures++;
+            }
+        }
+
+        /*
+         * Resolves one document, uploaded under the given key or, if that is
+         * null, under its own name.
+         */
+        private TransferScheduler.Request resolve(Uri uri, String key) {
             try {
                 String path = getPath(uri);
-                beginUpload(path);
+                if (path != null && new File(path).isFile()) {
+                    File file = new File(path);
+                    String name = key != null ? key : file.getName();
+                    return TransferScheduler.Request.upload(name, file, false)
+                            .withContentType(getContentType(uri, file.getName()));
+                }
             } catch (URISyntaxException e) {
-                Toast.makeText(this,
-                        "Unable to get the file from the given URI.  See error log for details",
-                        Toast.LENGTH_LONG).show();
-                Log.e(TAG, "Unable to upload file from the given uri", e);
+                // Try the provider instead
+            }
+            if (!"content".equalsIgnoreCase(uri.getScheme())) {
+                Log.e(TAG, "Unable to upload file from the given uri: " + uri);
+                return null;
+            }
+            if (key == null) {
+                key = Util.getDisplayName(UploadActivity.this, uri);
+            }
+
+            ContentUriUploadSource source = new ContentUriUploadSource(getContentResolver(), uri,
+                    key);
+            try {
+                return TransferScheduler.Request.upload(key, source, source.getLength())
+                        .withContentType(getContentType(uri, key));
+            } catch (IOException e) {
+                // Only a stream is available
+            } finally {
+                // Reopened once the upload starts
+                source.close();
+            }
+            try {
+                return TransferScheduler.Request.upload(key,
+                        stagingStore.stage(UploadActivity.this, uri), true);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to upload file from the given uri: " + uri, e);
+                return null;
             }
         }
-    }
 
+        /*
+         * Gets the MIME type the provider reports, or else the one that goes
+         * with the file extension.
+         */
+        private String getContentType(Uri uri, String name) {
+            String type = "content".equalsIgnoreCase(uri.getScheme())
+                    ? getContentResolver().getType(uri) : null;
+            if (type == null) {
+                type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                        MimeTypeMap.getFileExtensionFromUrl(name));
+            }
+            return type;
+        }
 
-    private void beginUpload(String filePath) {
-        if (filePath == null) {
-            Toast.makeText(this, "Could not find the filepath of the selected file",
-                    Toast.LENGTH_LONG).show();
-            return;
+        /*
+         * Adds every document below the picked folder, keyed by its path
+         * relative to the folder's parent.
+         */
+        @SuppressLint("NewApi")
+        private void walkTree(List<TransferScheduler.Request> items) {
+            String rootId = DocumentsContract.getTreeDocumentId(tree);
+            String rootName = Util.getDisplayName(UploadActivity.this,
+                    DocumentsContract.buildDocumentUriUsingTree(tree, rootId));
+            walk(items, rootId, rootName + "/");
         }
-        File file = new File(filePath);
-        TransferObserver observer = transferUtility.upload(Constants.BUCKET_NAME, file.getName(),
-                file);
-    }
 
+        @SuppressLint("NewApi")
+        private void walk(List<TransferScheduler.Request> items, String parentId, String prefix) {
+            Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(tree, parentId);
+            Cursor cursor = null;
+            try {
+                cursor = getContentResolver().query(children, new String[] {
+                        Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME,
+                        Document.COLUMN_MIME_TYPE
+                }, null, null, null);
+                while (cursor != null && cursor.moveToNext()) {
+                    String id = cursor.getString(0);
+                    String name = cursor.getString(1);
+                    if (Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                        walk(items, id, prefix + name + "/");
+                    } else {
+                        add(items, resolve(DocumentsContract.buildDocumentUriUsingTree(tree, id),
+                                prefix + name), TransferScheduler.PRIORITY_BACKGROUND);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to list " + children, e);
+                failures++;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
 
     @SuppressLint("NewApi")
     private String getPath(Uri uri) throws URISyntaxException {
@@ -449,24 +715,29 @@ public class UploadActivity extends ListActivity {
 
     private class UploadListener implements TransferListener {
 
-        // Simply updates the UI list when notified.
+        // Queues an update of the transfer's row when notified.
         @Override
         public void onError(int id, Exception e) {
             Log.e(TAG, "Error during upload: " + id, e);
-            updateList();
+            progressDispatcher.post(id);
         }
 
         @Override
         public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
             Log.d(TAG, String.format("onProgressChanged: %d, total: %d, current: %d",
                     id, bytesTotal, bytesCurrent));
-            updateList();
+            progressDispatcher.post(id);
         }
 
         @Override
         public void onStateChanged(int id, TransferState newState) {
             Log.d(TAG, "onStateChanged: " + id + ", " + newState);
-            updateList();
+            if (!TransferEngine.isEngineTransfer(id) && (newState == TransferState.COMPLETED
+                    || newState == TransferState.CANCELED)) {
+                // A staged copy, if any, is no longer needed by this upload
+                stagingStore.release(id);
+            }
+            progressDispatcher.post(id);
         }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Finds out whether the content of an upload is already stored under its key,
+ * so the upload can be skipped. Engine uploads record the MD5 of their
+ * content in the object's user metadata, since the ETag of a multipart or
+ * compressed object is not the MD5 of the content.
+ */
+public class UploadDeduplicator {
+
+    // User metadata key, sent as x-amz-meta-content-md5
+    public static final String MD5_METADATA_KEY = "content-md5";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final ContentHashIndex index;
+
+    /*
+     * Asked while a source is hashed, so that a large file does not hold up
+     * a pause or cancel.
+     */
+    public interface StopSignal {
+        boolean isStopRequested();
+    }
+
+    public UploadDeduplicator(AmazonS3 s3, ContentHashIndex index) {
+        this.s3 = s3;
+        this.index = index;
+    }
+
+    /**
+     * Gets the MD5 of a source as hex, hashing it only if it changed since it
+     * was last hashed.
+     *
+     * @param source the source.
+     * @param stopSignal asked between reads whether to give up.
+     * @return the hash.
+     * @throws InterruptedIOException if a stop was requested.
+     * @throws IOException if the source cannot be read.
+     */
+    public String getContentMd5(UploadSource source, StopSignal stopSignal)
+            throws IOException {
+        String fingerprint = source.getFingerprint();
+        String hash = fingerprint != null ? index.get(fingerprint) : null;
+        if (hash != null) {
+            return hash;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream in = source.openRange(0, source.getLength());
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (stopSignal.isStopRequested()) {
+                    throw new InterruptedIOException("Hashing of "
+                            + source.getDisplayName() + " stopped");
+                }
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        hash = BinaryUtils.toHex(digest.digest());
+        if (fingerprint != null) {
+            index.put(fingerprint, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Checks whether an object with the given content is stored under a key.
+     *
+     * @param bucket the bucket.
+     * @param key the key.
+     * @param md5 the MD5 of the content as hex.
+     * @return true if the content is there already, false if it is not or
+     *         the object cannot be looked at, e.g. without s3:GetObject.
+     */
+    public boolean isUploaded(String bucket, String key, String md5) {
+        ObjectMetadata metadata;
+        try {
+            metadata = s3.getObjectMetadata(bucket, key);
+        } catch (AmazonServiceException e) {
+            // 404 if there is no object, 403 if it may not be read. Either
+            // way the upload goes ahead and fails itself if it may not write.
+            return false;
+        }
+        if (md5.equalsIgnoreCase(metadata.getUserMetaDataOf(MD5_METADATA_KEY))) {
+            return true;
+        }
+        // A plain single-part object, e.g. one uploaded by TransferUtility
+        return metadata.getContentEncoding() == null && md5.equalsIgnoreCase(metadata.getETag());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+/*
+ * Per-transfer tuning for uploads run by the TransferEngine.
+ */
+public class UploadOptions {
+
+    // S3 rejects parts smaller than this, except for the last one
+    public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    // S3 rejects uploads with more parts than this
+    public static final int MAX_PARTS = 10000;
+
+    private long partSize = Constants.UPLOAD_PART_SIZE;
+    private int concurrency = Constants.UPLOAD_CONCURRENCY;
+    private int maxPartRetries = 3;
+    private long partAlignment = 1;
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the size of each part. Values below {@link #MIN_PART_SIZE} are
+     * raised to it.
+     */
+    public UploadOptions withPartSize(long partSize) {
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        return this;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Sets how many parts of the upload may be in flight at once.
+     */
+    public UploadOptions withConcurrency(int concurrency) {
+        this.concurrency = Math.max(concurrency, 1);
+        return this;
+    }
+
+    public int getMaxPartRetries() {
+        return maxPartRetries;
+    }
+
+    /**
+     * Sets how many times a failed part is retried before the upload fails.
+     */
+    public UploadOptions withMaxPartRetries(int maxPartRetries) {
+        this.maxPartRetries = Math.max(maxPartRetries, 0);
+        return this;
+    }
+
+    public long getPartAlignment() {
+        return partAlignment;
+    }
+
+    /**
+     * Makes the part size a multiple of a block size, e.g. so that each part
+     * holds whole chunks of an EncryptedUploadSource.
+     */
+    public UploadOptions withPartAlignment(long partAlignment) {
+        this.partAlignment = Math.max(partAlignment, 1);
+        return this;
+    }
+
+    /**
+     * @return options with the same settings, to change for one upload
+     *         without changing these.
+     */
+    public UploadOptions copy() {
+        UploadOptions copy = new UploadOptions();
+        copy.partSize = partSize;
+        copy.concurrency = concurrency;
+        copy.maxPartRetries = maxPartRetries;
+        copy.partAlignment = partAlignment;
+        return copy;
+    }
+
+    /**
+     * Gets the part size to use for a file, raised if needed so the file fits
+     * in {@link #MAX_PARTS} parts, and rounded up to the part alignment.
+     *
+     * @param length the length of the file in bytes.
+     * @return the part size in bytes.
+     */
+    public long getPartSize(long length) {
+        long minimum = (length + MAX_PARTS - 1) / MAX_PARTS;
+        long size = Math.max(partSize, minimum);
+        return (size + partAlignment - 1) / partAlignment * partAlignment;
+    }
+}
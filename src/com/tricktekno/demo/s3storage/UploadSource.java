@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.tricktekno.demo.s3storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Where the bytes of an engine upload come from. Any range can be opened on
+ * its own, any number of times, so parts can be read in parallel and a failed
+ * part can be read again without starting over.
+ */
+public interface UploadSource {
+
+    /**
+     * Gets a name for the source that can be shown to the user.
+     */
+    String getDisplayName();
+
+    /**
+     * Gets the total number of bytes in the source.
+     *
+     * @throws IOException if the source cannot be opened or its length is not
+     *             known up front.
+     */
+    long getLength() throws IOException;
+
+    /**
+     * Opens a stream over part of the source. The stream supports mark and
+     * reset so that the SDK can retry a request on its own.
+     *
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes.
+     * @return a stream that the caller must close.
+     * @throws IOException
+     */
+    InputStream openRange(long offset, long length) throws IOException;
+
+    /**
+     * Gets a string that changes whenever the content may have changed, such
+     * as the path, size and modification time of a file. Used to avoid
+     * hashing unchanged content again.
+     *
+     * @return the fingerprint, or null if changes cannot be detected.
+     */
+    String getFingerprint();
+
+    /**
+     * Releases the underlying file or descriptor. The source may be opened
+     * again afterwards, e.g. when a paused upload is resumed.
+     */
+    void close();
+}
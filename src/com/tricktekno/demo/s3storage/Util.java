@@ -16,20 +16,22 @@
 package com.tricktekno.demo.s3storage;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.Log;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.CognitoCachingCredentialsProvider;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3Client;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
 import java.util.UUID;
 
 /*
@@ -37,10 +39,24 @@ import java.util.UUID;
  */
 public class Util {
 
+    private static final String TAG = "Util";
+
     // We only need one instance of the clients and credentials provider
     private static AmazonS3Client sS3Client;
     private static CognitoCachingCredentialsProvider sCredProvider;
     private static TransferUtility sTransferUtility;
+    private static TransferEngine sTransferEngine;
+    private static StagingStore sStagingStore;
+    private static ThumbnailCache sThumbnailCache;
+    private static StreamingServer sStreamingServer;
+    private static TransferScheduler sTransferScheduler;
+    private static final TransferMetrics sTransferMetrics = new TransferMetrics();
+    private static ConnectionWarmer sConnectionWarmer;
+
+    // Guards sClientInitializer. The main thread takes it while the clients
+    // are built under the lock of the class, so it must be a different one.
+    private static final Object sInitializerLock = new Object();
+    private static ClientInitializer sClientInitializer;
 
     /**
      * Gets an instance of CognitoCachingCredentialsProvider which is
@@ -49,7 +65,8 @@ public class Util {
      * @param context An Context instance.
      * @return A default credential provider.
      */
-    private static CognitoCachingCredentialsProvider getCredProvider(Context context) {
+    private static synchronized CognitoCachingCredentialsProvider getCredProvider(
+            Context context) {
         if (sCredProvider == null) {
             sCredProvider = new CognitoCachingCredentialsProvider(
                     context.getApplicationContext(),
@@ -66,14 +83,67 @@ public class Util {
      * @param context An Context instance.
      * @return A default S3 client.
      */
-    public static AmazonS3Client getS3Client(Context context) {
+    public static synchronized AmazonS3Client getS3Client(Context context) {
         if (sS3Client == null) {
-            sS3Client = new AmazonS3Client(getCredProvider(context.getApplicationContext()));
+            ConnectionSettings settings = new ConnectionSettings();
+            settings.installSystemDefaults();
+            sS3Client = new AmazonS3Client(getCredProvider(context.getApplicationContext()),
+                    settings.toClientConfiguration());
             sS3Client.setRegion(Region.getRegion(Regions.fromName(Constants.BUCKET_REGION)));
+            sS3Client.addRequestHandler(getTransferMetrics().getRequestHandler());
         }
         return sS3Client;
     }
 
+    /**
+     * Gets the ClientInitializer that builds the clients in the background,
+     * starting it on the first call.
+     *
+     * @param context An Context instance.
+     * @return a started ClientInitializer
+     */
+    public static ClientInitializer getClientInitializer(Context context) {
+        synchronized (sInitializerLock) {
+            if (sClientInitializer == null) {
+                sClientInitializer = new ClientInitializer(context);
+                sClientInitializer.start();
+            }
+            return sClientInitializer;
+        }
+    }
+
+    /**
+     * Fetches Cognito credentials ahead of the first request. The provider
+     * caches them, also across launches. Does network I/O, so call it off the
+     * main thread.
+     *
+     * @param context An Context instance.
+     */
+    public static void prefetchCredentials(Context context) {
+        try {
+            getCredProvider(context.getApplicationContext()).getCredentials();
+        } catch (AmazonClientException e) {
+            // Offline; the first request fetches them instead
+            Log.w(TAG, "Unable to prefetch credentials", e);
+        }
+    }
+
+    /**
+     * Opens pooled connections to the bucket endpoint in the background, once
+     * per process, so that the first transfers and listings do not pay for
+     * connection setup.
+     *
+     * @param context An Context instance.
+     */
+    public static synchronized void warmUpConnections(Context context) {
+        if (sConnectionWarmer == null && Constants.WARM_UP_CONNECTIONS > 0) {
+            sConnectionWarmer = new ConnectionWarmer(
+                    getS3Client(context.getApplicationContext()), Constants.BUCKET_NAME,
+                    Constants.WARM_UP_CONNECTIONS);
+            sConnectionWarmer.start();
+        }
+    }
+
     /**
      * Gets an instance of the TransferUtility which is constructed using the
      * given Context
@@ -81,7 +151,7 @@ public class Util {
      * @param context
      * @return a TransferUtility instance
      */
-    public static TransferUtility getTransferUtility(Context context) {
+    public static synchronized TransferUtility getTransferUtility(Context context) {
         if (sTransferUtility == null) {
             sTransferUtility = new TransferUtility(getS3Client(context.getApplicationContext()),
                     context.getApplicationContext());
@@ -90,6 +160,135 @@ public class Util {
         return sTransferUtility;
     }
 
+    /**
+     * Gets an instance of the TransferEngine, which runs the transfers that
+     * TransferUtility cannot, such as parallel multipart uploads.
+     *
+     * @param context
+     * @return a TransferEngine instance
+     */
+    public static synchronized TransferEngine getTransferEngine(Context context) {
+        if (sTransferEngine == null) {
+            sTransferEngine = new TransferEngine(getS3Client(context.getApplicationContext()));
+            sTransferEngine.setBandwidthLimit(TransferType.UPLOAD,
+                    Constants.MAX_UPLOAD_BYTES_PER_SECOND);
+            sTransferEngine.setBandwidthLimit(TransferType.DOWNLOAD,
+                    Constants.MAX_DOWNLOAD_BYTES_PER_SECOND);
+            if (Constants.DEDUPLICATE_UPLOADS) {
+                File indexFile = new File(context.getApplicationContext().getFilesDir(),
+                        "content-hashes");
+                sTransferEngine.setUploadDeduplicator(new UploadDeduplicator(
+                        getS3Client(context.getApplicationContext()),
+                        new ContentHashIndex(indexFile, Constants.CONTENT_HASH_INDEX_SIZE)));
+            }
+            if (Constants.CACHE_DOWNLOADS) {
+                File cacheDir = new File(context.getApplicationContext().getCacheDir(),
+                        "objects");
+                sTransferEngine.setObjectCache(new ObjectCache(cacheDir,
+                        Constants.OBJECT_CACHE_QUOTA, Constants.OBJECT_CACHE_MAX_OBJECT_SIZE));
+            }
+            if (Constants.ENCRYPT_UPLOADS) {
+                // The Android keystore only holds AES keys from API 23, so
+                // the key is kept in app-private storage
+                File keyFile = new File(context.getApplicationContext().getFilesDir(),
+                        "encryption.key");
+                try {
+                    sTransferEngine.setEncryptionKey(ChunkCipher.loadOrCreateKey(keyFile));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to load the encryption key", e);
+                }
+            }
+        }
+
+        return sTransferEngine;
+    }
+
+    /**
+     * Gets the StagingStore that tracks the document copies made by
+     * {@link #copyContentUriToFile(Context, Uri)}.
+     *
+     * @param context
+     * @return a StagingStore instance
+     */
+    public static synchronized StagingStore getStagingStore(Context context) {
+        if (sStagingStore == null) {
+            sStagingStore = new StagingStore(getStagingDir(context), Constants.STAGING_QUOTA);
+        }
+
+        return sStagingStore;
+    }
+
+    /**
+     * Gets the cache of the thumbnails shown in the bucket browser, which
+     * outlives the activity.
+     *
+     * @param context
+     * @return a ThumbnailCache instance
+     */
+    public static synchronized ThumbnailCache getThumbnailCache(Context context) {
+        if (sThumbnailCache == null) {
+            sThumbnailCache = new ThumbnailCache(new File(context.getCacheDir(), "thumbnails"),
+                    Runtime.getRuntime().maxMemory() / Constants.THUMBNAIL_MEMORY_DIVISOR,
+                    Constants.THUMBNAIL_DISK_CACHE_BYTES);
+        }
+
+        return sThumbnailCache;
+    }
+
+    /**
+     * Gets the server that streams media objects to players while they
+     * download, starting it the first time.
+     *
+     * @param context
+     * @return a started StreamingServer instance
+     * @throws IOException if the server cannot listen on the loopback
+     *             interface.
+     */
+    public static synchronized StreamingServer getStreamingServer(Context context)
+            throws IOException {
+        if (sStreamingServer == null) {
+            StreamingServer server = new StreamingServer(
+                    getS3Client(context.getApplicationContext()), Constants.BUCKET_NAME,
+                    new File(context.getCacheDir(), "streams"), Constants.STREAM_SESSIONS);
+            server.start();
+            sStreamingServer = server;
+        }
+
+        return sStreamingServer;
+    }
+
+    /**
+     * Gets the TransferScheduler that all uploads and downloads are started
+     * through.
+     *
+     * @param context
+     * @return a TransferScheduler instance
+     */
+    public static synchronized TransferScheduler getTransferScheduler(Context context) {
+        if (sTransferScheduler == null) {
+            sTransferScheduler = new TransferScheduler(context.getApplicationContext(),
+                    getTransferUtility(context),
+                    getTransferEngine(context), getStagingStore(context), getTransferMetrics(),
+                    Constants.BUCKET_NAME);
+        }
+
+        return sTransferScheduler;
+    }
+
+    /**
+     * Gets the TransferMetrics that measure the transfers started through the
+     * TransferScheduler and the requests of the S3 client.
+     *
+     * @return a TransferMetrics instance
+     */
+    public static TransferMetrics getTransferMetrics() {
+        return sTransferMetrics;
+    }
+
+    private static File getStagingDir(Context context) {
+        return context.getDir("SampleImagesDir", Context.MODE_PRIVATE);
+    }
+
     /**
      * Converts number of bytes into proper scale.
      *
@@ -112,49 +311,80 @@ public class Util {
         }
     }
 
+    /**
+     * Describes the speed of a running transfer and the time it still needs.
+     *
+     * @param bytesPerSecond the current rate, 0 if nothing arrived lately.
+     * @param etaSeconds the seconds left, or -1 if not known.
+     * @return e.g. "1.20 MB/s, 0:42 left", or "stalled".
+     */
+    public static String getSpeedString(long bytesPerSecond, long etaSeconds) {
+        if (bytesPerSecond <= 0) {
+            return "stalled";
+        }
+        String speed = getBytesString(bytesPerSecond) + "/s";
+        if (etaSeconds < 0) {
+            return speed;
+        }
+        long hours = etaSeconds / 3600;
+        long minutes = etaSeconds / 60 % 60;
+        long seconds = etaSeconds % 60;
+        return speed + ", " + (hours > 0
+                ? String.format("%d:%02d:%02d", hours, minutes, seconds)
+                : String.format("%d:%02d", minutes, seconds)) + " left";
+    }
+
     /**
      * Copies the data from the passed in Uri, to a new file for use with the
-     * Transfer Service
+     * Transfer Service. Prefer uploading through a ContentUriUploadSource,
+     * which needs no copy; this is for providers that only hand out a stream.
+     * Copies should be made through {@link StagingStore#stage(Context, Uri)}
+     * so that they are cleaned up.
      * 
      * @param context
      * @param uri
-     * @return
+     * @return the copy, which the caller should delete once it is uploaded
      * @throws IOException
      */
     public static File copyContentUriToFile(Context context, Uri uri) throws IOException {
         InputStream is = context.getContentResolver().openInputStream(uri);
-        File copiedData = new File(context.getDir("SampleImagesDir", Context.MODE_PRIVATE), UUID
-                .randomUUID().toString());
-        copiedData.createNewFile();
-
-        FileOutputStream fos = new FileOutputStream(copiedData);
-        byte[] buf = new byte[2046];
-        int read = -1;
-        while ((read = is.read(buf)) != -1) {
-            fos.write(buf, 0, read);
+        if (is == null) {
+            throw new IOException("Unable to open " + uri);
         }
-
-        fos.flush();
-        fos.close();
+        File copiedData = new File(getStagingDir(context), UUID.randomUUID().toString());
+        FileCopy.copy(is, copiedData);
 
         return copiedData;
     }
 
-    /*
-     * Fills in the map with information in the observer so that it can be used
-     * with a SimpleAdapter to populate the UI
-     */
-    public static void fillMap(Map<String, Object> map, TransferObserver observer, boolean isChecked) {
-        int progress = (int) ((double) observer.getBytesTransferred() * 100 / observer
-                .getBytesTotal());
-        map.put("id", observer.getId());
-        map.put("checked", isChecked);
-        map.put("fileName", observer.getAbsoluteFilePath());
-        map.put("progress", progress);
-        map.put("bytes",
-                getBytesString(observer.getBytesTransferred()) + "/"
-                        + getBytesString(observer.getBytesTotal()));
-        map.put("state", observer.getState());
-        map.put("percentage", progress + "%");
+    /**
+     * Gets the name a document was published under, such as the name shown
+     * in the picker.
+     *
+     * @param context
+     * @param uri a content Uri
+     * @return the name, or the last path segment of the Uri if the provider
+     *         does not report one
+     */
+    public static String getDisplayName(Context context, Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, new String[] {
+                    OpenableColumns.DISPLAY_NAME
+            }, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                String name = cursor.getString(0);
+                if (name != null) {
+                    return name;
+                }
+            }
+        } catch (Exception e) {
+            // Fall back to the Uri
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return uri.getLastPathSegment();
     }
 }